@@ -0,0 +1,462 @@
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Shared base for the alternative balancing engines. Holds the node structure,
+ * lookups, traversals and rotations, which do not depend on how the tree is
+ * balanced. Subclasses implement insert() and remove() and keep their own
+ * balance information in each node's balance field.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public abstract class AbstractBST<K extends Comparable<K>, V>
+    implements BALSTADT<K, V>, RotationCounter {
+
+  protected Node<K, V> root;
+
+  protected int numKeys;
+
+  protected long rotations;
+
+  /**
+   * Tree constructor. Initialize values.
+   */
+  protected AbstractBST() {
+    this.root = null;
+    this.numKeys = 0;
+    this.rotations = 0;
+  }
+
+  /**
+   * Returns key in root node if root node is not null.
+   * Returns null if root node is null.
+   *
+   * @return K - key of root node or null
+   */
+  @Override
+  public K getKeyAtRoot() {
+    if (root == null) {
+      return null;
+    }
+    return root.key;
+  }
+
+  /**
+   * Returns the key of the left child of a specified node. If the left child
+   * of the specified node is null, it returns null.
+   *
+   * @param K key - key to search for
+   *
+   * @return K - key in left child of the key that is found
+   *
+   * @throws IllegalNullKeyException - if key provided is null
+   * @throws KeyNotFoundException    - if key is not in tree
+   */
+  @Override
+  public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    Node<K, V> node = getExistingNode(key);
+    return node.left == null ? null : node.left.key;
+  }
+
+  /**
+   * Returns the key of the right child of a specified node. If the right child
+   * of the specified node is null, it returns null.
+   *
+   * @param K key - key to search for
+   *
+   * @return K - key in right child of the key that is found
+   *
+   * @throws IllegalNullKeyException - if key provided is null
+   * @throws KeyNotFoundException    - if key is not in tree
+   */
+  @Override
+  public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    Node<K, V> node = getExistingNode(key);
+    return node.right == null ? null : node.right.key;
+  }
+
+  /**
+   * Returns the height of the tree.
+   *
+   * @return int - height of tree, 0 if empty
+   */
+  @Override
+  public int getHeight() {
+    return getHeight(this.root);
+  }
+
+  /**
+   * Recursive helper for getHeight()
+   *
+   * @param Node node - current node
+   *
+   * @return int - height of tree of provided node
+   */
+  private int getHeight(Node<K, V> node) {
+    if (node == null) {
+      return 0;
+    }
+    return 1 + Math.max(getHeight(node.left), getHeight(node.right));
+  }
+
+  /**
+   * Returns list containing all tree elements in order.
+   *
+   * @return List<K> - containing all tree elements in order
+   */
+  @Override
+  public List<K> getInOrderTraversal() {
+    List<K> list = new ArrayList<K>(numKeys);
+    getInOrderTraversal(this.root, list);
+    return list;
+  }
+
+  /**
+   * Recursive helper method for getInOrderTraversal()
+   *
+   * @param Node node    - current node
+   * @param List<K> list - to store keys in
+   */
+  private void getInOrderTraversal(Node<K, V> node, List<K> list) {
+    if (node != null) {
+      getInOrderTraversal(node.left, list);
+      list.add(node.key);
+      getInOrderTraversal(node.right, list);
+    }
+  }
+
+  /**
+   * Returns list containing all tree elements in pre order.
+   *
+   * @return List<K> - containing all tree elements in pre order
+   */
+  @Override
+  public List<K> getPreOrderTraversal() {
+    List<K> list = new ArrayList<K>(numKeys);
+    getPreOrderTraversal(this.root, list);
+    return list;
+  }
+
+  /**
+   * Recursive helper method for getPreOrderTraversal()
+   *
+   * @param Node node    - current node
+   * @param List<K> list - to store keys in
+   */
+  private void getPreOrderTraversal(Node<K, V> node, List<K> list) {
+    if (node != null) {
+      list.add(node.key);
+      getPreOrderTraversal(node.left, list);
+      getPreOrderTraversal(node.right, list);
+    }
+  }
+
+  /**
+   * Returns list containing all tree elements in post order.
+   *
+   * @return List<K> - containing all tree elements in post order
+   */
+  @Override
+  public List<K> getPostOrderTraversal() {
+    List<K> list = new ArrayList<K>(numKeys);
+    getPostOrderTraversal(this.root, list);
+    return list;
+  }
+
+  /**
+   * Recursive helper method for getPostOrderTraversal()
+   *
+   * @param Node node    - current node
+   * @param List<K> list - to store keys in
+   */
+  private void getPostOrderTraversal(Node<K, V> node, List<K> list) {
+    if (node != null) {
+      getPostOrderTraversal(node.left, list);
+      getPostOrderTraversal(node.right, list);
+      list.add(node.key);
+    }
+  }
+
+  /**
+   * Returns list containing all tree elements in level order.
+   *
+   * @return List<K> - containing all tree elements in level order
+   */
+  @Override
+  public List<K> getLevelOrderTraversal() {
+    List<K> list = new ArrayList<K>(numKeys);
+    Queue<Node<K, V>> queue = new LinkedList<Node<K, V>>();
+    if (root != null) {
+      queue.add(root);
+    }
+
+    while (!queue.isEmpty()) {
+      Node<K, V> node = queue.remove();
+      list.add(node.key);
+      if (node.left != null) {
+        queue.add(node.left);
+      }
+      if (node.right != null) {
+        queue.add(node.right);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Returns the value of the node with the provided key.
+   *
+   * @param K key - key to search for
+   *
+   * @return V - value of node with provided key
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in tree
+   */
+  @Override
+  public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    return getExistingNode(key).value;
+  }
+
+  /**
+   * Returns true if a node with the provided key is in the tree.
+   *
+   * @param K key - key to search for
+   *
+   * @return boolean - true if node with provided key is in tree, false if not
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   */
+  @Override
+  public boolean contains(K key) throws IllegalNullKeyException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+    return findNode(key) != null;
+  }
+
+  /**
+   * Return number of keys in tree
+   *
+   * @return int - number of keys in the tree
+   */
+  @Override
+  public int numKeys() {
+    return this.numKeys;
+  }
+
+  /**
+   * Returns number of single rotations done since the tree was created. A double
+   * rotation counts as two.
+   *
+   * @return long - number of rotations
+   */
+  @Override
+  public long getRotationCount() {
+    return this.rotations;
+  }
+
+  /**
+   * Prints the tree
+   */
+  @Override
+  public void print() {
+    print(this.root, 0);
+  }
+
+  /**
+   * Recursive helper for print()
+   *
+   * @param Node node - current node
+   * @param int space - spacing for printing tree
+   */
+  private void print(Node<K, V> node, int space) {
+    int spaceCount = 5;
+    if (node == null) {
+      return;
+    }
+    space += spaceCount;
+    print(node.right, space);
+    System.out.print("\n");
+    for (int i = spaceCount; i < space; i++) {
+      System.out.print(" ");
+    }
+    System.out.print(node.key + "\n");
+    print(node.left, space);
+  }
+
+  /**
+   * Returns node with the provided key or null if it is not in the tree
+   *
+   * @param K key - key to search for
+   *
+   * @return Node - node with provided key or null
+   */
+  protected Node<K, V> findNode(K key) {
+    Node<K, V> node = root;
+    while (node != null) {
+      int compare = key.compareTo(node.key);
+      if (compare == 0) {
+        return node;
+      }
+      node = compare < 0 ? node.left : node.right;
+    }
+    return null;
+  }
+
+  /**
+   * Returns node with the provided key
+   *
+   * @param K key - key to search for
+   *
+   * @return Node - node with provided key
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in tree
+   */
+  protected Node<K, V> getExistingNode(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+    Node<K, V> node = findNode(key);
+    if (node == null) {
+      throw new KeyNotFoundException();
+    }
+    return node;
+  }
+
+  /**
+   * Inserts a new leaf with the provided key/value pair without rebalancing.
+   *
+   * @param K key   - key to be added to tree
+   * @param V value - value to be added to associated key in tree
+   *
+   * @return Node - new leaf
+   *
+   * @throws IllegalNullKeyException - if key is null
+   * @throws DuplicateKeyException   - if key already exists in tree
+   */
+  protected Node<K, V> insertLeaf(K key, V value)
+      throws IllegalNullKeyException, DuplicateKeyException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+
+    Node<K, V> parent = null;
+    Node<K, V> node = root;
+    int compare = 0;
+    while (node != null) {
+      compare = key.compareTo(node.key);
+      if (compare == 0) {
+        throw new DuplicateKeyException();
+      }
+      parent = node;
+      node = compare < 0 ? node.left : node.right;
+    }
+
+    Node<K, V> leaf = new Node<K, V>(key, value, parent);
+    if (parent == null) {
+      root = leaf;
+    } else if (compare < 0) {
+      parent.left = leaf;
+    } else {
+      parent.right = leaf;
+    }
+    numKeys++;
+    return leaf;
+  }
+
+  /**
+   * Returns in order successor of a node with a right child
+   *
+   * @param Node node - current node
+   *
+   * @return Node - smallest node in the right subtree
+   */
+  protected Node<K, V> getInOrderSuccessor(Node<K, V> node) {
+    Node<K, V> temp = node.right;
+    while (temp.left != null) {
+      temp = temp.left;
+    }
+    return temp;
+  }
+
+  /**
+   * Puts replacement in node's place under node's parent. Node's own links are
+   * left unchanged.
+   *
+   * @param Node node        - node being replaced
+   * @param Node replacement - node taking its place, may be null
+   */
+  protected void replace(Node<K, V> node, Node<K, V> replacement) {
+    if (node.parent == null) {
+      root = replacement;
+    } else if (node == node.parent.left) {
+      node.parent.left = replacement;
+    } else {
+      node.parent.right = replacement;
+    }
+    if (replacement != null) {
+      replacement.parent = node.parent;
+    }
+  }
+
+  /**
+   * Performs a left rotate on the provided node. Its right child takes its place.
+   *
+   * @param Node node - rotated node
+   */
+  protected void rotateLeft(Node<K, V> node) {
+    Node<K, V> child = node.right;
+    node.right = child.left;
+    if (child.left != null) {
+      child.left.parent = node;
+    }
+    replace(node, child);
+    child.left = node;
+    node.parent = child;
+    rotations++;
+  }
+
+  /**
+   * Performs a right rotate on the provided node. Its left child takes its place.
+   *
+   * @param Node node - rotated node
+   */
+  protected void rotateRight(Node<K, V> node) {
+    Node<K, V> child = node.left;
+    node.left = child.right;
+    if (child.right != null) {
+      child.right.parent = node;
+    }
+    replace(node, child);
+    child.right = node;
+    node.parent = child;
+    rotations++;
+  }
+
+  /**
+   * Node shared by all engines. The meaning of balance depends on the engine:
+   * color for red-black trees, rank for WAVL trees and priority for treaps.
+   */
+  protected static class Node<K, V> {
+    protected K key; // key
+    protected V value; // data
+
+    protected Node<K, V> left; // left child
+    protected Node<K, V> right; // right child
+    protected Node<K, V> parent; // parent, null for root
+
+    protected int balance; // engine specific balance information
+
+    protected Node(K key, V value, Node<K, V> parent) {
+      this.key = key;
+      this.value = value;
+      this.parent = parent;
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Monoid used by BALST to keep an aggregate of the values in every subtree, so
+ * the aggregate of any key range can be found in O(log n). combine() must be
+ * associative and identity() must be its identity element. It does not need to
+ * be commutative, values are always combined in key order.
+ *
+ * @param <V> is the generic type of value
+ * @param <A> is the generic type of aggregate
+ */
+public interface Aggregator<V, A> {
+
+  /**
+   * Returns the aggregate of no values
+   *
+   * @return A - identity element
+   */
+  A identity();
+
+  /**
+   * Returns the aggregate of a single value
+   *
+   * @param V value - value to aggregate
+   *
+   * @return A - aggregate of the value
+   */
+  A lift(V value);
+
+  /**
+   * Combines the aggregates of two adjacent key ranges
+   *
+   * @param A left  - aggregate of the lower range
+   * @param A right - aggregate of the higher range
+   *
+   * @return A - aggregate of both ranges
+   */
+  A combine(A left, A right);
+
+  /**
+   * Returns an aggregator that counts values
+   *
+   * @return Aggregator<V, Long> - count aggregator
+   */
+  static <V> Aggregator<V, Long> count() {
+    return new Aggregator<V, Long>() {
+      public Long identity() {
+        return 0L;
+      }
+
+      public Long lift(V value) {
+        return 1L;
+      }
+
+      public Long combine(Long left, Long right) {
+        return left + right;
+      }
+    };
+  }
+
+  /**
+   * Returns an aggregator that sums integral values as longs
+   *
+   * @return Aggregator<V, Long> - sum aggregator
+   */
+  static <V extends Number> Aggregator<V, Long> sum() {
+    return new Aggregator<V, Long>() {
+      public Long identity() {
+        return 0L;
+      }
+
+      public Long lift(V value) {
+        return value.longValue();
+      }
+
+      public Long combine(Long left, Long right) {
+        return left + right;
+      }
+    };
+  }
+
+  /**
+   * Returns an aggregator that finds the smallest value, null if there are none
+   *
+   * @return Aggregator<V, V> - minimum aggregator
+   */
+  static <V extends Comparable<? super V>> Aggregator<V, V> min() {
+    return new Aggregator<V, V>() {
+      public V identity() {
+        return null;
+      }
+
+      public V lift(V value) {
+        return value;
+      }
+
+      public V combine(V left, V right) {
+        if (left == null) {
+          return right;
+        }
+        if (right == null) {
+          return left;
+        }
+        return left.compareTo(right) <= 0 ? left : right;
+      }
+    };
+  }
+
+  /**
+   * Returns an aggregator that finds the largest value, null if there are none
+   *
+   * @return Aggregator<V, V> - maximum aggregator
+   */
+  static <V extends Comparable<? super V>> Aggregator<V, V> max() {
+    return new Aggregator<V, V>() {
+      public V identity() {
+        return null;
+      }
+
+      public V lift(V value) {
+        return value;
+      }
+
+      public V combine(V left, V right) {
+        if (left == null) {
+          return right;
+        }
+        if (right == null) {
+          return left;
+        }
+        return left.compareTo(right) >= 0 ? left : right;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,291 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Asynchronous facade over a BALST for use behind a service endpoint. Writes
+ * are queued and a single writer thread applies them in batches, sorted by key,
+ * and then publishes a snapshot. Reads are answered from the latest published
+ * snapshot on the calling thread without taking any lock.
+ *
+ * A write's future completes after the snapshot containing it is published, so
+ * a caller that waits for its write sees it in its next read. Callers running
+ * on virtual threads can simply join() the futures.
+ *
+ * The wrapped tree must not be used directly while the facade is open.
+ *
+ * If applying a batch fails outside of the writes themselves, the tree may be
+ * left half way through a write. The facade then fails every pending and
+ * later write with an IllegalStateException, while reads keep being answered
+ * from the last published snapshot.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class AsyncBALST<K extends Comparable<K>, V> implements AutoCloseable {
+
+  private static final int DEFAULT_MAX_BATCH = 256;
+
+  private final BALST<K, V> tree;
+
+  private final int maxBatch;
+
+  private final BlockingQueue<Request<K, V>> queue;
+
+  private final Thread writer;
+
+  private volatile BALST<K, V>.Snapshot published;
+
+  private volatile boolean closed;
+
+  private volatile RuntimeException failure; // null unless the writer thread failed
+
+  /**
+   * Facade constructor using a new tree and a daemon writer thread.
+   */
+  public AsyncBALST() {
+    this(new BALST<K, V>(), DEFAULT_MAX_BATCH, runnable -> {
+      Thread thread = new Thread(runnable, "AsyncBALST-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Facade constructor.
+   *
+   * @param BALST tree                  - tree to serve, owned by the facade from now on
+   * @param int maxBatch                - maximum number of writes applied per batch
+   * @param ThreadFactory threadFactory - creates the writer thread
+   */
+  public AsyncBALST(BALST<K, V> tree, int maxBatch, ThreadFactory threadFactory) {
+    if (maxBatch <= 0) {
+      throw new IllegalArgumentException("maxBatch must be positive");
+    }
+    this.tree = tree;
+    this.maxBatch = maxBatch;
+    this.queue = new LinkedBlockingQueue<Request<K, V>>();
+    this.published = tree.snapshot();
+    this.writer = threadFactory.newThread(this::runWriter);
+    this.writer.start();
+  }
+
+  /**
+   * Returns the value of the provided key from the latest published snapshot
+   *
+   * @param K key - key to search for
+   *
+   * @return CompletableFuture<V> - completed with the value, or failed with
+   *         IllegalNullKeyException or KeyNotFoundException
+   */
+  public CompletableFuture<V> get(K key) {
+    try {
+      return CompletableFuture.completedFuture(published.get(key));
+    } catch (IllegalNullKeyException | KeyNotFoundException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Returns whether the provided key is in the latest published snapshot
+   *
+   * @param K key - key to search for
+   *
+   * @return CompletableFuture<Boolean> - completed with true if key is present,
+   *         or failed with IllegalNullKeyException
+   */
+  public CompletableFuture<Boolean> contains(K key) {
+    try {
+      return CompletableFuture.completedFuture(published.contains(key));
+    } catch (IllegalNullKeyException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Queues an insert of the key/value pair
+   *
+   * @param K key   - key to be added
+   * @param V value - value to be added to associated key
+   *
+   * @return CompletableFuture<Void> - completed once the insert is published, or
+   *         failed with IllegalNullKeyException or DuplicateKeyException
+   */
+  public CompletableFuture<Void> insert(K key, V value) {
+    CompletableFuture<Void> future = new CompletableFuture<Void>();
+    submit(new Request<K, V>(key, value, false, future));
+    return future;
+  }
+
+  /**
+   * Queues a remove of the key
+   *
+   * @param K key - key to be removed
+   *
+   * @return CompletableFuture<Void> - completed once the remove is published, or
+   *         failed with IllegalNullKeyException or KeyNotFoundException
+   */
+  public CompletableFuture<Void> remove(K key) {
+    CompletableFuture<Void> future = new CompletableFuture<Void>();
+    submit(new Request<K, V>(key, null, true, future));
+    return future;
+  }
+
+  /**
+   * Returns the latest published snapshot, for scans and reads of several keys
+   * that must agree with each other
+   *
+   * @return BALST<K, V>.Snapshot - latest published snapshot
+   */
+  public BALST<K, V>.Snapshot snapshot() {
+    return published;
+  }
+
+  /**
+   * Stops accepting writes, applies the writes already queued and stops the
+   * writer thread. Keeps waiting for the writer if interrupted, and then sets
+   * the interrupt flag again.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    writer.interrupt();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        writer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Queues a write, or fails it if the facade is closed or has failed
+   *
+   * @param Request request - write to queue
+   */
+  private void submit(Request<K, V> request) {
+    if (request.key == null) {
+      request.future.completeExceptionally(new IllegalNullKeyException());
+      return;
+    }
+    if (closed || failure != null) {
+      request.future.completeExceptionally(rejection());
+      return;
+    }
+    queue.add(request);
+
+    // close() or a failing writer may have drained the queue before this request was added
+    if ((closed || failure != null) && queue.remove(request)) {
+      request.future.completeExceptionally(rejection());
+    }
+  }
+
+  /**
+   * Returns the exception writes are failed with once the facade stops accepting them
+   *
+   * @return IllegalStateException - reason the write was not applied
+   */
+  private IllegalStateException rejection() {
+    RuntimeException cause = failure;
+    return cause == null ? new IllegalStateException("facade is closed")
+        : new IllegalStateException("writer thread failed", cause);
+  }
+
+  /**
+   * Writer thread loop. Waits for a write, takes whatever else is queued up to
+   * the batch limit and applies the batch. If a batch fails as a whole, fails
+   * it and everything queued after it and stops.
+   */
+  private void runWriter() {
+    List<Request<K, V>> batch = new ArrayList<Request<K, V>>(maxBatch);
+    try {
+      while (true) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          if (closed) {
+            break;
+          }
+          continue;
+        }
+        queue.drainTo(batch, maxBatch - 1);
+        applyBatch(batch);
+        batch.clear();
+      }
+
+      // apply what was queued before close()
+      while (queue.drainTo(batch, maxBatch) > 0) {
+        applyBatch(batch);
+        batch.clear();
+      }
+    } catch (RuntimeException e) {
+      // set before draining, so submit() sees it or the drain sees its request
+      failure = e;
+      queue.drainTo(batch);
+      for (Request<K, V> request : batch) {
+        request.future.completeExceptionally(rejection());
+      }
+    }
+  }
+
+  /**
+   * Applies a batch in key order, publishes a snapshot and completes the futures.
+   * The sort is stable, so writes to the same key keep their arrival order.
+   *
+   * @param List<Request> batch - writes to apply
+   */
+  private void applyBatch(List<Request<K, V>> batch) {
+    batch.sort(Comparator.comparing((Request<K, V> request) -> request.key));
+
+    List<Exception> failures = new ArrayList<Exception>(batch.size());
+    for (Request<K, V> request : batch) {
+      try {
+        if (request.remove) {
+          tree.remove(request.key);
+        } else {
+          tree.insert(request.key, request.value);
+        }
+        failures.add(null);
+      } catch (Exception e) {
+        failures.add(e);
+      }
+    }
+
+    published = tree.snapshot();
+    for (int i = 0; i < batch.size(); i++) {
+      if (failures.get(i) == null) {
+        batch.get(i).future.complete(null);
+      } else {
+        batch.get(i).future.completeExceptionally(failures.get(i));
+      }
+    }
+  }
+
+  /**
+   * Queued write
+   */
+  private static class Request<K, V> {
+    final K key;
+    final V value;
+    final boolean remove;
+    final CompletableFuture<Void> future;
+
+    Request(K key, V value, boolean remove, CompletableFuture<Void> future) {
+      this.key = key;
+      this.value = value;
+      this.remove = remove;
+      this.future = future;
+    }
+  }
+
+}
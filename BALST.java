@@ -15,10 +15,24 @@
  * 
  */
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToLongBiFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * AVL tree
@@ -26,20 +40,109 @@ import java.util.Queue;
  * @param <K> is the generic type of key
  * @param <V> is the generic type of value
  */
-public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
+public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V>, RotationCounter {
 
-  private Node root;
+  private Node<K, V> root;
 
   private int numKeys;
 
+  // width of one expiry wheel slot in milliseconds
+  private static final long EXPIRY_TICK_MILLIS = 100;
+
+  // number of slots in the expiry wheel
+  private static final int EXPIRY_SLOTS = 512;
+
+  // maximum number of expired entries purged by a single write
+  private static final int PURGE_BATCH = 16;
+
+  // estimated heap size of a Node on a 64-bit JVM with compressed references,
+  // not counting the key, value and aggregate objects: 12 byte header, 4
+  // references, a byte and a short padded to 32. Each optional field of a node
+  // subclass, an expiry time, a content hash or an aggregate, adds 8 once padded.
+  private static final long NODE_BYTES = 32;
+  private static final long OPTIONAL_FIELD_BYTES = 8;
+
+  // version of nodes that may be shared with a snapshot of any epoch
+  private static final short SHARED = Short.MIN_VALUE;
+
+  // counters per key of the membership filter, gives about 1% false positives
+  private static final int FILTER_COUNTERS_PER_KEY = 10;
+
+  private final LongSupplier clock;
+
+  private ExpiryWheel<K> expiryWheel; // null until the first insert with a time to live
+
+  private Node<K, V> removedNode; // node unlinked by the last recursive remove()
+
+  private FrontCache<K, Node<K, V>> frontCache; // null unless enabled
+
+  private CountingBloomFilter membershipFilter; // null unless enabled
+
+  private int modCount; // number of structural changes, checked by cursors
+
+  private long rotations; // single rotations done, a double rotation counts as two
+
+  private short epoch; // nodes from another epoch may be shared with a snapshot
+
+  private ChangeFeed<K, V> changeFeed; // null unless enabled
+
+  private Aggregator<?, ?> aggregator; // null unless enabled
+
+  private boolean aggregateKeys; // true if the aggregator lifts keys instead of values
+
+  private ToLongFunction<? super V> valueHasher; // null unless the content hash is enabled
+
+  private final List<SecondaryIndex<?, K, V>> indexes = new ArrayList<SecondaryIndex<?, K, V>>();
+
+  private int auditInterval; // changes between audits, 0 if auditing is off
+
+  private int changesSinceAudit;
+
+  private Consumer<? super IllegalStateException> auditListener;
+
+  private long passedAudits;
+
   /**
    * AVL Tree constructor. Initialize values.
    */
   public BALST() {
+    this(System::currentTimeMillis);
+  }
+
+  /**
+   * AVL Tree constructor using the provided clock for entry expiry.
+   * 
+   * @param LongSupplier clock - returns the current time in milliseconds
+   */
+  public BALST(LongSupplier clock) {
     this.root = null;
     this.numKeys = 0;
+    this.clock = clock;
   }
   
+  /**
+   * Returns a node that can be changed in place. Nodes created since the last
+   * snapshot are returned as is. Older nodes may be shared with a snapshot, so a
+   * copy is returned instead and the caller must link it in place of the original.
+   * 
+   * @param Node node - node about to be changed
+   * 
+   * @return Node - node itself or a copy of it
+   */
+  private Node<K, V> mutable(Node<K, V> node) {
+    if (node.version == epoch) {
+      return node;
+    }
+    
+    // the front cache must not hand out the shared original any more
+    if (frontCache != null) {
+      frontCache.invalidate(node.key);
+    }
+    Node<K, V> copy = node.copy();
+    copy.version = epoch;
+    return copy;
+  }
+
   /**
    * Performs a right rotate on the provided node.
    * 
@@ -47,13 +150,16 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return Node - new node in place
    */
-  private Node rotateRight(Node node) {
-    Node grandParent= node;
-    Node parent = grandParent.left;
+  private Node<K, V> rotateRight(Node<K, V> node) {
+    Node<K, V> grandParent = mutable(node);
+    Node<K, V> parent = mutable(grandParent.left);
     
     grandParent.left = parent.right;
     parent.right = grandParent;
     
+    update(grandParent);
+    update(parent);
+    rotations++;
     return parent;
   }
   
@@ -64,13 +170,16 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return Node - new node in place
    */
-  private Node rotateLeft(Node node) {
-    Node grandParent= node;
-    Node parent = grandParent.right;
+  private Node<K, V> rotateLeft(Node<K, V> node) {
+    Node<K, V> grandParent = mutable(node);
+    Node<K, V> parent = mutable(grandParent.right);
     
     grandParent.right = parent.left;
     parent.left = grandParent;
     
+    update(grandParent);
+    update(parent);
+    rotations++;
     return parent;
   }
   
@@ -81,16 +190,20 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return Node - new node in place
    */
-  private Node rotateRightLeft(Node node) {
-    Node grandParent = node;
-    Node parent = grandParent.right;
-    Node key = parent.left;
+  private Node<K, V> rotateRightLeft(Node<K, V> node) {
+    Node<K, V> grandParent = mutable(node);
+    Node<K, V> parent = mutable(grandParent.right);
+    Node<K, V> key = mutable(parent.left);
 
     parent.left = key.right;
     grandParent.right = key.left;
     key.left = grandParent;
     key.right = parent;
     
+    update(grandParent);
+    update(parent);
+    update(key);
+    rotations += 2;
     return key;
   }
   
@@ -101,54 +214,52 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return Node - new node in place
    */
-  private Node rotateLeftRight(Node node) {
-    Node grandParent = node;
-    Node parent = grandParent.left;
-    Node key = parent.right;
+  private Node<K, V> rotateLeftRight(Node<K, V> node) {
+    Node<K, V> grandParent = mutable(node);
+    Node<K, V> parent = mutable(grandParent.left);
+    Node<K, V> key = mutable(parent.right);
 
     parent.right = key.left;
     grandParent.left = key.right;
     key.left = parent;
     key.right = grandParent;
     
+    update(parent);
+    update(grandParent);
+    update(key);
+    rotations += 2;
     return key;
   }
   
   /**
    * Check if rebalancing is necessary and rebalance if it is. Possible rebalance
-   * options are right, left, right left, and left right.
+   * options are right, left, right left, and left right. Insert and remove call
+   * this on every node of the path they changed, bottom up, so the subtrees of
+   * the node are already balanced and a write costs O(log n).
    * 
-   * @param Node node - root of tree to rebalance
+   * @param Node node - changed node with its height up to date
    * 
-   * @return Node - root of tree after rebalancing is done
+   * @return Node - root of the subtree after rebalancing is done
    */
-  private Node rebalance(Node node) {
-    if (node != null) {
-      
-      // rebalance children first so cascading does not/can not ruin balance
-      node.left = rebalance(node.left);
-      node.right = rebalance(node.right);
-
-      // get balance factor
-      int balanceFactor = getBalanceFactor(node);
-      
-      // check balance factor and rebalance if necessary
-      if (balanceFactor > 1) {
-        if (getBalanceFactor(node.left) > 0) {
-          node = rotateRight(node);
-        } else {
-          node = rotateLeftRight(node);
-        }
-      } else if (balanceFactor < -1) {
-        if (getBalanceFactor(node.right) > 0) {
-          node = rotateRightLeft(node);
-        } else {
-          node = rotateLeft(node);
-        }
+  private Node<K, V> rebalance(Node<K, V> node) {
+    // get balance factor
+    int balanceFactor = getBalanceFactor(node);
+    
+    // check balance factor and rebalance if necessary
+    if (balanceFactor > 1) {
+      if (getBalanceFactor(node.left) >= 0) {
+        node = rotateRight(node);
+      } else {
+        node = rotateLeftRight(node);
+      }
+    } else if (balanceFactor < -1) {
+      if (getBalanceFactor(node.right) > 0) {
+        node = rotateRightLeft(node);
+      } else {
+        node = rotateLeft(node);
       }
-      return node;
     }
-    return null;
+    return node;
   }
   
   /**
@@ -158,13 +269,24 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return int - balance factor of provided node
    */
-  private int getBalanceFactor(Node node) {
+  private int getBalanceFactor(Node<K, V> node) {
     if (node != null) {
       return getHeight(node.left) - getHeight(node.right);
     }
     return -1;
   }
   
+  /**
+   * Returns number of single rotations done since the tree was created. A double
+   * rotation counts as two.
+   * 
+   * @return long - number of rotations
+   */
+  @Override
+  public long getRotationCount() {
+    return this.rotations;
+  }
+
   /**
    * Returns key in root node if root node is not null. 
    * Returns null if root node is null.
@@ -213,7 +335,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @throws KeyNotFoundException - if key is not in AVL tree
    */
-  private K getKeyOfLeftChildOf(Node node, K key) throws KeyNotFoundException {
+  private K getKeyOfLeftChildOf(Node<K, V> node, K key) throws KeyNotFoundException {
     // if node is null it means that the key was not found so throw KeyNotFoundException
     if (node == null) {
       throw new KeyNotFoundException();
@@ -266,7 +388,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @throws KeyNotFoundException - if key is not in AVL tree
    */
-  private K getKeyOfRightChildOf(Node node, K key) throws KeyNotFoundException {
+  private K getKeyOfRightChildOf(Node<K, V> node, K key) throws KeyNotFoundException {
     // if node is null it means that the key was not found so throw KeyNotFoundException
     if (node == null) {
       throw new KeyNotFoundException();
@@ -297,28 +419,20 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
   }
 
   /**
-   * Recursive helper for getHeight()
+   * Returns the cached height of a subtree
    * 
    * @param Node node - current node
    * 
    * @return int - height of tree of provided node
    */
-  private int getHeight(Node node) {
+  private int getHeight(Node<K, V> node) {
     // if node is null height=0, so return 0
     if (node == null) {
       return 0;
     }
 
-    // get height of left and right subtrees
-    int leftHeight = getHeight(node.left);
-    int rightHeight = getHeight(node.right);
-
-    // returns 1 + height of larger subtree as height
-    if (leftHeight > rightHeight) {
-      return 1 + leftHeight;
-    } else {
-      return 1 + rightHeight;
-    }
+    // every change that relinks a node recomputes its height
+    return node.height;
   }
 
   /**
@@ -341,7 +455,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return List<K> - containing all AVL tree elements in order
    */
-  private List<K> getInOrderTraversal(Node node, ArrayList<K> list) {
+  private List<K> getInOrderTraversal(Node<K, V> node, ArrayList<K> list) {
     // if node is null we are done, so ensure node IS NOT null
     if (node != null) {
       getInOrderTraversal(node.left, list);
@@ -372,7 +486,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return List<K> - containing all AVL tree elements in pre order
    */
-  private List<K> getPreOrderTraversal(Node node, ArrayList<K> list) {
+  private List<K> getPreOrderTraversal(Node<K, V> node, ArrayList<K> list) {
     // if node is null we are done, so ensure node IS NOT null
     if (node != null) {
       list.add(node.key); 
@@ -403,7 +517,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return List<K> - containing all AVL tree elements in post order
    */
-  private List<K> getPostOrderTraversal(Node node, ArrayList<K> list) {
+  private List<K> getPostOrderTraversal(Node<K, V> node, ArrayList<K> list) {
     if (node != null) {
       getPostOrderTraversal(node.left, list);
       getPostOrderTraversal(node.right, list); 
@@ -433,9 +547,9 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return List<K> - containing all AVL tree elements in level order
    */
-  private List<K> getLevelOrderTraversal(Node node, ArrayList<K> list) {
-    Node temp = node;
-    Queue<Node> queue = new LinkedList<Node>();
+  private List<K> getLevelOrderTraversal(Node<K, V> node, ArrayList<K> list) {
+    Node<K, V> temp = node;
+    Queue<Node<K, V>> queue = new LinkedList<Node<K, V>>();
     queue.add(temp);
     
     while(queue.size() > 0) {
@@ -470,31 +584,97 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    */
   @Override
   public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+    insert(key, value, Long.MAX_VALUE, false);
+  }
+
+  /**
+   * Inserts a node with the assigned key/value pair that expires after the provided
+   * time to live. Once expired the key is treated as missing by get() and contains()
+   * and is removed lazily on access or in small batches on later writes.
+   * 
+   * @param key        - key to be added to tree
+   * @param value      - value to be added to associated key in tree
+   * @param ttlMillis  - time to live in milliseconds, must be positive
+   * 
+   * @throws IllegalNullKeyException  - if key is null
+   * @throws DuplicateKeyException    - if key already exists in tree and is not expired
+   * @throws IllegalArgumentException - if ttlMillis is not positive
+   */
+  public void insert(K key, V value, long ttlMillis)
+      throws IllegalNullKeyException, DuplicateKeyException {
+    if (ttlMillis <= 0) {
+      throw new IllegalArgumentException("ttlMillis must be positive");
+    }
+    insert(key, value, ttlMillis, true);
+  }
+
+  /**
+   * Shared implementation of both insert() methods
+   * 
+   * @param K key          - key to be added to tree
+   * @param V value        - value to be added to associated key in tree
+   * @param long ttlMillis - time to live in milliseconds
+   * @param boolean expires - true if the entry has a time to live
+   * 
+   * @throws IllegalNullKeyException - if key is null
+   * @throws DuplicateKeyException   - if key already exists in tree and is not expired
+   */
+  private void insert(K key, V value, long ttlMillis, boolean expires)
+      throws IllegalNullKeyException, DuplicateKeyException {
     // throws IllegalNullKeyException if key is null
     if (key == null) { 
       throw new IllegalNullKeyException();
-    } else {
-      root = insert(this.root, key, value);
-      numKeys++;
     }
-    this.root = rebalance(this.root);
+
+    long expiresAt = Long.MAX_VALUE;
+    if (expires) {
+      long now = clock.getAsLong();
+      expiresAt = ttlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMillis;
+
+      // most trees never use a time to live, so they never pay for the wheel
+      if (expiryWheel == null) {
+        expiryWheel = new ExpiryWheel<K>(EXPIRY_TICK_MILLIS, EXPIRY_SLOTS, now);
+      }
+    }
+
+    purgeIfDue();
+
+    try {
+      root = insert(this.root, key, value, expiresAt);
+    } catch (DuplicateKeyException e) {
+      // the tree is left unchanged, so make room if the same key has expired
+      if (!isExpired(getNode(this.root, key))) {
+        throw e;
+      }
+      removeKnownKey(key, ChangeEvent.Type.EXPIRE);
+      root = insert(this.root, key, value, expiresAt);
+    }
+    numKeys++;
+    modCount++;
+    recordChange(ChangeEvent.Type.INSERT, key, value);
+
+    if (expiresAt != Long.MAX_VALUE) {
+      expiryWheel.schedule(key, expiresAt);
+    }
   }
 
   /**
    * Recursive helper for insert()
    * 
-   * @param Node node - current node
-   * @param K key     - key to be added to tree
-   * @param V value   - value to be added to associated key in tree
+   * @param Node node      - current node
+   * @param K key          - key to be added to tree
+   * @param V value        - value to be added to associated key in tree
+   * @param long expiresAt - expiry time of the entry in milliseconds
    * 
    * @return Node - node to be inserted once the correct spot is found
    * 
    * @throws DuplicateKeyException - if key already exists in tree
    */
-  private Node insert(Node node, K key, V value) throws DuplicateKeyException {
+  private Node<K, V> insert(Node<K, V> node, K key, V value, long expiresAt) throws DuplicateKeyException {
     // if node is null, create new node and return
     if (node == null) {
-      node = new Node(key, value);
+      node = newNode(key, value, expiresAt);
+      update(node);
       return node;
     }
 
@@ -505,12 +685,17 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
 
     // node is not null and key does not exist in tree so recurse until the correct spot is found
     if (key.compareTo(node.key) < 0) { // if nodes key is less than provided key, recurse with left child
-      node.left = insert(node.left, key, value);
+      Node<K, V> left = insert(node.left, key, value, expiresAt);
+      node = mutable(node);
+      node.left = left;
     } else { // else nodes key is greater than provided key, recurse with right child
-      node.right = insert(node.right, key, value);
+      Node<K, V> right = insert(node.right, key, value, expiresAt);
+      node = mutable(node);
+      node.right = right;
     }
     
-    return node;
+    update(node);
+    return rebalance(node);
   }
 
   /**
@@ -530,12 +715,21 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
     // throws IllegalNullKeyException if key is null
     if (key == null) {
       throw new IllegalNullKeyException();
-    } else {
-      root = remove(this.root, key);
-      numKeys--;
     }
+
+    purgeIfDue();
+
+    root = remove(this.root, key);
+    numKeys--;
+    modCount++;
+    Node<K, V> removed = takeRemovedNode();
     
-    this.root = rebalance(this.root);
+    // an expired key was already gone as far as callers are concerned
+    if (isExpired(removed)) {
+      recordChange(ChangeEvent.Type.EXPIRE, key, removed.value);
+      throw new KeyNotFoundException();
+    }
+    recordChange(ChangeEvent.Type.REMOVE, key, removed.value);
     return true;
   }
 
@@ -549,7 +743,7 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @throws KeyNotFoundException - if key is not in AVL tree
    */
-  private Node remove(Node node, K key) throws KeyNotFoundException {
+  private Node<K, V> remove(Node<K, V> node, K key) throws KeyNotFoundException {
     // if node is null it means that the key was not found so throw KeyNotFoundException
     if (node == null) {
       throw new KeyNotFoundException();
@@ -558,17 +752,28 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
     // key to be removed is found so
     if (node.key.equals(key)) {
       
+      // this node is about to be unlinked or take its predecessor's key
+      if (frontCache != null) {
+        frontCache.invalidate(key);
+      }
+      removedNode = node;
+      
       // if node to be removed has both left and right child
       if (node.right != null && node.left != null) {
         
-        // gives n the key and value of its in order predecessor and returns n if n has two children
-        Node inOrderPredecessor = getInOrderPredecessor(node);
+        // replaces n with a copy of its in order predecessor if n has two children, the
+        // copy keeps the predecessor's expiry since only expiring nodes carry one
+        Node<K, V> inOrderPredecessor = getInOrderPredecessor(node);
         
-        node.left = remove(node.left, inOrderPredecessor.key);
-        node.key = inOrderPredecessor.key;
-        node.value = inOrderPredecessor.value;
+        Node<K, V> left = remove(node.left, inOrderPredecessor.key);
+        removedNode = node; // the call above unlinked the predecessor, not this entry
+        Node<K, V> replacement = inOrderPredecessor.copy();
+        replacement.version = epoch;
+        replacement.left = left;
+        replacement.right = node.right;
+        update(replacement);
         
-        return node;
+        return rebalance(replacement);
         
       } else if (node.left == null) {  // returns right child
         return node.right; 
@@ -582,12 +787,17 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
       }
       
     } else if (node.key.compareTo(key) > 0) {
-      node.left = remove(node.left, key);
+      Node<K, V> left = remove(node.left, key);
+      node = mutable(node);
+      node.left = left;
     } else {
-      node.right = remove(node.right, key);
+      Node<K, V> right = remove(node.right, key);
+      node = mutable(node);
+      node.right = right;
     }
     
-    return node;
+    update(node);
+    return rebalance(node);
   }
 
   /**
@@ -597,18 +807,30 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
    * 
    * @return Node - inorder predecessor
    */
-  private Node getInOrderPredecessor(Node node) {
-    Node temp = node.left;
+  private Node<K, V> getInOrderPredecessor(Node<K, V> node) {
+    Node<K, V> temp = node.left;
     while (temp.right != null) {
       temp = temp.right;
     }
     return temp;
   }
 
+  /**
+   * Returns the node whose entry the last recursive remove() took out of the
+   * tree, and forgets it so it is not kept alive
+   * 
+   * @return Node - removed node
+   */
+  private Node<K, V> takeRemovedNode() {
+    Node<K, V> node = this.removedNode;
+    this.removedNode = null;
+    return node;
+  }
+
   /**
    * Attempts to get the value of a node with the provided key. If the key is null
    * throws IllegalNullKepException. If a node with the provided key is not found
-   * throws KeyNotFoundException.
+   * or has expired throws KeyNotFoundException.
    * 
    * @param K key - key to search for
    * 
@@ -622,149 +844,2178 @@ public class BALST<K extends Comparable<K>, V> implements BALSTADT<K, V> {
     // throws IllegalNullKeyException if key is null
     if (key == null) {
       throw new IllegalNullKeyException();
-    } else {
-      return get(this.root, key);
     }
+
+    // most absent keys are answered without descending the tree
+    if (membershipFilter != null && !membershipFilter.mightContain(key)) {
+      throw new KeyNotFoundException();
+    }
+
+    Node<K, V> node = lookup(key);
+    if (node == null) {
+      if (membershipFilter != null) {
+        membershipFilter.recordFalsePositive();
+      }
+      throw new KeyNotFoundException();
+    }
+
+    // expired entries are misses, remove them now that we found one
+    if (isExpired(node)) {
+      removeKnownKey(key, ChangeEvent.Type.EXPIRE);
+      throw new KeyNotFoundException();
+    }
+    return node.value;
   }
   
   /**
-   * Recursive helper for get()
+   * Recursive helper for get() and contains()
    * 
    * @param Node node - current node
    * @param K key     - key to search for
    * 
-   * @return V - value of node with provided key
-   * 
-   * @throws KeyNotFoundException - if key is not in AVL tree
+   * @return Node - node with provided key, or null if key is not in AVL tree
    */
-  private V get(Node node, K key) throws KeyNotFoundException {
-    // if node is null it means that the key was not found so throw KeyNotFoundException
+  private Node<K, V> getNode(Node<K, V> node, K key) {
+    // if node is null it means that the key was not found so return null
     if (node == null) {
-      throw new KeyNotFoundException();
+      return null;
     }
     
-    // if node is found, return value
+    // if node is found, return it
     if (key.equals(node.key)) {
-      return node.value;
+      return node;
     } else if (key.compareTo(node.key) < 0) { // if nodes key is less than provided key, recurse with left child
-      return get(node.left, key);
-    } else { // else nodes key is greater than provided key, recurse with left child
-      return get(node.right, key);
+      return getNode(node.left, key);
+    } else { // else nodes key is greater than provided key, recurse with right child
+      return getNode(node.right, key);
     }
   }
 
   /**
-   * Attempts to find a node with the provided key and return true or false. If the key is null
-   * throws IllegalNullKepException. If a node with the provided key is not found
-   * throws KeyNotFoundException.
-   * 
-   * @param Node node - current node
-   * @param K key     - key to search for
+   * Finds the node with the provided key, checking the front cache first if
+   * it is enabled and caching the node if it had to be found in the tree.
    * 
-   * @return boolean - true if node with provided key is in tree, false if not
+   * @param K key - key to search for
    * 
+   * @return Node - node with provided key, or null if key is not in AVL tree
    */
-  @Override
-  public boolean contains(K key) throws IllegalNullKeyException {
-    // throws IllegalNullKeyException if key is null
-    if (key == null) {
-      throw new IllegalNullKeyException();
-    } else {
-      return contains(this.root, key);
+  private Node<K, V> lookup(K key) {
+    if (frontCache == null) {
+      return getNode(this.root, key);
+    }
+    
+    Node<K, V> node = frontCache.get(key);
+    if (node == null) {
+      node = getNode(this.root, key);
+      if (node != null) {
+        frontCache.put(key, node);
+      }
     }
+    return node;
   }
 
   /**
-   * Recursive helper for contains()
+   * Enables a fixed size cache of recently found keys in front of get() and
+   * contains(). Hot keys are then found without descending the tree. Calling
+   * this again replaces the cache and resets its statistics.
    * 
-   * @param Node node - current node
-   * @param K key     - key to search for
+   * @param int capacity - number of cache slots, rounded up to a power of two
    * 
-   * @return boolean - true if node with provided key is in tree, false if not
+   * @throws IllegalArgumentException - if capacity is not positive
+   */
+  public void enableFrontCache(int capacity) {
+    this.frontCache = new FrontCache<K, Node<K, V>>(capacity);
+  }
+
+  /**
+   * Disables the front cache
+   */
+  public void disableFrontCache() {
+    this.frontCache = null;
+  }
+
+  /**
+   * Returns number of get() and contains() calls answered by the front cache
    * 
+   * @return long - number of front cache hits, 0 if the cache is disabled
    */
-  private boolean contains(Node node, K key) {
-    // if node is null it means that the key was not found so return false
-    if (node == null) {
-      return false;
-    }
-    
-    // if node is found, return true
-    if (key.equals(node.key)) {
-      return true;
-    } else if (key.compareTo(node.key) < 0) { // if nodes key is less than provided key, recurse with left child
-      return contains(node.left, key);
-    } else { // else nodes key is greater than provided key, recurse with left child
-      return contains(node.right, key);
+  public long frontCacheHits() {
+    return frontCache == null ? 0 : frontCache.hits();
+  }
+
+  /**
+   * Returns number of get() and contains() calls that missed the front cache
+   * 
+   * @return long - number of front cache misses, 0 if the cache is disabled
+   */
+  public long frontCacheMisses() {
+    return frontCache == null ? 0 : frontCache.misses();
+  }
+
+  /**
+   * Returns fraction of get() and contains() calls answered by the front cache
+   * 
+   * @return double - front cache hit ratio, 0 if the cache is disabled
+   */
+  public double frontCacheHitRatio() {
+    return frontCache == null ? 0.0 : frontCache.hitRatio();
+  }
+
+  /**
+   * Enables a counting Bloom filter over the keys in front of get() and
+   * contains(). Most lookups for absent keys are then answered in O(1) without
+   * descending the tree, at the cost of about 5 bytes per key and a few hashes
+   * on every insert and remove. The filter is built from the keys already in
+   * the tree and rebuilt twice as big whenever the tree outgrows it.
+   * Calling this again rebuilds the filter and resets its statistics.
+   * 
+   * @param int expectedKeys - number of keys to size the filter for
+   * 
+   * @throws IllegalArgumentException - if expectedKeys is not positive
+   */
+  public void enableMembershipFilter(int expectedKeys) {
+    if (expectedKeys <= 0) {
+      throw new IllegalArgumentException("expectedKeys must be positive");
     }
+    this.membershipFilter = buildMembershipFilter(Math.max(expectedKeys, numKeys));
+  }
+
+  /**
+   * Disables the membership filter
+   */
+  public void disableMembershipFilter() {
+    this.membershipFilter = null;
   }
 
   /**
-   * Return number of keys in AVL tree
+   * Returns number of get() and contains() calls the membership filter answered
+   * as misses without descending the tree
    * 
-   * @return int - number of keys in the BST
+   * @return long - number of filtered misses, 0 if the filter is disabled
    */
-  @Override
-  public int numKeys() {
-    return this.numKeys;
+  public long membershipFilterNegatives() {
+    return membershipFilter == null ? 0 : membershipFilter.negatives();
   }
 
   /**
-   * Prints the AVL tree 
+   * Returns number of get() and contains() calls for absent keys that the
+   * membership filter let through to the tree
+   * 
+   * @return long - number of false positives, 0 if the filter is disabled
    */
-  @Override
-  public void print() {
-    print(this.root, 0);
+  public long membershipFilterFalsePositives() {
+    return membershipFilter == null ? 0 : membershipFilter.falsePositives();
   }
 
   /**
-   * Recursive helper for print()
+   * Returns fraction of get() and contains() calls for absent keys that the
+   * membership filter let through to the tree
    * 
-   * @param Node node - current node
-   * @param int space - spacing for printing tree
+   * @return double - observed false positive rate, 0 if the filter is disabled
    */
-  private void print(Node node, int space) {
-    int spaceCount = 5;
-    
-    // end if we reach null spot
+  public double membershipFilterFalsePositiveRate() {
+    return membershipFilter == null ? 0.0 : membershipFilter.falsePositiveRate();
+  }
+
+  /**
+   * Returns a new membership filter holding every key in the tree
+   * 
+   * @param int expectedKeys - number of keys to size the filter for
+   * 
+   * @return CountingBloomFilter - the new filter
+   */
+  private CountingBloomFilter buildMembershipFilter(int expectedKeys) {
+    CountingBloomFilter filter = new CountingBloomFilter(expectedKeys, FILTER_COUNTERS_PER_KEY);
+    addToFilter(this.root, filter);
+    return filter;
+  }
+
+  /**
+   * Recursive helper for buildMembershipFilter()
+   * 
+   * @param Node node                 - current node
+   * @param CountingBloomFilter filter - filter being built
+   */
+  private void addToFilter(Node<K, V> node, CountingBloomFilter filter) {
     if (node == null) {
       return;
     }
-    
-    // increase distance between levels
-    space += spaceCount;  
-  
-    // recurse on right child
-    print(node.right, space);  
-  
-    // Print current node after space  
-    System.out.print("\n");  
-    for (int i = spaceCount; i < space; i++) {
-      System.out.print(" ");  
-    }
-    System.out.print(node.key + "\n");  
-  
-    // recurse on left child
-    print(node.left, space);  
+    addToFilter(node.left, filter);
+    filter.add(node.key);
+    addToFilter(node.right, filter);
   }
 
   /**
-   * Private class for AVL tree Node
+   * Attempts to find a node with the provided key and return true or false. If the key is null
+   * throws IllegalNullKepException. Expired keys are treated as not found.
+   * 
+   * @param K key - key to search for
+   * 
+   * @return boolean - true if node with provided key is in tree, false if not
    * 
-   * @author samsoncain
    */
-  private class Node {
-    private K key; // key
-    private V value; // data
+  @Override
+  public boolean contains(K key) throws IllegalNullKeyException {
+    // throws IllegalNullKeyException if key is null
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+
+    // most absent keys are answered without descending the tree
+    if (membershipFilter != null && !membershipFilter.mightContain(key)) {
+      return false;
+    }
 
-    private Node left; // left child
-    private Node right; // right child
+    Node<K, V> node = lookup(key);
+    if (node == null) {
+      if (membershipFilter != null) {
+        membershipFilter.recordFalsePositive();
+      }
+      return false;
+    }
 
-    private int height; // height
+    // expired entries are misses, remove them now that we found one
+    if (isExpired(node)) {
+      removeKnownKey(key, ChangeEvent.Type.EXPIRE);
+      return false;
+    }
+    return true;
+  }
 
-    public Node(K key, V value) {
-      this.key = key;
-      this.value = value;
+  /**
+   * Removes at most maxEntries expired entries from the tree. Due entries are found
+   * through the expiry wheel, so no tree scan is needed. Writes already call this
+   * with a small batch; callers with long idle periods can call it on a timer.
+   * 
+   * @param int maxEntries - maximum number of expired entries to remove
+   * 
+   * @return int - number of entries removed
+   */
+  public int purgeExpired(int maxEntries) {
+    int purged = 0;
+    if (expiryWheel == null) {
+      return purged;
+    }
+    long now = clock.getAsLong();
+    
+    for (ExpiryWheel.Entry<K> entry : expiryWheel.poll(now, maxEntries)) {
+      // skip wheel entries for keys that were since removed or reinserted
+      Node<K, V> node = getNode(this.root, entry.key);
+      if (node != null && node.expiresAt() == entry.expiresAt && isExpired(node)) {
+        removeKnownKey(entry.key, ChangeEvent.Type.EXPIRE);
+        purged++;
+      }
+    }
+    return purged;
+  }
+
+  /**
+   * Purges a small batch of expired entries if an expiry tick has ended since
+   * the last sweep. Writes call this, so purging is spread over them while most
+   * writes only read the clock, and trees without a time to live not even that.
+   */
+  private void purgeIfDue() {
+    if (expiryWheel != null && expiryWheel.isDue(clock.getAsLong())) {
+      purgeExpired(PURGE_BATCH);
+    }
+  }
+
+  /**
+   * Returns true if the provided node has expired
+   * 
+   * @param Node node - node to check
+   * 
+   * @return boolean - true if node has expired, false if not
+   */
+  private boolean isExpired(Node<K, V> node) {
+    return node.expiresAt() != Long.MAX_VALUE && node.expiresAt() <= clock.getAsLong();
+  }
+
+  /**
+   * Removes a key that is known to be in the tree, rebalances and records the
+   * removal in the change feed
+   * 
+   * @param K key                  - key to remove
+   * @param ChangeEvent.Type type  - REMOVE or EXPIRE
+   */
+  private void removeKnownKey(K key, ChangeEvent.Type type) {
+    try {
+      root = remove(this.root, key);
+      numKeys--;
+      modCount++;
+      recordChange(type, key, takeRemovedNode().value);
+    } catch (KeyNotFoundException e) {
+      // callers only pass keys they just found in the tree
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Records a change in the change feed if it is enabled
+   * 
+   * @param ChangeEvent.Type type - kind of change
+   * @param K key                 - changed key
+   * @param V value               - new value, or removed value for removals
+   */
+  private void recordChange(ChangeEvent.Type type, K key, V value) {
+    if (changeFeed != null) {
+      changeFeed.append(type, key, value);
+    }
+    if (membershipFilter != null) {
+      if (type == ChangeEvent.Type.INSERT) {
+        membershipFilter.add(key);
+        if (numKeys > membershipFilter.expectedKeys()) {
+          // an overfull filter lets more misses through, so rebuild it twice as big
+          CountingBloomFilter grown = buildMembershipFilter(2 * numKeys);
+          grown.inheritStats(membershipFilter);
+          membershipFilter = grown;
+        }
+      } else if (type != ChangeEvent.Type.UPDATE) {
+        membershipFilter.remove(key);
+      }
+    }
+    for (SecondaryIndex<?, K, V> index : indexes) {
+      if (type == ChangeEvent.Type.INSERT) {
+        index.add(key, value);
+      } else if (type != ChangeEvent.Type.UPDATE) {
+        index.remove(key, value);
+      }
+    }
+    if (auditInterval > 0 && ++changesSinceAudit >= auditInterval) {
+      changesSinceAudit = 0;
+      try {
+        auditPath();
+        passedAudits++;
+      } catch (IllegalStateException e) {
+        auditListener.accept(e);
+      }
+    }
+  }
+
+
+  /**
+   * Starts recording inserts, updates and removals in a change feed that keeps
+   * the provided number of most recent changes. Calling this again replaces the
+   * feed and restarts sequence numbers.
+   * 
+   * @param int capacity - number of changes kept
+   * 
+   * @throws IllegalArgumentException - if capacity is not positive
+   */
+  public void enableChangeFeed(int capacity) {
+    this.changeFeed = new ChangeFeed<K, V>(capacity);
+  }
+
+  /**
+   * Returns the change feed
+   * 
+   * @return ChangeFeed<K, V> - change feed, or null if it is not enabled
+   */
+  public ChangeFeed<K, V> getChangeFeed() {
+    return this.changeFeed;
+  }
+
+  /**
+   * Adds a secondary index on an attribute derived from each value. The index
+   * is built from the keys already in the tree and is then kept in sync on every
+   * insert, remove, expiry and cursor update, which each cost an extra O(log n)
+   * per index.
+   * 
+   * @param Function attribute - derives the indexed attribute from a value,
+   *                             must give the same result for the same value
+   * 
+   * @return SecondaryIndex<A, K, V> - the new index
+   */
+  public <A extends Comparable<A>> SecondaryIndex<A, K, V> addIndex(
+      Function<? super V, ? extends A> attribute) {
+    SecondaryIndex<A, K, V> index = new SecondaryIndex<A, K, V>(attribute);
+    addToIndex(this.root, index);
+    indexes.add(index);
+    return index;
+  }
+
+  /**
+   * Recursive helper for addIndex()
+   * 
+   * @param Node node            - current node
+   * @param SecondaryIndex index - index being built
+   */
+  private void addToIndex(Node<K, V> node, SecondaryIndex<?, K, V> index) {
+    if (node == null) {
+      return;
+    }
+    addToIndex(node.left, index);
+    index.add(node.key, node.value);
+    addToIndex(node.right, index);
+  }
+
+  /**
+   * Returns an iterator over the entries with keys in [from, to), in key order.
+   * Finding the first entry is O(log n) and every step after it is amortized
+   * O(1), so only the entries in range are visited. Expired keys are skipped.
+   * 
+   * The iterator is backed by a cursor, so any change to the tree made while it
+   * is in use makes it throw ConcurrentModificationException.
+   * 
+   * @param K from - smallest key included
+   * @param K to   - smallest key excluded, null for no upper bound
+   * 
+   * @return Iterator<Map.Entry<K, V>> - entries in range
+   * 
+   * @throws IllegalNullKeyException - if from is null
+   */
+  public Iterator<Map.Entry<K, V>> range(K from, K to) throws IllegalNullKeyException {
+    Cursor cursor = cursor();
+    cursor.seek(from);
+    return new Iterator<Map.Entry<K, V>>() {
+      public boolean hasNext() {
+        return cursor.isValid() && (to == null || cursor.key().compareTo(to) < 0);
+      }
+
+      public Map.Entry<K, V> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Map.Entry<K, V> entry = new AbstractMap.SimpleImmutableEntry<K, V>(cursor.key(), cursor.value());
+        cursor.next();
+        return entry;
+      }
+    };
+  }
+
+  /**
+   * Returns an iterator over the entries whose keys start with the provided
+   * prefix, in key order. The prefix is turned into the key range [prefix, end)
+   * where end is the smallest string greater than every string with the prefix,
+   * so this costs O(log n + k) for k matches instead of a scan of every key.
+   * 
+   * @param BALST tree    - tree with string keys
+   * @param String prefix - prefix to match, "" for every key
+   * 
+   * @return Iterator<Map.Entry<String, V>> - entries with the prefix
+   * 
+   * @throws IllegalNullKeyException - if prefix is null
+   */
+  public static <V> Iterator<Map.Entry<String, V>> prefixRange(BALST<String, V> tree, String prefix)
+      throws IllegalNullKeyException {
+    if (prefix == null) {
+      throw new IllegalNullKeyException();
+    }
+    return tree.range(prefix, prefixEnd(prefix));
+  }
+
+  /**
+   * Returns the smallest string greater than every string starting with the
+   * prefix. Strings compare by UTF-16 code unit, so this is the prefix with its
+   * last code unit incremented, after dropping trailing code units that are
+   * already the largest possible.
+   * 
+   * @param String prefix - prefix to bound
+   * 
+   * @return String - exclusive upper bound, null if there is none
+   */
+  private static String prefixEnd(String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return null;
+    }
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+
+  /**
+   * Starts keeping the provided aggregate of the values in every subtree, so
+   * aggregate() can answer range queries in O(log n). Computing the aggregates
+   * for the keys already in the tree takes O(n). Only one aggregator is kept at
+   * a time, enabling another replaces it.
+   * 
+   * @param Aggregator aggregator - monoid to aggregate values with
+   */
+  public void enableAggregate(Aggregator<? super V, ?> aggregator) {
+    enableAggregate(aggregator, false);
+  }
+
+  /**
+   * Like enableAggregate(), but aggregates the keys in every subtree instead of
+   * their values, for trees whose keys carry the data to aggregate
+   * 
+   * @param Aggregator aggregator - monoid to aggregate keys with
+   */
+  public void enableKeyAggregate(Aggregator<? super K, ?> aggregator) {
+    enableAggregate(aggregator, true);
+  }
+
+  /**
+   * Shared helper for enableAggregate() and enableKeyAggregate()
+   * 
+   * @param Aggregator aggregator - monoid to aggregate with
+   * @param boolean keys          - true to aggregate keys, false for values
+   */
+  private void enableAggregate(Aggregator<?, ?> aggregator, boolean keys) {
+    this.aggregator = aggregator;
+    this.aggregateKeys = keys;
+    this.root = recompute(this.root);
+    modCount++;
+  }
+
+  /**
+   * Returns the aggregate of the values of all keys between lo and hi inclusive,
+   * in O(log n). Expired keys are included until they are purged.
+   * 
+   * @param K lo                  - smallest key in range
+   * @param K hi                  - largest key in range
+   * @param Aggregator aggregator - aggregator passed to enableAggregate() or
+   *                                enableKeyAggregate()
+   * 
+   * @return A - aggregate of the values in range, the identity if there are none
+   * 
+   * @throws IllegalNullKeyException  - if lo or hi is null
+   * @throws IllegalArgumentException - if aggregator is not the enabled aggregator
+   */
+  @SuppressWarnings("unchecked")
+  public <A> A aggregate(K lo, K hi, Aggregator<?, A> aggregator)
+      throws IllegalNullKeyException {
+    if (lo == null || hi == null) {
+      throw new IllegalNullKeyException();
+    }
+    if (aggregator == null || aggregator != this.aggregator) {
+      throw new IllegalArgumentException("aggregator is not enabled on this tree");
+    }
+    return (A) aggregate(this.root, lo, hi);
+  }
+
+  /**
+   * Recursive helper for aggregate(). Finds the highest node in range and then
+   * follows one path down each side of it.
+   * 
+   * @param Node node - current node
+   * @param K lo      - smallest key in range
+   * @param K hi      - largest key in range
+   * 
+   * @return Object - aggregate of the values in range in this subtree
+   */
+  private Object aggregate(Node<K, V> node, K lo, K hi) {
+    Aggregator<Object, Object> aggregator = aggregator();
+    if (node == null) {
+      return aggregator.identity();
+    }
+    
+    if (node.key.compareTo(lo) < 0) { // whole range is to the right
+      return aggregate(node.right, lo, hi);
+    } else if (node.key.compareTo(hi) > 0) { // whole range is to the left
+      return aggregate(node.left, lo, hi);
+    }
+    Object left = aggregateFrom(node.left, lo);
+    Object right = aggregateTo(node.right, hi);
+    return aggregator.combine(aggregator.combine(left, lift(node)), right);
+  }
+
+  /**
+   * Returns the aggregate of the values of keys greater than or equal to lo
+   * 
+   * @param Node node - current node
+   * @param K lo      - smallest key in range
+   * 
+   * @return Object - aggregate of the values in range in this subtree
+   */
+  private Object aggregateFrom(Node<K, V> node, K lo) {
+    Aggregator<Object, Object> aggregator = aggregator();
+    if (node == null) {
+      return aggregator.identity();
+    }
+    
+    if (node.key.compareTo(lo) < 0) {
+      return aggregateFrom(node.right, lo);
+    }
+    Object left = aggregateFrom(node.left, lo);
+    return aggregator.combine(aggregator.combine(left, lift(node)),
+        aggregateOf(node.right));
+  }
+
+  /**
+   * Returns the aggregate of the values of keys less than or equal to hi
+   * 
+   * @param Node node - current node
+   * @param K hi      - largest key in range
+   * 
+   * @return Object - aggregate of the values in range in this subtree
+   */
+  private Object aggregateTo(Node<K, V> node, K hi) {
+    Aggregator<Object, Object> aggregator = aggregator();
+    if (node == null) {
+      return aggregator.identity();
+    }
+    
+    if (node.key.compareTo(hi) > 0) {
+      return aggregateTo(node.left, hi);
+    }
+    Object right = aggregateTo(node.right, hi);
+    return aggregator.combine(aggregator.combine(aggregateOf(node.left),
+        lift(node)), right);
+  }
+
+  /**
+   * Visits in key order every entry whose own aggregate passes mayMatch, until a
+   * key passes isPastEnd. Subtrees whose aggregate does not pass mayMatch are
+   * skipped whole, so mayMatch must never pass a value when it fails the
+   * aggregate of a subtree holding that value. Expired keys are not visited.
+   * 
+   * @param Aggregator aggregator - aggregator passed to enableAggregate() or
+   *                                enableKeyAggregate()
+   * @param Predicate mayMatch    - true if a subtree or entry may hold a match
+   * @param Predicate isPastEnd   - true for keys after the last one of interest,
+   *                                must stay true for all larger keys
+   * @param BiConsumer visitor    - called with the key and value of every match
+   * 
+   * @throws IllegalArgumentException - if aggregator is not the enabled aggregator
+   */
+  @SuppressWarnings("unchecked")
+  public <A> void search(Aggregator<?, A> aggregator, Predicate<? super A> mayMatch,
+      Predicate<? super K> isPastEnd, BiConsumer<? super K, ? super V> visitor) {
+    if (aggregator == null || aggregator != this.aggregator) {
+      throw new IllegalArgumentException("aggregator is not enabled on this tree");
+    }
+    search(this.root, (Predicate<Object>) mayMatch, isPastEnd, visitor);
+  }
+
+  /**
+   * Recursive helper for search()
+   * 
+   * @param Node node           - current node
+   * @param Predicate mayMatch  - true if a subtree or entry may hold a match
+   * @param Predicate isPastEnd - true for keys after the last one of interest
+   * @param BiConsumer visitor  - called with the key and value of every match
+   * 
+   * @return boolean - true if a key past the end was reached
+   */
+  private boolean search(Node<K, V> node, Predicate<Object> mayMatch, Predicate<? super K> isPastEnd,
+      BiConsumer<? super K, ? super V> visitor) {
+    if (node == null || !mayMatch.test(node.aggregate())) {
+      return false;
+    }
+    if (search(node.left, mayMatch, isPastEnd, visitor) || isPastEnd.test(node.key)) {
+      return true;
+    }
+    if (!isExpired(node) && mayMatch.test(lift(node))) {
+      visitor.accept(node.key, node.value);
+    }
+    return search(node.right, mayMatch, isPastEnd, visitor);
+  }
+
+  /**
+   * Starts keeping an order independent hash of the entries in every subtree,
+   * which contentHash(), hashBetween() and diff() need. Values are hashed with
+   * their hashCode(). Computing the hashes for the keys already in the tree takes
+   * O(n), and every later write hashes the entries of the nodes it touches.
+   * 
+   * Entries are only told apart by their hashes, and 32 bit hashCode() values
+   * collide easily, so diff() misses a changed value whose hashCode() did not
+   * change. Use enableContentHash(ToLongFunction) to hash values with 64 bits.
+   */
+  public void enableContentHash() {
+    enableContentHash(value -> Objects.hashCode(value));
+  }
+
+  /**
+   * Like enableContentHash(), but hashes values with the provided function. Keys
+   * are hashed from their hashCode() either way. Replicas compared with diff()
+   * must use the same function.
+   * 
+   * Hashes are computed when an entry is written, so values must not be changed
+   * in place once hashing is on. A value changed in place leaves a stale hash
+   * behind, which diff() trusts and validate() reports.
+   * 
+   * @param ToLongFunction valueHasher - returns a hash of a value by its content
+   */
+  public void enableContentHash(ToLongFunction<? super V> valueHasher) {
+    this.valueHasher = valueHasher;
+    this.root = recompute(this.root);
+    modCount++;
+  }
+
+  /**
+   * Returns an order independent hash of every entry in the tree in O(1). Trees
+   * holding the same entries have the same hash whatever their shape and the
+   * order the entries were inserted in, so replicas can be compared without
+   * listing their keys. Keys must hash by content. Expired keys count until they
+   * are purged.
+   * 
+   * @return long - content hash, 0 if the tree is empty
+   * 
+   * @throws IllegalStateException - if the content hash is not enabled
+   */
+  public long contentHash() {
+    requireContentHash();
+    return hashOf(this.root);
+  }
+
+  /**
+   * Returns the content hash of the entries with keys strictly between lo and
+   * hi in O(log n). Hashes of adjacent ranges add up, so for lo < k < hi the
+   * hash of the entry of k is hashBetween(lo, hi) - hashBetween(lo, k) -
+   * hashBetween(k, hi), or 0 if k is not in the tree.
+   * 
+   * @param K lo - excluded lower bound, null for none
+   * @param K hi - excluded upper bound, null for none
+   * 
+   * @return long - content hash of the range, 0 if it holds no keys
+   * 
+   * @throws IllegalStateException - if the content hash is not enabled
+   */
+  public long hashBetween(K lo, K hi) {
+    requireContentHash();
+    return hashBetween(this.root, lo, hi);
+  }
+
+  /**
+   * Recursive helper for hashBetween(). Finds the highest node in range and then
+   * follows one path down each side of it.
+   * 
+   * @param Node node - current node
+   * @param K lo      - excluded lower bound, null for none
+   * @param K hi      - excluded upper bound, null for none
+   * 
+   * @return long - content hash of the range in this subtree
+   */
+  private long hashBetween(Node<K, V> node, K lo, K hi) {
+    if (node == null) {
+      return 0;
+    }
+    
+    if (lo != null && node.key.compareTo(lo) <= 0) { // whole range is to the right
+      return hashBetween(node.right, lo, hi);
+    } else if (hi != null && node.key.compareTo(hi) >= 0) { // whole range is to the left
+      return hashBetween(node.left, lo, hi);
+    }
+    return hashAbove(node.left, lo) + entryHash(node) + hashBelow(node.right, hi);
+  }
+
+  /**
+   * Returns the content hash of the entries with keys greater than lo
+   * 
+   * @param Node node - current node
+   * @param K lo      - excluded lower bound, null for none
+   * 
+   * @return long - content hash of the range in this subtree
+   */
+  private long hashAbove(Node<K, V> node, K lo) {
+    if (node == null || lo == null) {
+      return hashOf(node);
+    }
+    
+    if (node.key.compareTo(lo) <= 0) {
+      return hashAbove(node.right, lo);
+    }
+    return hashAbove(node.left, lo) + entryHash(node) + hashOf(node.right);
+  }
+
+  /**
+   * Returns the content hash of the entries with keys less than hi
+   * 
+   * @param Node node - current node
+   * @param K hi      - excluded upper bound, null for none
+   * 
+   * @return long - content hash of the range in this subtree
+   */
+  private long hashBelow(Node<K, V> node, K hi) {
+    if (node == null || hi == null) {
+      return hashOf(node);
+    }
+    
+    if (node.key.compareTo(hi) >= 0) {
+      return hashBelow(node.left, hi);
+    }
+    return hashOf(node.left) + entryHash(node) + hashBelow(node.right, hi);
+  }
+
+  /**
+   * Finds where this tree and a replica differ. Starting from the root, the
+   * content hash of every subtree is compared with the replica's hash of the
+   * same key range, and only subtrees whose hashes differ are descended into.
+   * Finding d differences thus asks the replica for O(d log n) range hashes,
+   * and trees that agree cost a single query. The replica answers with its own
+   * hashBetween(), locally as other::hashBetween or over the network.
+   * 
+   * The tree must not change while the diff runs.
+   * 
+   * @param ToLongBiFunction replica - returns the replica's hashBetween(lo, hi)
+   * 
+   * @return TreeDiff<K> - differing keys of this tree and ranges of keys it lacks
+   * 
+   * @throws IllegalStateException - if the content hash is not enabled
+   */
+  public TreeDiff<K> diff(ToLongBiFunction<? super K, ? super K> replica) {
+    requireContentHash();
+    TreeDiff<K> diff = new TreeDiff<K>();
+    diff.countReplicaQuery();
+    diff(this.root, null, null, replica.applyAsLong(null, null), replica, diff);
+    return diff;
+  }
+
+  /**
+   * Recursive helper for diff()
+   * 
+   * @param Node node                - current node
+   * @param K lo                     - excluded lower bound of keys in the subtree, null if none
+   * @param K hi                     - excluded upper bound of keys in the subtree, null if none
+   * @param long replicaHash         - replica's hash of the range (lo, hi)
+   * @param ToLongBiFunction replica - returns the replica's hashBetween(lo, hi)
+   * @param TreeDiff diff            - differences found so far
+   */
+  private void diff(Node<K, V> node, K lo, K hi, long replicaHash,
+      ToLongBiFunction<? super K, ? super K> replica, TreeDiff<K> diff) {
+    if (hashOf(node) == replicaHash) {
+      return;
+    }
+    if (node == null) {
+      diff.addMissingRange(lo, hi);
+      return;
+    }
+    
+    long replicaLeft = replica.applyAsLong(lo, node.key);
+    long replicaRight = replica.applyAsLong(node.key, hi);
+    diff.countReplicaQuery();
+    diff.countReplicaQuery();
+    
+    diff(node.left, lo, node.key, replicaLeft, replica, diff);
+    // what is left of the replica's hash after both sides is the hash of its entry of this key
+    if (replicaHash - replicaLeft - replicaRight != entryHash(node)) {
+      diff.addDifferingKey(node.key);
+    }
+    diff(node.right, node.key, hi, replicaRight, replica, diff);
+  }
+
+  /**
+   * Throws IllegalStateException unless the content hash is enabled
+   */
+  private void requireContentHash() {
+    if (valueHasher == null) {
+      throw new IllegalStateException("content hash is not enabled on this tree");
+    }
+  }
+
+  /**
+   * Rebuilds every node, children first, after the content hash or an aggregate
+   * was enabled. Nodes only carry the fields of the features enabled when they
+   * were created, so each is replaced by a node of the new layout.
+   * 
+   * @param Node node - current node
+   * 
+   * @return Node - rebuilt node, brought up to date
+   */
+  private Node<K, V> recompute(Node<K, V> node) {
+    if (node == null) {
+      return null;
+    }
+    Node<K, V> left = recompute(node.left);
+    Node<K, V> right = recompute(node.right);
+    
+    // the front cache must not hand out the node being replaced
+    if (frontCache != null) {
+      frontCache.invalidate(node.key);
+    }
+    Node<K, V> rebuilt = newNode(node.key, node.value, node.expiresAt());
+    rebuilt.left = left;
+    rebuilt.right = right;
+    update(rebuilt);
+    return rebuilt;
+  }
+
+  /**
+   * Creates a node of the current epoch with only the fields the tree needs:
+   * an expiry time if the entry has one, a content hash and an aggregate if
+   * they are enabled
+   * 
+   * @param K key         - key of the entry
+   * @param V value       - value of the entry
+   * @param long expiresAt - expiry time in milliseconds, Long.MAX_VALUE if none
+   * 
+   * @return Node - new node, its height, hash and aggregate not yet computed
+   */
+  private Node<K, V> newNode(K key, V value, long expiresAt) {
+    boolean expiring = expiresAt != Long.MAX_VALUE;
+    Node<K, V> node;
+    if (valueHasher != null && aggregator != null) {
+      node = expiring ? new ExpiringHashedAggregateNode<K, V>(key, value, expiresAt)
+          : new HashedAggregateNode<K, V>(key, value);
+    } else if (valueHasher != null) {
+      node = expiring ? new ExpiringHashedNode<K, V>(key, value, expiresAt)
+          : new HashedNode<K, V>(key, value);
+    } else if (aggregator != null) {
+      node = expiring ? new ExpiringAggregateNode<K, V>(key, value, expiresAt)
+          : new AggregateNode<K, V>(key, value);
+    } else {
+      node = expiring ? new ExpiringNode<K, V>(key, value, expiresAt) : new Node<K, V>(key, value);
+    }
+    node.version = epoch;
+    return node;
+  }
+
+  /**
+   * Recomputes the height, content hash and aggregate of a node after its
+   * children changed. The node must already be mutable and its children up to date.
+   * 
+   * @param Node node - node to update
+   */
+  private void update(Node<K, V> node) {
+    node.height = (byte) (1 + Math.max(getHeight(node.left), getHeight(node.right)));
+    updateHash(node);
+    updateAggregate(node);
+  }
+
+  /**
+   * Recomputes the content hash of a node from its entry and its children's
+   * hashes, if the content hash is enabled. The node must already be mutable.
+   * 
+   * @param Node node - node to update
+   */
+  private void updateHash(Node<K, V> node) {
+    if (valueHasher != null) {
+      node.setHash(hashOf(node.left) + entryHash(node) + hashOf(node.right));
+    }
+  }
+
+  /**
+   * Returns the content hash of a subtree
+   * 
+   * @param Node node - root of subtree
+   * 
+   * @return long - hash of the subtree, 0 if it is empty
+   */
+  private long hashOf(Node<K, V> node) {
+    return node == null ? 0 : node.hash();
+  }
+
+  /**
+   * Returns the hash of the entry of a node alone. Subtree hashes are sums of
+   * these, so they do not depend on the shape of the tree.
+   * 
+   * @param Node node - node to hash
+   * 
+   * @return long - hash of the key and value
+   */
+  private long entryHash(Node<K, V> node) {
+    return BloomFilter.mix(BloomFilter.hash(node.key) ^ valueHasher.applyAsLong(node.value));
+  }
+
+  /**
+   * Recomputes the aggregate of a node from its entry and its children's
+   * aggregates. The node must already be mutable.
+   * 
+   * @param Node node - node to update
+   */
+  private void updateAggregate(Node<K, V> node) {
+    Aggregator<Object, Object> aggregator = aggregator();
+    if (aggregator != null) {
+      node.setAggregate(aggregator.combine(aggregator.combine(aggregateOf(node.left),
+          lift(node)), aggregateOf(node.right)));
+    }
+  }
+
+  /**
+   * Returns the aggregate of a subtree
+   * 
+   * @param Node node - root of subtree
+   * 
+   * @return Object - aggregate of the subtree, the identity if it is empty
+   */
+  private Object aggregateOf(Node<K, V> node) {
+    return node == null ? aggregator().identity() : node.aggregate();
+  }
+
+  /**
+   * Returns the enabled aggregator with its types erased. Aggregates are only
+   * ever produced by and passed back to the same aggregator, so this is safe.
+   * 
+   * @return Aggregator<Object, Object> - enabled aggregator or null
+   */
+  @SuppressWarnings("unchecked")
+  private Aggregator<Object, Object> aggregator() {
+    return (Aggregator<Object, Object>) this.aggregator;
+  }
+
+  /**
+   * Returns the aggregate of the entry of a single node
+   * 
+   * @param Node node - node to lift
+   * 
+   * @return Object - aggregate of the key or value of the node
+   */
+  private Object lift(Node<K, V> node) {
+    return aggregator().lift(aggregateKeys ? node.key : node.value);
+  }
+
+  /**
+   * Return number of keys in AVL tree. Expired keys are counted until they
+   * are purged.
+   * 
+   * @return int - number of keys in the BST
+   */
+  @Override
+  public int numKeys() {
+    return this.numKeys;
+  }
+
+  /**
+   * Checks every structural invariant of the AVL tree in a single O(n) pass and
+   * returns its shape. Checked are key order, cached heights, balance factors,
+   * numKeys, cached content hashes and aggregates if enabled, and that nodes
+   * changed since the last snapshot only hang below other such nodes.
+   * 
+   * @return ShapeReport - depth histogram and average path length
+   * 
+   * @throws IllegalStateException - describing the first broken invariant found
+   */
+  public ShapeReport validate() {
+    ArrayList<Integer> depthCounts = new ArrayList<Integer>();
+    validate(this.root, null, null, 0, true, depthCounts);
+
+    int[] depthHistogram = new int[depthCounts.size()];
+    int count = 0;
+    for (int depth = 0; depth < depthHistogram.length; depth++) {
+      depthHistogram[depth] = depthCounts.get(depth);
+      count += depthHistogram[depth];
+    }
+    if (count != numKeys) {
+      throw new IllegalStateException("numKeys is " + numKeys + " but the tree holds " + count);
+    }
+    return new ShapeReport(depthHistogram);
+  }
+
+  /**
+   * Recursive helper for validate()
+   * 
+   * @param Node node               - current node
+   * @param K lower                 - exclusive lower bound of keys in the subtree, null if none
+   * @param K upper                 - exclusive upper bound of keys in the subtree, null if none
+   * @param int depth               - depth of the node, 0 for the root
+   * @param boolean parentIsCurrent - true if the parent was changed since the last snapshot
+   * @param ArrayList depthCounts   - number of keys found at each depth so far
+   * 
+   * @return int - actual height of the subtree
+   * 
+   * @throws IllegalStateException - describing the first broken invariant found
+   */
+  private int validate(Node<K, V> node, K lower, K upper, int depth, boolean parentIsCurrent,
+      ArrayList<Integer> depthCounts) {
+    if (node == null) {
+      return 0;
+    }
+    validatePlacement(node, lower, upper, parentIsCurrent);
+
+    if (depthCounts.size() == depth) {
+      depthCounts.add(0);
+    }
+    depthCounts.set(depth, depthCounts.get(depth) + 1);
+
+    boolean isCurrent = node.version == epoch;
+    int leftHeight = validate(node.left, lower, node.key, depth + 1, isCurrent, depthCounts);
+    int rightHeight = validate(node.right, node.key, upper, depth + 1, isCurrent, depthCounts);
+    validateCaches(node, leftHeight, rightHeight);
+    return 1 + Math.max(leftHeight, rightHeight);
+  }
+
+  /**
+   * Checks that a node lies between the keys of its ancestors, and that it was
+   * not changed since the last snapshot unless its parent was too
+   * 
+   * @param Node node               - node to check
+   * @param K lower                 - exclusive lower bound of its key, null if none
+   * @param K upper                 - exclusive upper bound of its key, null if none
+   * @param boolean parentIsCurrent - true if the parent was changed since the last snapshot
+   * 
+   * @throws IllegalStateException - describing the broken invariant
+   */
+  private void validatePlacement(Node<K, V> node, K lower, K upper, boolean parentIsCurrent) {
+    if ((lower != null && node.key.compareTo(lower) <= 0)
+        || (upper != null && node.key.compareTo(upper) >= 0)) {
+      throw new IllegalStateException("key " + node.key + " is out of order, expected between "
+          + lower + " and " + upper);
+    }
+    if (node.version == epoch && !parentIsCurrent) {
+      throw new IllegalStateException("key " + node.key + " was changed in place under a node "
+          + "that a snapshot may share");
+    }
+  }
+
+  /**
+   * Checks the cached height, balance factor, content hash and aggregate of a
+   * node against its children
+   * 
+   * @param Node node       - node to check
+   * @param int leftHeight  - height of the left subtree
+   * @param int rightHeight - height of the right subtree
+   * 
+   * @throws IllegalStateException - describing the first broken invariant found
+   */
+  private void validateCaches(Node<K, V> node, int leftHeight, int rightHeight) {
+    int height = 1 + Math.max(leftHeight, rightHeight);
+    if (node.height != height) {
+      throw new IllegalStateException("key " + node.key + " caches height " + node.height
+          + " but has height " + height);
+    }
+    if (Math.abs(leftHeight - rightHeight) > 1) {
+      throw new IllegalStateException("key " + node.key + " has balance factor "
+          + (leftHeight - rightHeight));
+    }
+    if (valueHasher != null
+        && node.hash() != hashOf(node.left) + entryHash(node) + hashOf(node.right)) {
+      throw new IllegalStateException("key " + node.key + " caches a stale content hash");
+    }
+    Aggregator<Object, Object> aggregator = aggregator();
+    if (aggregator != null && !Objects.equals(node.aggregate(), aggregator.combine(
+        aggregator.combine(aggregateOf(node.left), lift(node)),
+        aggregateOf(node.right)))) {
+      throw new IllegalStateException("key " + node.key + " caches a stale aggregate");
+    }
+  }
+
+  /**
+   * Checks every node on one random path from the root to a leaf, in O(log n).
+   * The invariants of each node are checked against the cached heights, hashes
+   * and aggregates of its children, which the next node on the path is checked
+   * against in turn.
+   * 
+   * @throws IllegalStateException - describing the first broken invariant found
+   */
+  private void auditPath() {
+    Node<K, V> node = this.root;
+    K lower = null;
+    K upper = null;
+    boolean parentIsCurrent = true;
+    while (node != null) {
+      validatePlacement(node, lower, upper, parentIsCurrent);
+      validateCaches(node, getHeight(node.left), getHeight(node.right));
+      
+      parentIsCurrent = node.version == epoch;
+      if (node.right == null || (node.left != null && ThreadLocalRandom.current().nextBoolean())) {
+        upper = node.key;
+        node = node.left;
+      } else {
+        lower = node.key;
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * Audits one random path from the root to a leaf after every interval
+   * changes, checking the nodes on it like validate() does. An audit costs
+   * O(log n), so a production tree audits itself without ever stalling a write
+   * on a pass over the whole tree, and successive audits sample every part of
+   * it. An audit that fails passes its exception to the listener instead of
+   * failing the change that triggered it. Calling this again replaces the
+   * interval and listener.
+   * 
+   * @param int interval         - number of changes between audits
+   * @param Consumer onViolation - called with the exception of every failed audit
+   * 
+   * @throws IllegalArgumentException - if interval is not positive or onViolation is null
+   */
+  public void enableAudit(int interval, Consumer<? super IllegalStateException> onViolation) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("interval must be positive");
+    }
+    if (onViolation == null) {
+      throw new IllegalArgumentException("onViolation must not be null");
+    }
+    this.auditInterval = interval;
+    this.auditListener = onViolation;
+    this.changesSinceAudit = 0;
+  }
+
+  /**
+   * Stops auditing
+   */
+  public void disableAudit() {
+    this.auditInterval = 0;
+    this.auditListener = null;
+  }
+
+  /**
+   * Return number of audits that passed
+   * 
+   * @return long - number of passed audits
+   */
+  public long getPassedAudits() {
+    return this.passedAudits;
+  }
+
+  /**
+   * Returns an estimate of the heap used by the nodes of the AVL tree, not
+   * counting keys and values. See memoryFootprint(ToLongFunction, ToLongFunction).
+   * 
+   * @return long - estimated size in bytes
+   */
+  public long memoryFootprint() {
+    return memoryFootprint(key -> 0, value -> 0);
+  }
+
+  /**
+   * Returns an estimate of the heap used by the AVL tree: the fixed size of
+   * every node plus the size the provided sizers give for its key and value.
+   * Sizers should return 0 for objects that are shared with the rest of the
+   * program. Aggregates, the front cache, the expiry wheel and nodes kept alive
+   * only by snapshots are not counted. Walks every node, so this is O(n).
+   * 
+   * @param ToLongFunction keySizer   - returns heap size in bytes of a key
+   * @param ToLongFunction valueSizer - returns heap size in bytes of a value
+   * 
+   * @return long - estimated size in bytes
+   */
+  public long memoryFootprint(ToLongFunction<? super K> keySizer,
+      ToLongFunction<? super V> valueSizer) {
+    return memoryFootprint(this.root, keySizer, valueSizer);
+  }
+
+  /**
+   * Recursive helper for memoryFootprint()
+   * 
+   * @param Node node                 - current node
+   * @param ToLongFunction keySizer   - returns heap size in bytes of a key
+   * @param ToLongFunction valueSizer - returns heap size in bytes of a value
+   * 
+   * @return long - estimated size in bytes of the subtree
+   */
+  private long memoryFootprint(Node<K, V> node, ToLongFunction<? super K> keySizer,
+      ToLongFunction<? super V> valueSizer) {
+    if (node == null) {
+      return 0;
+    }
+    return node.sizeInBytes() + keySizer.applyAsLong(node.key) + valueSizer.applyAsLong(node.value)
+        + memoryFootprint(node.left, keySizer, valueSizer)
+        + memoryFootprint(node.right, keySizer, valueSizer);
+  }
+
+  /**
+   * Returns a new cursor that is not positioned on any key. Use first(), last()
+   * or seek() to position it.
+   * 
+   * @return Cursor - cursor over this AVL tree
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Returns a read-only view of the AVL tree as it is now, in amortized O(1). Later changes
+   * to the tree copy the nodes they touch instead of changing nodes the snapshot
+   * can see, so the snapshot never changes and never blocks writers. Old node
+   * versions are garbage collected once no snapshot refers to them.
+   * 
+   * A snapshot may be read from other threads once handed to them safely, for
+   * example through an executor or a concurrent queue, while this thread keeps
+   * writing to the tree.
+   * 
+   * @return Snapshot - view of the current contents
+   */
+  public Snapshot snapshot() {
+    long sequence = changeFeed == null ? 0 : changeFeed.getLatestSequence();
+    Snapshot snapshot = new Snapshot(this.root, this.numKeys, sequence);
+    epoch++;
+    if (epoch == SHARED) {
+      // node versions are about to repeat, so every node of an earlier epoch is
+      // marked shared for good first. Each node is marked at most once.
+      markShared(this.root);
+      epoch++;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Marks every node of the subtree as shared with a snapshot. The children of
+   * a shared node are shared too, so marking stops at the first one.
+   * 
+   * @param Node node - root of the subtree
+   */
+  private void markShared(Node<K, V> node) {
+    if (node == null || node.version == SHARED) {
+      return;
+    }
+    node.version = SHARED;
+    markShared(node.left);
+    markShared(node.right);
+  }
+
+  /**
+   * Prints the AVL tree 
+   */
+  @Override
+  public void print() {
+    print(this.root, 0);
+  }
+
+  /**
+   * Recursive helper for print()
+   * 
+   * @param Node node - current node
+   * @param int space - spacing for printing tree
+   */
+  private void print(Node<K, V> node, int space) {
+    int spaceCount = 5;
+    
+    // end if we reach null spot
+    if (node == null) {
+      return;
+    }
+    
+    // increase distance between levels
+    space += spaceCount;  
+  
+    // recurse on right child
+    print(node.right, space);  
+  
+    // Print current node after space  
+    System.out.print("\n");  
+    for (int i = spaceCount; i < space; i++) {
+      System.out.print(" ");  
+    }
+    System.out.print(node.key + "\n");  
+  
+    // recurse on left child
+    print(node.left, space);  
+  }
+
+  /**
+   * Stateful position in the AVL tree that remembers the path from the root to
+   * its current node. Stepping with next() and prev() is amortized O(1).
+   * seek() climbs only as far as the lowest ancestor whose subtree can hold the
+   * key and descends from there, so it costs the length of that detour. That is
+   * short when both keys sit in the same low subtree, but neighbouring keys on
+   * either side of a high node still cost O(log n). A cursor that moved past
+   * either end seeks from the root. remove() fixes up the tree along the path
+   * the cursor holds instead of searching from the root again. Expired keys are
+   * skipped.
+   * 
+   * Any structural change made other than through this cursor, including lazy
+   * removal of expired keys, invalidates it and its next use throws
+   * ConcurrentModificationException.
+   */
+  public class Cursor {
+    private final ArrayList<Node<K, V>> path = new ArrayList<Node<K, V>>(); // root to current node
+    private final ArrayList<K> lower = new ArrayList<K>(); // exclusive lower bound of each subtree
+    private final ArrayList<K> upper = new ArrayList<K>(); // exclusive upper bound of each subtree
+
+    private int expectedModCount = modCount;
+
+    private Cursor() {
+    }
+
+    /**
+     * Positions the cursor at the smallest key that is greater than or equal to
+     * the provided key.
+     * 
+     * @param K key - key to search for
+     * 
+     * @return boolean - true if the cursor is positioned at a key, false if no such key
+     * 
+     * @throws IllegalNullKeyException - if provided key is null
+     */
+    public boolean seek(K key) throws IllegalNullKeyException {
+      if (key == null) {
+        throw new IllegalNullKeyException();
+      }
+      checkForComodification();
+
+      // climb until the key falls inside the current subtree, the bounds of
+      // the root hold every key
+      while (!path.isEmpty() && !inBounds(path.size() - 1, key)) {
+        pop();
+      }
+      if (path.isEmpty()) {
+        if (root == null) {
+          return false;
+        }
+        push(root);
+      }
+
+      // descend from there like a normal search
+      int compare;
+      while (true) {
+        Node<K, V> node = top();
+        compare = key.compareTo(node.key);
+        if (compare < 0 && node.left != null) {
+          push(node.left);
+        } else if (compare > 0 && node.right != null) {
+          push(node.right);
+        } else {
+          break;
+        }
+      }
+
+      // search ended at the predecessor, so step to the successor
+      if (compare > 0) {
+        stepNext();
+      }
+      skipExpired(true);
+      return isValid();
+    }
+
+    /**
+     * Positions the cursor at the smallest key in the AVL tree
+     * 
+     * @return boolean - true if the cursor is positioned at a key, false if tree is empty
+     */
+    public boolean first() {
+      checkForComodification();
+      clear();
+      if (root != null) {
+        push(root);
+        descendLeft();
+      }
+      skipExpired(true);
+      return isValid();
+    }
+
+    /**
+     * Positions the cursor at the largest key in the AVL tree
+     * 
+     * @return boolean - true if the cursor is positioned at a key, false if tree is empty
+     */
+    public boolean last() {
+      checkForComodification();
+      clear();
+      if (root != null) {
+        push(root);
+        descendRight();
+      }
+      skipExpired(false);
+      return isValid();
+    }
+
+    /**
+     * Moves the cursor to the next key in order
+     * 
+     * @return boolean - true if the cursor is positioned at a key, false if it moved past the end
+     */
+    public boolean next() {
+      checkForComodification();
+      if (path.isEmpty()) {
+        return false;
+      }
+      stepNext();
+      skipExpired(true);
+      return isValid();
+    }
+
+    /**
+     * Moves the cursor to the previous key in order
+     * 
+     * @return boolean - true if the cursor is positioned at a key, false if it moved past the start
+     */
+    public boolean prev() {
+      checkForComodification();
+      if (path.isEmpty()) {
+        return false;
+      }
+      stepPrev();
+      skipExpired(false);
+      return isValid();
+    }
+
+    /**
+     * Returns true if the cursor is positioned at a key
+     * 
+     * @return boolean - true if positioned, false if not
+     */
+    public boolean isValid() {
+      return !path.isEmpty();
+    }
+
+    /**
+     * Returns key at the current position
+     * 
+     * @return K - current key
+     * 
+     * @throws NoSuchElementException - if the cursor is not positioned at a key
+     */
+    public K key() {
+      return current().key;
+    }
+
+    /**
+     * Returns value at the current position
+     * 
+     * @return V - current value
+     * 
+     * @throws NoSuchElementException - if the cursor is not positioned at a key
+     */
+    public V value() {
+      return current().value;
+    }
+
+    /**
+     * Replaces the value at the current position in place
+     * 
+     * @param V value - new value
+     * 
+     * @throws NoSuchElementException - if the cursor is not positioned at a key
+     */
+    public void setValue(V value) {
+      // the node may be shared with a snapshot, so copy the path down to it first
+      if (current().version != epoch) {
+        copyPath();
+      }
+      V oldValue = top().value;
+      top().value = value;
+      for (SecondaryIndex<?, K, V> index : indexes) {
+        index.remove(top().key, oldValue);
+        index.add(top().key, value);
+      }
+      
+      // ancestors of a node created since the last snapshot are never shared either
+      for (int i = path.size() - 1; i >= 0; i--) {
+        updateHash(path.get(i));
+        updateAggregate(path.get(i));
+      }
+      recordChange(ChangeEvent.Type.UPDATE, top().key, value);
+    }
+
+    /**
+     * Removes the key at the current position and moves the cursor to the next key.
+     * The tree is fixed up bottom up along the path the cursor already holds, and
+     * the cursor keeps the part of that path no rebalance rotated, so it only
+     * descends again below the highest rotation. A key with two children takes the
+     * entry of its successor, which is where the cursor ends up.
+     * 
+     * @return boolean - true if the cursor is positioned at a key, false if it moved past the end
+     * 
+     * @throws NoSuchElementException - if the cursor is not positioned at a key
+     */
+    public boolean remove() {
+      Node<K, V> target = current();
+      int targetIndex = path.size() - 1;
+
+      // find the key the cursor moves to before the path changes. With two
+      // children the successor's node is unlinked instead and its entry moves up.
+      K nextKey = null;
+      if (target.left != null && target.right != null) {
+        push(target.right);
+        descendLeft();
+        nextKey = top().key;
+      } else if (target.right != null) {
+        Node<K, V> node = target.right;
+        while (node.left != null) {
+          node = node.left;
+        }
+        nextKey = node.key;
+      } else {
+        for (int i = targetIndex - 1; i >= 0 && nextKey == null; i--) {
+          if (path.get(i).left == path.get(i + 1)) {
+            nextKey = path.get(i).key;
+          }
+        }
+      }
+      int unlinkedIndex = path.size() - 1;
+      Node<K, V> unlinked = top();
+      if (frontCache != null) {
+        frontCache.invalidate(target.key);
+        frontCache.invalidate(unlinked.key);
+      }
+
+      // relink and rebalance every ancestor of the unlinked node, bottom up
+      Node<K, V> child = unlinked.left != null ? unlinked.left : unlinked.right;
+      Node<K, V> below = unlinked;
+      int rotatedIndex = -1;
+      Node<K, V> rotated = null;
+      for (int i = unlinkedIndex - 1; i >= 0; i--) {
+        Node<K, V> original = path.get(i);
+        Node<K, V> node;
+        if (i == targetIndex) {
+          // the removed key's node takes the successor's entry
+          node = unlinked.copy();
+          node.version = epoch;
+          node.left = original.left;
+          node.right = original.right;
+        } else {
+          node = mutable(original);
+        }
+        if (original.left == below) {
+          node.left = child;
+        } else {
+          node.right = child;
+        }
+        update(node);
+        path.set(i, node);
+        child = rebalance(node);
+        if (child != node) {
+          rotatedIndex = i;
+          rotated = child;
+        }
+        below = original;
+      }
+      root = child;
+      numKeys--;
+      modCount++;
+      expectedModCount = modCount;
+      recordChange(ChangeEvent.Type.REMOVE, target.key, target.value);
+
+      // the path is still right above the removed node and the highest rotation
+      int keep = unlinkedIndex == targetIndex ? targetIndex : targetIndex + 1;
+      if (rotatedIndex >= 0 && rotatedIndex < keep) {
+        keep = rotatedIndex + 1;
+        path.set(rotatedIndex, rotated);
+      }
+      while (path.size() > keep) {
+        pop();
+      }
+      if (nextKey == null) {
+        clear();
+        return false;
+      }
+      try {
+        return seek(nextKey);
+      } catch (IllegalNullKeyException e) {
+        // key came from the tree so it is never null
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Returns node at the current position
+     * 
+     * @return Node - current node
+     * 
+     * @throws NoSuchElementException - if the cursor is not positioned at a key
+     */
+    private Node<K, V> current() {
+      checkForComodification();
+      if (path.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      return top();
+    }
+
+    /**
+     * Replaces every node on the path that may be shared with a snapshot by a copy.
+     * Other cursors still hold the originals, so this counts as a structural change.
+     */
+    private void copyPath() {
+      Node<K, V> parent = null;
+      for (int i = 0; i < path.size(); i++) {
+        Node<K, V> original = path.get(i);
+        Node<K, V> copy = mutable(original);
+        if (copy != original) {
+          if (parent == null) {
+            root = copy;
+          } else if (parent.left == original) {
+            parent.left = copy;
+          } else {
+            parent.right = copy;
+          }
+          path.set(i, copy);
+        }
+        parent = copy;
+      }
+      modCount++;
+      expectedModCount = modCount;
+    }
+
+    /**
+     * Moves to the in order successor, or past the end if there is none
+     */
+    private void stepNext() {
+      Node<K, V> node = top();
+      if (node.right != null) {
+        push(node.right);
+        descendLeft();
+        return;
+      }
+
+      // climb until we come up from a left child
+      Node<K, V> child = pop();
+      while (!path.isEmpty() && top().right == child) {
+        child = pop();
+      }
+    }
+
+    /**
+     * Moves to the in order predecessor, or past the start if there is none
+     */
+    private void stepPrev() {
+      Node<K, V> node = top();
+      if (node.left != null) {
+        push(node.left);
+        descendRight();
+        return;
+      }
+
+      // climb until we come up from a right child
+      Node<K, V> child = pop();
+      while (!path.isEmpty() && top().left == child) {
+        child = pop();
+      }
+    }
+
+    /**
+     * Steps over expired keys in the provided direction
+     * 
+     * @param boolean forward - true to step with next, false to step with prev
+     */
+    private void skipExpired(boolean forward) {
+      while (!path.isEmpty() && isExpired(top())) {
+        if (forward) {
+          stepNext();
+        } else {
+          stepPrev();
+        }
+      }
+    }
+
+    /**
+     * Follows left children from the current node to the smallest key in its subtree
+     */
+    private void descendLeft() {
+      while (top().left != null) {
+        push(top().left);
+      }
+    }
+
+    /**
+     * Follows right children from the current node to the largest key in its subtree
+     */
+    private void descendRight() {
+      while (top().right != null) {
+        push(top().right);
+      }
+    }
+
+    /**
+     * Returns true if the key belongs in the subtree at the provided path index
+     * 
+     * @param int index - index into the path
+     * @param K key     - key to check
+     * 
+     * @return boolean - true if the key is strictly between the subtree bounds
+     */
+    private boolean inBounds(int index, K key) {
+      K low = lower.get(index);
+      K high = upper.get(index);
+      return (low == null || key.compareTo(low) > 0) && (high == null || key.compareTo(high) < 0);
+    }
+
+    /**
+     * Pushes a child of the current node, or the root if the path is empty,
+     * along with the bounds of its subtree
+     * 
+     * @param Node node - node to push
+     */
+    private void push(Node<K, V> node) {
+      if (path.isEmpty()) {
+        lower.add(null);
+        upper.add(null);
+      } else {
+        int parent = path.size() - 1;
+        if (path.get(parent).left == node) {
+          lower.add(lower.get(parent));
+          upper.add(path.get(parent).key);
+        } else {
+          lower.add(path.get(parent).key);
+          upper.add(upper.get(parent));
+        }
+      }
+      path.add(node);
+    }
+
+    /**
+     * Pops the current node off the path
+     * 
+     * @return Node - popped node
+     */
+    private Node<K, V> pop() {
+      lower.remove(lower.size() - 1);
+      upper.remove(upper.size() - 1);
+      return path.remove(path.size() - 1);
+    }
+
+    /**
+     * Returns the current node
+     * 
+     * @return Node - last node on the path
+     */
+    private Node<K, V> top() {
+      return path.get(path.size() - 1);
+    }
+
+    /**
+     * Empties the path
+     */
+    private void clear() {
+      path.clear();
+      lower.clear();
+      upper.clear();
+    }
+
+    /**
+     * Throws ConcurrentModificationException if the tree changed structurally
+     * since this cursor last looked at it
+     */
+    private void checkForComodification() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  /**
+   * Read-only view of the AVL tree at the time snapshot() was called. Keys that
+   * have expired by the time they are read are treated as not found.
+   */
+  public class Snapshot {
+    private final Node<K, V> root;
+    private final int numKeys;
+    private final long sequence;
+
+    private Snapshot(Node<K, V> root, int numKeys, long sequence) {
+      this.root = root;
+      this.numKeys = numKeys;
+      this.sequence = sequence;
+    }
+
+    /**
+     * Returns sequence number of the last change feed entry included in this
+     * snapshot. Consumers that reload from the snapshot continue the feed from here.
+     * 
+     * @return long - sequence number, 0 if the change feed is not enabled
+     */
+    public long getSequence() {
+      return this.sequence;
+    }
+
+    /**
+     * Returns the value of the provided key in this snapshot
+     * 
+     * @param K key - key to search for
+     * 
+     * @return V - value of node with provided key
+     * 
+     * @throws IllegalNullKeyException - if provided key is null
+     * @throws KeyNotFoundException    - if key is not in this snapshot
+     */
+    public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+      if (key == null) {
+        throw new IllegalNullKeyException();
+      }
+      Node<K, V> node = getNode(this.root, key);
+      if (node == null || isExpired(node)) {
+        throw new KeyNotFoundException();
+      }
+      return node.value;
+    }
+
+    /**
+     * Returns true if the provided key is in this snapshot
+     * 
+     * @param K key - key to search for
+     * 
+     * @return boolean - true if key is in this snapshot, false if not
+     * 
+     * @throws IllegalNullKeyException - if provided key is null
+     */
+    public boolean contains(K key) throws IllegalNullKeyException {
+      if (key == null) {
+        throw new IllegalNullKeyException();
+      }
+      Node<K, V> node = getNode(this.root, key);
+      return node != null && !isExpired(node);
+    }
+
+    /**
+     * Returns number of keys in this snapshot, counting expired keys that had not
+     * been purged when it was taken
+     * 
+     * @return int - number of keys
+     */
+    public int numKeys() {
+      return this.numKeys;
+    }
+
+    /**
+     * Returns height of the tree in this snapshot
+     * 
+     * @return int - height of tree
+     */
+    public int getHeight() {
+      return BALST.this.getHeight(this.root);
+    }
+
+    /**
+     * Returns list containing all keys in this snapshot in order
+     * 
+     * @return List<K> - containing all keys in order
+     */
+    public List<K> getInOrderTraversal() {
+      return BALST.this.getInOrderTraversal(this.root, new ArrayList<K>());
+    }
+  }
+
+  /**
+   * Private class for AVL tree Node. Only holds the fields every tree needs, the
+   * expiry time, content hash and aggregate live in the subclasses below so a
+   * node only pays for the features its tree uses.
+   * 
+   * @author samsoncain
+   */
+  private static class Node<K, V> implements Cloneable {
+    private K key; // key
+    private V value; // data
+
+    private Node<K, V> left; // left child
+    private Node<K, V> right; // right child
+
+    private byte height; // height, AVL trees never get taller than 1.44 log2(n + 2)
+
+    private short version; // epoch the node was created in, SHARED once marked shared
+
+    public Node(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    /**
+     * Returns expiry time of the entry
+     * 
+     * @return long - expiry time in milliseconds, Long.MAX_VALUE if none
+     */
+    long expiresAt() {
+      return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns order independent hash of the entries in this subtree
+     * 
+     * @return long - hash, 0 if the content hash is not enabled
+     */
+    long hash() {
+      return 0;
+    }
+
+    /**
+     * Sets hash of the entries in this subtree
+     * 
+     * @param long hash - new hash
+     */
+    void setHash(long hash) {
+      throw new UnsupportedOperationException("node has no content hash");
+    }
+
+    /**
+     * Returns aggregate of the entries in this subtree
+     * 
+     * @return Object - aggregate, null if aggregates are not enabled
+     */
+    Object aggregate() {
+      return null;
+    }
+
+    /**
+     * Sets aggregate of the entries in this subtree
+     * 
+     * @param Object aggregate - new aggregate
+     */
+    void setAggregate(Object aggregate) {
+      throw new UnsupportedOperationException("node has no aggregate");
+    }
+
+    /**
+     * Returns a copy of this node of the same class
+     * 
+     * @return Node - copy
+     */
+    @SuppressWarnings("unchecked")
+    Node<K, V> copy() {
+      try {
+        return (Node<K, V>) clone();
+      } catch (CloneNotSupportedException e) {
+        // Node is Cloneable
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Returns estimated heap size of this node
+     * 
+     * @return long - size in bytes
+     */
+    long sizeInBytes() {
+      return NODE_BYTES;
+    }
+
+  }
+
+  /**
+   * Node of an entry with a time to live. Most entries never expire, so only
+   * these nodes pay for an expiry time.
+   */
+  private static class ExpiringNode<K, V> extends Node<K, V> {
+    private final long expiresAt; // expiry time
+
+    public ExpiringNode(K key, V value, long expiresAt) {
+      super(key, value);
+      this.expiresAt = expiresAt;
+    }
+
+    @Override
+    long expiresAt() {
+      return this.expiresAt;
+    }
+
+    @Override
+    long sizeInBytes() {
+      return NODE_BYTES + OPTIONAL_FIELD_BYTES;
+    }
+
+  }
+
+  /**
+   * Node of a tree with the content hash enabled
+   */
+  private static class HashedNode<K, V> extends Node<K, V> {
+    private long hash; // order independent hash of the entries in this subtree
+
+    public HashedNode(K key, V value) {
+      super(key, value);
+    }
+
+    @Override
+    long hash() {
+      return this.hash;
+    }
+
+    @Override
+    void setHash(long hash) {
+      this.hash = hash;
+    }
+
+    @Override
+    long sizeInBytes() {
+      return NODE_BYTES + OPTIONAL_FIELD_BYTES;
+    }
+
+  }
+
+  /**
+   * Node of an entry with a time to live in a tree with the content hash enabled
+   */
+  private static class ExpiringHashedNode<K, V> extends HashedNode<K, V> {
+    private final long expiresAt; // expiry time
+
+    public ExpiringHashedNode(K key, V value, long expiresAt) {
+      super(key, value);
+      this.expiresAt = expiresAt;
+    }
+
+    @Override
+    long expiresAt() {
+      return this.expiresAt;
+    }
+
+    @Override
+    long sizeInBytes() {
+      return NODE_BYTES + 2 * OPTIONAL_FIELD_BYTES;
+    }
+
+  }
+
+  /**
+   * Node of a tree with an aggregate enabled
+   */
+  private static class AggregateNode<K, V> extends Node<K, V> {
+    private Object aggregate; // aggregate of the entries in this subtree
+
+    public AggregateNode(K key, V value) {
+      super(key, value);
+    }
+
+    @Override
+    Object aggregate() {
+      return this.aggregate;
+    }
+
+    @Override
+    void setAggregate(Object aggregate) {
+      this.aggregate = aggregate;
+    }
+
+    @Override
+    long sizeInBytes() {
+      return NODE_BYTES + OPTIONAL_FIELD_BYTES;
+    }
+
+  }
+
+  /**
+   * Node of an entry with a time to live in a tree with an aggregate enabled
+   */
+  private static class ExpiringAggregateNode<K, V> extends AggregateNode<K, V> {
+    private final long expiresAt; // expiry time
+
+    public ExpiringAggregateNode(K key, V value, long expiresAt) {
+      super(key, value);
+      this.expiresAt = expiresAt;
+    }
+
+    @Override
+    long expiresAt() {
+      return this.expiresAt;
+    }
+
+    @Override
+    long sizeInBytes() {
+      return NODE_BYTES + 2 * OPTIONAL_FIELD_BYTES;
+    }
+
+  }
+
+  /**
+   * Node of a tree with both the content hash and an aggregate enabled
+   */
+  private static class HashedAggregateNode<K, V> extends HashedNode<K, V> {
+    private Object aggregate; // aggregate of the entries in this subtree
+
+    public HashedAggregateNode(K key, V value) {
+      super(key, value);
+    }
+
+    @Override
+    Object aggregate() {
+      return this.aggregate;
+    }
+
+    @Override
+    void setAggregate(Object aggregate) {
+      this.aggregate = aggregate;
+    }
+
+    @Override
+    long sizeInBytes() {
+      return NODE_BYTES + 2 * OPTIONAL_FIELD_BYTES;
+    }
+
+  }
+
+  /**
+   * Node of an entry with a time to live in a tree with both the content hash
+   * and an aggregate enabled
+   */
+  private static class ExpiringHashedAggregateNode<K, V> extends HashedAggregateNode<K, V> {
+    private final long expiresAt; // expiry time
+
+    public ExpiringHashedAggregateNode(K key, V value, long expiresAt) {
+      super(key, value);
+      this.expiresAt = expiresAt;
+    }
+
+    @Override
+    long expiresAt() {
+      return this.expiresAt;
+    }
+
+    @Override
+    long sizeInBytes() {
+      return NODE_BYTES + 3 * OPTIONAL_FIELD_BYTES;
     }
 
   }
@@ -0,0 +1,583 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Benchmark harness that runs the same workloads against every balancing engine
+ * and reports throughput, rotation counts and final height, so an engine can be
+ * picked per workload from measured numbers.
+ *
+ * Usage: java BALSTBenchmark [numKeys] [seed]
+ *        java BALSTBenchmark contention [threads] [opsPerThread]
+ *        java BALSTBenchmark intervals [numIntervals] [numQueries]
+ *        java BALSTBenchmark memory [numKeys]
+ *        java BALSTBenchmark workload [numOps] [opsPerSec] [traceFile]
+ *        java BALSTBenchmark tiered [numKeys]
+ *        java BALSTBenchmark misses [numKeys]
+ *        java BALSTBenchmark diff [numKeys] [numChanges]
+ */
+public class BALSTBenchmark {
+
+  private static final int DEFAULT_NUM_KEYS = 2000;
+
+  private static final int WARMUP_ROUNDS = 3;
+
+  private static final int CONTENTION_KEY_RANGE = 1000;
+
+  private static final int DEFAULT_OPS_PER_THREAD = 20000;
+
+  private static final int DEFAULT_NUM_QUERIES = 2000;
+
+  /**
+   * Returns a factory for each engine, in the order they are reported
+   *
+   * @return Map<String, Supplier<BALSTADT<Integer, Integer>>> - engine name to factory
+   */
+  static Map<String, Supplier<BALSTADT<Integer, Integer>>> engines() {
+    Map<String, Supplier<BALSTADT<Integer, Integer>>> engines =
+        new LinkedHashMap<String, Supplier<BALSTADT<Integer, Integer>>>();
+    engines.put("AVL", BALST::new);
+    engines.put("red-black", RedBlackTree::new);
+    engines.put("WAVL", WAVLTree::new);
+    engines.put("treap", Treap::new);
+    return engines;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("contention")) {
+      int threads = args.length > 1 ? Integer.parseInt(args[1])
+          : Runtime.getRuntime().availableProcessors();
+      int opsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_OPS_PER_THREAD;
+      System.out.printf("%-22s %8s %12s%n", "map", "threads", "ops/sec");
+      for (int round = 0; round < WARMUP_ROUNDS; round++) {
+        runContention(new LockFreeSkipList<Integer, Integer>(), false, threads, opsPerThread);
+      }
+      reportContention("lock-free skip list", new LockFreeSkipList<Integer, Integer>(), false,
+          threads, opsPerThread);
+      reportContention("synchronized AVL", new BALST<Integer, Integer>(), true, threads,
+          opsPerThread);
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("intervals")) {
+      int numIntervals = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NUM_KEYS;
+      int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_NUM_QUERIES;
+      runIntervals(numIntervals, numQueries);
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("workload")) {
+      int numOps = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NUM_KEYS * 10;
+      long opsPerSecond = args.length > 2 ? Long.parseLong(args[2]) : 0;
+      WorkloadTrace<Integer> trace = loadOrGenerateTrace(numOps, args.length > 3 ? args[3] : null);
+      System.out.printf("%-10s %10s %10s %10s %10s %10s %6s %8s%n", "engine", "ops/sec", "p50 us",
+          "p99 us", "p99.9 us", "max us", "gc", "gc ms");
+      Map<String, Supplier<BALSTADT<Integer, Integer>>> engines = engines();
+      engines.put("skip list", LockFreeSkipList::new);
+      for (Map.Entry<String, Supplier<BALSTADT<Integer, Integer>>> engine : engines.entrySet()) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+          WorkloadReplayer.replay(trace, engine.getValue().get(), key -> key, 0);
+        }
+        WorkloadReplayer.Report report =
+            WorkloadReplayer.replay(trace, engine.getValue().get(), key -> key, opsPerSecond);
+        System.out.printf("%-10s %10.0f %10.1f %10.1f %10.1f %10.1f %6d %8d%n", engine.getKey(),
+            report.getThroughput(), report.getLatencyPercentile(0.5) / 1e3,
+            report.getLatencyPercentile(0.99) / 1e3, report.getLatencyPercentile(0.999) / 1e3,
+            report.getLatencyPercentile(1) / 1e3, report.getGcCount(), report.getGcMillis());
+      }
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("tiered")) {
+      int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NUM_KEYS * 10;
+      System.out.printf("%-10s %14s %14s %18s%n", "map", "measured B/key", "hit gets/sec",
+          "miss contains/sec");
+      reportTiered("AVL", new BALST<String, Integer>(), numKeys);
+      try (TieredBALST<String, Integer> tiered =
+          new TieredBALST<String, Integer>(SortedRun.stringKeys(), TraceCodec.integers())) {
+        reportTiered("tiered", tiered, numKeys);
+      }
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("misses")) {
+      int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NUM_KEYS * 10;
+      System.out.printf("%-22s %14s %14s%n", "map", "lookups/sec", "false pos rate");
+      for (int round = 0; round < WARMUP_ROUNDS; round++) {
+        reportMisses(null, numKeys, false);
+        reportMisses(null, numKeys, true);
+      }
+      reportMisses("AVL", numKeys, false);
+      reportMisses("AVL with filter", numKeys, true);
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("diff")) {
+      int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NUM_KEYS * 10;
+      int numChanges = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+      runDiff(numKeys, numChanges);
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("memory")) {
+      int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NUM_KEYS;
+      System.out.printf("%-22s %16s %16s%n", "entries", "estimated B/key", "measured B/key");
+      reportMemory("AVL", numKeys, false);
+      reportMemory("AVL with ttl", numKeys, true);
+      return;
+    }
+
+    int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NUM_KEYS;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+
+    List<Integer> sequential = new ArrayList<Integer>();
+    for (int i = 0; i < numKeys; i++) {
+      sequential.add(i);
+    }
+    List<Integer> shuffled = new ArrayList<Integer>(sequential);
+    Collections.shuffle(shuffled, new Random(seed));
+
+    System.out.printf("%-10s %-18s %12s %12s %10s%n", "engine", "workload", "ops/sec", "rotations",
+        "height");
+    for (Map.Entry<String, Supplier<BALSTADT<Integer, Integer>>> engine : engines().entrySet()) {
+      for (int round = 0; round < WARMUP_ROUNDS; round++) {
+        runWorkload(engine.getValue(), "insert-remove", shuffled);
+      }
+      report(engine.getKey(), "sequential-insert", engine.getValue(), sequential);
+      report(engine.getKey(), "random-insert", engine.getValue(), shuffled);
+      report(engine.getKey(), "insert-remove", engine.getValue(), shuffled);
+      report(engine.getKey(), "insert-get", engine.getValue(), shuffled);
+    }
+  }
+
+  /**
+   * Runs one workload on a fresh tree and prints a result line
+   *
+   * @param String engine   - engine name
+   * @param String workload - workload name
+   * @param Supplier factory - creates the tree
+   * @param List<Integer> keys - keys used by the workload
+   */
+  private static void report(String engine, String workload,
+      Supplier<BALSTADT<Integer, Integer>> factory, List<Integer> keys) throws Exception {
+    long start = System.nanoTime();
+    Result result = runWorkload(factory, workload, keys);
+    long elapsed = Math.max(1, System.nanoTime() - start);
+
+    long rotations = result.tree instanceof RotationCounter
+        ? ((RotationCounter) result.tree).getRotationCount()
+        : -1;
+    System.out.printf("%-10s %-18s %12.0f %12d %10d%n", engine, workload,
+        result.operations * 1e9 / elapsed, rotations, result.height);
+  }
+
+  /**
+   * Runs one workload on a fresh tree
+   *
+   * @param Supplier factory  - creates the tree
+   * @param String workload   - workload name
+   * @param List<Integer> keys - keys used by the workload
+   *
+   * @return Result - tree, number of operations and height after the inserts
+   */
+  private static Result runWorkload(Supplier<BALSTADT<Integer, Integer>> factory, String workload,
+      List<Integer> keys) throws Exception {
+    BALSTADT<Integer, Integer> tree = factory.get();
+    long operations = 0;
+
+    for (Integer key : keys) {
+      tree.insert(key, key);
+      operations++;
+    }
+    int height = tree.getHeight();
+
+    if (workload.equals("insert-remove")) {
+      for (int i = 0; i < keys.size(); i += 2) {
+        tree.remove(keys.get(i));
+        operations++;
+      }
+    } else if (workload.equals("insert-get")) {
+      for (Integer key : keys) {
+        tree.get(key);
+        operations++;
+      }
+    }
+    return new Result(tree, operations, height);
+  }
+
+  /**
+   * Runs the contention workload and prints a result line
+   *
+   * @param String name          - map name
+   * @param BALSTADT tree        - map to run against
+   * @param boolean lock         - true to synchronize every operation on the map
+   * @param int threads          - number of threads
+   * @param int opsPerThread     - operations done by each thread
+   */
+  private static void reportContention(String name, BALSTADT<Integer, Integer> tree, boolean lock,
+      int threads, int opsPerThread) throws InterruptedException {
+    long start = System.nanoTime();
+    runContention(tree, lock, threads, opsPerThread);
+    long elapsed = Math.max(1, System.nanoTime() - start);
+    System.out.printf("%-22s %8d %12.0f%n", name, threads,
+        (double) threads * opsPerThread * 1e9 / elapsed);
+  }
+
+  /**
+   * Runs a write heavy mix of 40% inserts, 40% removes and 20% gets over a
+   * small key range from several threads at once
+   *
+   * @param BALSTADT tree        - map to run against
+   * @param boolean lock         - true to synchronize every operation on the map
+   * @param int threads          - number of threads
+   * @param int opsPerThread     - operations done by each thread
+   */
+  private static void runContention(BALSTADT<Integer, Integer> tree, boolean lock, int threads,
+      int opsPerThread) throws InterruptedException {
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final long seed = t;
+      workers.add(new Thread(() -> {
+        Random random = new Random(seed);
+        for (int i = 0; i < opsPerThread; i++) {
+          int key = random.nextInt(CONTENTION_KEY_RANGE);
+          int operation = random.nextInt(10);
+          if (lock) {
+            synchronized (tree) {
+              apply(tree, operation, key);
+            }
+          } else {
+            apply(tree, operation, key);
+          }
+        }
+      }));
+    }
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  /**
+   * Applies one contention workload operation, ignoring missing and duplicate keys
+   *
+   * @param BALSTADT tree - map to run against
+   * @param int operation - 0-3 insert, 4-7 remove, 8-9 get
+   * @param int key       - key to use
+   */
+  private static void apply(BALSTADT<Integer, Integer> tree, int operation, int key) {
+    try {
+      if (operation < 4) {
+        tree.insert(key, key);
+      } else if (operation < 8) {
+        tree.remove(key);
+      } else {
+        tree.get(key);
+      }
+    } catch (DuplicateKeyException | KeyNotFoundException e) {
+      // expected when threads race on the same keys
+    } catch (IllegalNullKeyException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Compares overlap queries on an interval tree with a scan of every interval
+   * in a BALST keyed by interval, and prints queries per second for both. Both
+   * hold short intervals spread over a range ten times the number of intervals.
+   *
+   * @param int numIntervals - number of intervals stored
+   * @param int numQueries   - number of overlap queries run
+   */
+  private static void runIntervals(int numIntervals, int numQueries) throws Exception {
+    Random random = new Random(42);
+    IntervalTree<Integer, Integer> intervalTree = new IntervalTree<Integer, Integer>();
+    BALST<Interval<Integer>, Integer> scanned = new BALST<Interval<Integer>, Integer>();
+    for (int i = 0; i < numIntervals; i++) {
+      int start = random.nextInt(numIntervals * 10);
+      int end = start + random.nextInt(50);
+      if (!scanned.contains(new Interval<Integer>(start, end))) {
+        intervalTree.insert(start, end, i);
+        scanned.insert(new Interval<Integer>(start, end), i);
+      }
+    }
+
+    int[] queries = new int[numQueries];
+    for (int i = 0; i < numQueries; i++) {
+      queries[i] = random.nextInt(numIntervals * 10);
+    }
+
+    long found = 0;
+    long start = System.nanoTime();
+    for (int lo : queries) {
+      found += intervalTree.overlapping(lo, lo + 100).size();
+    }
+    long treeElapsed = Math.max(1, System.nanoTime() - start);
+
+    long scannedFound = 0;
+    start = System.nanoTime();
+    for (int lo : queries) {
+      for (Interval<Integer> interval : scanned.getInOrderTraversal()) {
+        if (interval.overlaps(lo, lo + 100)) {
+          scanned.get(interval);
+          scannedFound++;
+        }
+      }
+    }
+    long scanElapsed = Math.max(1, System.nanoTime() - start);
+
+    if (found != scannedFound) {
+      throw new IllegalStateException("interval tree found " + found + ", scan found " + scannedFound);
+    }
+    System.out.printf("%-22s %12s %12s%n", "method", "queries/sec", "results");
+    System.out.printf("%-22s %12.0f %12d%n", "interval tree", numQueries * 1e9 / treeElapsed, found);
+    System.out.printf("%-22s %12.0f %12d%n", "in order scan", numQueries * 1e9 / scanElapsed,
+        scannedFound);
+  }
+
+  /**
+   * Builds an AVL tree and a replica of it that misses numChanges of its keys,
+   * then prints comparisons per second done by diff() and by comparing in order
+   * traversals, and how many range hashes diff() asked the replica for.
+   *
+   * @param int numKeys    - number of keys in the tree
+   * @param int numChanges - number of keys removed from the replica
+   */
+  private static void runDiff(int numKeys, int numChanges) throws Exception {
+    BALST<Integer, Integer> tree = new BALST<Integer, Integer>();
+    BALST<Integer, Integer> replica = new BALST<Integer, Integer>();
+    tree.enableContentHash();
+    replica.enableContentHash();
+    for (int i = 0; i < numKeys; i++) {
+      tree.insert(i, i);
+      replica.insert(i, i);
+    }
+    Random random = new Random(42);
+    for (int i = 0; i < numChanges; i++) {
+      int key = random.nextInt(numKeys);
+      if (replica.contains(key)) {
+        replica.remove(key);
+      }
+    }
+
+    int rounds = DEFAULT_NUM_QUERIES;
+    TreeDiff<Integer> diff = null;
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      diff = tree.diff(replica::hashBetween);
+    }
+    long diffElapsed = Math.max(1, System.nanoTime() - start);
+    int scanRounds = Math.max(1, rounds / 100);
+    boolean equal = false;
+    start = System.nanoTime();
+    for (int i = 0; i < scanRounds; i++) {
+      equal = tree.getInOrderTraversal().equals(replica.getInOrderTraversal());
+    }
+    long scanElapsed = Math.max(1, System.nanoTime() - start);
+
+    System.out.printf("%-22s %14s %14s %14s%n", "comparison", "diffs/sec", "differences",
+        "replica calls");
+    System.out.printf("%-22s %14.0f %14d %14d%n", "content hash diff", rounds * 1e9 / diffElapsed,
+        diff.getDifferingKeys().size() + diff.getMissingRanges().size(),
+        diff.getReplicaQueries());
+    System.out.printf("%-22s %14.0f %14s %14s%n", "in order traversals",
+        scanRounds * 1e9 / scanElapsed, equal ? "none" : "some", "-");
+  }
+
+  /**
+   * Fills an AVL tree with the even numbers below 2 * numKeys and prints
+   * contains() calls per second for random keys of which half are odd and so
+   * absent, then the false positive rate of the membership filter.
+   *
+   * @param String name    - name of the row, null to only warm up
+   * @param int numKeys    - number of keys inserted
+   * @param boolean filter - true to enable the membership filter
+   */
+  private static void reportMisses(String name, int numKeys, boolean filter) throws Exception {
+    BALST<Integer, Integer> tree = new BALST<Integer, Integer>();
+    if (filter) {
+      tree.enableMembershipFilter(numKeys);
+    }
+    for (int i = 0; i < numKeys; i++) {
+      tree.insert(2 * i, i);
+    }
+
+    Random random = new Random(42);
+    int[] lookups = new int[DEFAULT_NUM_QUERIES * 100];
+    for (int i = 0; i < lookups.length; i++) {
+      lookups[i] = random.nextInt(2 * numKeys);
+    }
+
+    long start = System.nanoTime();
+    for (int key : lookups) {
+      tree.contains(key);
+    }
+    long elapsed = Math.max(1, System.nanoTime() - start);
+    if (name != null) {
+      System.out.printf("%-22s %14.0f %14.4f%n", name, lookups.length * 1e9 / elapsed,
+          tree.membershipFilterFalsePositiveRate());
+    }
+  }
+
+  /**
+   * Fills a map with string keys sharing a prefix and prints bytes per key as
+   * measured from the growth of the heap, then random lookups per second for
+   * keys that are in the map and keys that are not. A tiered map is flushed and
+   * compacted before measuring, so every key is in its cold tier.
+   *
+   * @param String name  - name of the row
+   * @param BALSTADT map - empty map to fill
+   * @param int numKeys  - number of keys inserted
+   */
+  private static void reportTiered(String name, BALSTADT<String, Integer> map, int numKeys)
+      throws Exception {
+    long before = usedHeap();
+    for (int i = 0; i < numKeys; i++) {
+      map.insert("user:" + i, i);
+    }
+    if (map instanceof TieredBALST) {
+      ((TieredBALST<String, Integer>) map).flush();
+      ((TieredBALST<String, Integer>) map).compact();
+    }
+    long measured = usedHeap() - before;
+
+    Random random = new Random(42);
+    String[] hits = new String[DEFAULT_NUM_QUERIES * 10];
+    String[] misses = new String[hits.length];
+    for (int i = 0; i < hits.length; i++) {
+      hits[i] = "user:" + random.nextInt(numKeys);
+      misses[i] = "user:" + (numKeys + random.nextInt(numKeys));
+    }
+
+    long start = System.nanoTime();
+    for (String key : hits) {
+      map.get(key);
+    }
+    long hitElapsed = Math.max(1, System.nanoTime() - start);
+    start = System.nanoTime();
+    for (String key : misses) {
+      map.contains(key);
+    }
+    long missElapsed = Math.max(1, System.nanoTime() - start);
+
+    System.out.printf("%-10s %14.1f %14.0f %18.0f%n", name, (double) measured / numKeys,
+        hits.length * 1e9 / hitElapsed, misses.length * 1e9 / missElapsed);
+  }
+
+  /**
+   * Reads the trace file if it exists. Otherwise generates a trace of 20% inserts,
+   * 10% removes, 1% in order traversals and the rest lookups, over a key range
+   * half the number of calls, and saves it to the file if one was named.
+   *
+   * @param int numOps       - number of calls in a generated trace
+   * @param String traceFile - path of the trace, or null to only generate
+   *
+   * @return WorkloadTrace<Integer> - trace to replay
+   */
+  private static WorkloadTrace<Integer> loadOrGenerateTrace(int numOps, String traceFile)
+      throws Exception {
+    if (traceFile != null && Files.exists(Paths.get(traceFile))) {
+      try (InputStream in = new FileInputStream(traceFile)) {
+        return WorkloadTrace.readFrom(in, TraceCodec.integers());
+      }
+    }
+    WorkloadTrace<Integer> trace = WorkloadTrace.generate(numOps, Math.max(1, numOps / 2), 20, 10,
+        1, 42);
+    if (traceFile != null) {
+      try (OutputStream out = new FileOutputStream(traceFile)) {
+        trace.writeTo(out, TraceCodec.integers());
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Fills an AVL tree with keys and values that are shared with the caller, and
+   * prints bytes per key both as estimated by memoryFootprint() and as measured
+   * from the growth of the heap. A first tree is built and dropped to warm up.
+   * The measured number also includes expiry wheel entries, which the estimate
+   * leaves out.
+   *
+   * @param String name    - name of the row
+   * @param int numKeys    - number of keys inserted
+   * @param boolean expire - true to insert every key with a time to live
+   */
+  private static void reportMemory(String name, int numKeys, boolean expire) throws Exception {
+    Integer[] keys = new Integer[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      keys[i] = i;
+    }
+    fillForMemory(keys, expire);
+
+    long before = usedHeap();
+    BALST<Integer, Integer> tree = fillForMemory(keys, expire);
+    long measured = usedHeap() - before;
+
+    System.out.printf("%-22s %16.1f %16.1f%n", name, (double) tree.memoryFootprint() / numKeys,
+        (double) measured / numKeys);
+  }
+
+  /**
+   * Returns an AVL tree mapping every key to itself
+   *
+   * @param Integer[] keys - keys to insert
+   * @param boolean expire - true to insert every key with a time to live
+   *
+   * @return BALST<Integer, Integer> - filled tree
+   */
+  private static BALST<Integer, Integer> fillForMemory(Integer[] keys, boolean expire)
+      throws Exception {
+    BALST<Integer, Integer> tree = new BALST<Integer, Integer>();
+    for (Integer key : keys) {
+      if (expire) {
+        tree.insert(key, key, TimeUnit.DAYS.toMillis(1));
+      } else {
+        tree.insert(key, key);
+      }
+    }
+    return tree;
+  }
+
+  /**
+   * Returns bytes of heap in use after asking for garbage collection
+   *
+   * @return long - used heap in bytes
+   */
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Outcome of one workload run
+   */
+  private static class Result {
+    final BALSTADT<Integer, Integer> tree;
+    final long operations;
+    final int height;
+
+    Result(BALSTADT<Integer, Integer> tree, long operations, int height) {
+      this.tree = tree;
+      this.operations = operations;
+      this.height = height;
+    }
+  }
+
+}
@@ -1,4 +1,24 @@
 import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 import org.junit.Assert;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -41,6 +61,48 @@ public class BALSTTest {
     return new BALST<Integer, String>();
   }
 
+  /**
+   * Returns one empty tree of every balancing engine, so the same test can check all of them
+   */
+  protected List<BALSTADT<Integer, String>> createEngines() {
+    List<BALSTADT<Integer, String>> engines = new ArrayList<BALSTADT<Integer, String>>();
+    engines.add(new BALST<Integer, String>());
+    engines.add(new RedBlackTree<Integer, String>());
+    engines.add(new WAVLTree<Integer, String>());
+    engines.add(new Treap<Integer, String>(400));
+    engines.add(new LockFreeSkipList<Integer, String>());
+    return engines;
+  }
+
+  /**
+   * Returns true if the engine's height bound does not depend on random choices
+   */
+  protected boolean isDeterministic(BALSTADT<Integer, String> tree) {
+    return !(tree instanceof Treap) && !(tree instanceof LockFreeSkipList);
+  }
+
+  /**
+   * Inserts three keys in the provided order into every engine and checks that each
+   * engine returns them in order, and that the deterministic ones balance them into
+   * two levels like the AVL tree does
+   */
+  protected void checkEnginesInsertThree(int first, int second, int third) throws Exception {
+    for (BALSTADT<Integer, String> tree : createEngines()) {
+      String engine = tree.getClass().getName();
+      tree.insert(first, Integer.toString(first));
+      tree.insert(second, Integer.toString(second));
+      tree.insert(third, Integer.toString(third));
+      
+      List<Integer> expected = new ArrayList<Integer>();
+      Collections.addAll(expected, first, second, third);
+      Collections.sort(expected);
+      Assert.assertEquals(engine, tree.getInOrderTraversal(), expected);
+      if (isDeterministic(tree)) {
+        Assert.assertEquals(engine, tree.getHeight(), 2);
+      }
+    }
+  }
+
   /**
    * Insert three values in sorted order and then check the root, left, and right keys to see if
    * rebalancing occurred.
@@ -73,6 +135,8 @@ public class BALSTTest {
       balst2.print();
       System.out.println("--------------");
 
+      checkEnginesInsertThree(10, 20, 30);
+
     } catch (Exception e) {
       e.printStackTrace();
       fail("Unexpected exception AVL 000: " + e.getMessage());
@@ -103,6 +167,8 @@ public class BALSTTest {
       balst2.print();
       System.out.println("--------------");
 
+      checkEnginesInsertThree(30, 20, 10);
+
     } catch (Exception e) {
       e.printStackTrace();
       fail("Unexpected exception AVL 000: " + e.getMessage());
@@ -137,6 +203,8 @@ public class BALSTTest {
       balst2.print();
       System.out.println("--------------");
 
+      checkEnginesInsertThree(10, 30, 20);
+
     } catch (Exception e) {
       e.printStackTrace();
       fail("Unexpected exception AVL 000: " + e.getMessage());
@@ -170,6 +238,8 @@ public class BALSTTest {
       balst2.print();
       System.out.println("--------------");
 
+      checkEnginesInsertThree(30, 10, 20);
+
     } catch (Exception e) {
       e.printStackTrace();
       fail("Unexpected exception AVL 000: " + e.getMessage());
@@ -177,24 +247,26 @@ public class BALSTTest {
   }
   
   /**
-   * Insert 3 values and make sure get() works properly on all values
+   * Insert 3 values into every engine and make sure get() works properly on all values
    * 
    */
   @Test
   void testBALST_005_insert_3_check_get_method() {
     try {
-      for(int i = 0; i < 3; i++) {
-        balst2.insert(i+1, Integer.toString(i+1));
-      }
-      
-      for(int i = 0; i < 3; i++) {
-        if(!balst2.get(i+1).equals(Integer.toString(i+1))) {
-          fail("avl get() does not work");
+      System.out.println("-- Test 005 --");
+      for (BALSTADT<Integer, String> tree : createEngines()) {
+        String engine = tree.getClass().getName();
+        for(int i = 0; i < 3; i++) {
+          tree.insert(i+1, Integer.toString(i+1));
+        }
+        
+        for(int i = 0; i < 3; i++) {
+          if(!tree.get(i+1).equals(Integer.toString(i+1))) {
+            fail(engine + " get() does not work");
+          }
         }
+        tree.print();
       }
-      
-      System.out.println("-- Test 005 --");
-      balst2.print();
       System.out.println("--------------");
 
     } catch (Exception e) {
@@ -204,43 +276,232 @@ public class BALSTTest {
   }
   
   /**
-   * Insert 25 values and make sure get() works properly on all values
+   * Insert 25 values into every engine and make sure get() works properly on all values
    * 
    */
   @Test
   void testBALST_006_insert_25_check_get_method() {
     try {
+      for (BALSTADT<Integer, String> tree : createEngines()) {
+        String engine = tree.getClass().getName();
+        for(int i = 0; i < 25; i++) {
+          tree.insert(i+1, Integer.toString(i+1));
+        }
+        
+        for(int i = 0; i < 25; i++) {
+          if(!tree.get(i+1).equals(Integer.toString(i+1))) {
+            fail(engine + " get() does not work");
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Insert 100 values into every engine and make sure get() works properly on all values
+   * 
+   */
+  @Test
+  void testBALST_007_insert_100_check_get_method() {
+    try {
+      for (BALSTADT<Integer, String> tree : createEngines()) {
+        String engine = tree.getClass().getName();
+        for(int i = 0; i < 100; i++) {
+          tree.insert(i+1, Integer.toString(i+1));
+        }
+        
+        for(int i = 0; i < 100; i++) {
+          if(!tree.get(i+1).equals(Integer.toString(i+1))) {
+            fail(engine + " get() does not work");
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Insert 1000 values into every engine and make sure get() works properly on all values
+   * 
+   */
+  @Test
+  void testBALST_008_insert_1000_check_get_method() {
+    try {
+      for (BALSTADT<Integer, String> tree : createEngines()) {
+        String engine = tree.getClass().getName();
+        for(int i = 0; i < 1000; i++) {
+          tree.insert(i+1, Integer.toString(i+1));
+        }
+        
+        for(int i = 0; i < 1000; i++) {
+          if(!tree.get(i+1).equals(Integer.toString(i+1))) {
+            fail(engine + " get() does not work");
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert values with a time to live and make sure they become misses for get() and
+   * contains() once the clock passes their expiry time
+   * 
+   */
+  @Test
+  void testBALST_009_insert_with_ttl_expires_on_access() {
+    try {
+      long[] now = {0};
+      BALST<Integer, String> balst = new BALST<Integer, String>(() -> now[0]);
+      
+      balst.insert(1, "1", 1000);
+      balst.insert(2, "2");
+      Assert.assertEquals(balst.get(1), "1");
+      
+      now[0] = 1000;
+      if (balst.contains(1))
+        fail("avl contains() returns expired key");
+      Assert.assertEquals(balst.numKeys(), 1);
+      Assert.assertEquals(balst.get(2), "2");
+      
+      // expired key can be inserted again
+      balst.insert(1, "one", 1000);
+      Assert.assertEquals(balst.get(1), "one");
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Insert 100 values with a time to live and make sure purgeExpired() removes them in
+   * batches and leaves the values without a time to live
+   * 
+   */
+  @Test
+  void testBALST_010_insert_100_with_ttl_purge_in_batches() {
+    try {
+      long[] now = {0};
+      BALST<Integer, String> balst = new BALST<Integer, String>(() -> now[0]);
+      
+      for(int i = 0; i < 100; i++) {
+        balst.insert(i+1, Integer.toString(i+1), (i+1) * 50);
+      }
+      balst.insert(0, "0");
+      
+      now[0] = 100000;
+      Assert.assertEquals(balst.purgeExpired(40), 40);
+      Assert.assertEquals(balst.numKeys(), 61);
+      while (balst.purgeExpired(40) > 0);
+      
+      Assert.assertEquals(balst.numKeys(), 1);
+      Assert.assertEquals(balst.get(0), "0");
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Enable the front cache, look up the same keys twice and make sure the second round
+   * is answered from the cache and that removed keys are not returned from it
+   * 
+   */
+  @Test
+  void testBALST_011_front_cache_hits_and_invalidation() {
+    try {
+      balst2.enableFrontCache(64);
       for(int i = 0; i < 25; i++) {
         balst2.insert(i+1, Integer.toString(i+1));
       }
       
+      for(int round = 0; round < 2; round++) {
+        for(int i = 0; i < 10; i++) {
+          if(!balst2.get(i+1).equals(Integer.toString(i+1))) {
+            fail("avl get() does not work with front cache");
+          }
+        }
+      }
+      Assert.assertEquals(balst2.frontCacheHits(), 10);
+      Assert.assertEquals(balst2.frontCacheMisses(), 10);
+      
+      // removing a node with two children moves its predecessor's key into it
+      Integer root = balst2.getKeyAtRoot();
+      Integer predecessor = root - 1;
+      balst2.remove(root);
+      if (balst2.contains(root))
+        fail("avl contains() returns removed key from front cache");
+      Assert.assertEquals(balst2.get(predecessor), Integer.toString(predecessor));
+      
       for(int i = 0; i < 25; i++) {
-        if(!balst2.get(i+1).equals(Integer.toString(i+1))) {
-          fail("avl get() does not work");
+        if(i+1 != root && !balst2.get(i+1).equals(Integer.toString(i+1))) {
+          fail("avl get() does not work with front cache after remove");
         }
       }
+      
     } catch (Exception e) {
       e.printStackTrace();
       fail("Unexpected exception AVL 000: " + e.getMessage());
     }
   }
-  
+
   /**
-   * Insert 100 values and make sure get() works properly on all values
+   * Insert 100 even values, seek between them with a cursor, step forwards and backwards
+   * and make sure the cursor visits every key in order
    * 
    */
   @Test
-  void testBALST_007_insert_100_check_get_method() {
+  void testBALST_012_cursor_seek_next_prev() {
     try {
       for(int i = 0; i < 100; i++) {
-        balst2.insert(i+1, Integer.toString(i+1));
+        balst2.insert(2 * i, Integer.toString(2 * i));
       }
       
+      BALST<Integer, String>.Cursor cursor = balst2.cursor();
+      if (!cursor.seek(51))
+        fail("avl cursor seek() does not work");
+      Assert.assertEquals(cursor.key(), Integer.valueOf(52));
+      
+      cursor.next();
+      Assert.assertEquals(cursor.key(), Integer.valueOf(54));
+      cursor.prev();
+      cursor.prev();
+      Assert.assertEquals(cursor.key(), Integer.valueOf(50));
+      
+      // nearby seeks in both directions
+      cursor.seek(60);
+      Assert.assertEquals(cursor.key(), Integer.valueOf(60));
+      cursor.seek(7);
+      Assert.assertEquals(cursor.key(), Integer.valueOf(8));
+      if (cursor.seek(199))
+        fail("avl cursor seek() past the last key does not work");
+      
+      // every seek climbs only part of the way up from the previous position
+      Random random = new Random(12);
+      for(int i = 0; i < 500; i++) {
+        int target = random.nextInt(199);
+        if (!cursor.seek(target))
+          fail("avl cursor seek() from another position does not work");
+        Assert.assertEquals(cursor.key(), Integer.valueOf(target + target % 2));
+      }
+      
+      cursor.first();
       for(int i = 0; i < 100; i++) {
-        if(!balst2.get(i+1).equals(Integer.toString(i+1))) {
-          fail("avl get() does not work");
-        }
+        Assert.assertEquals(cursor.key(), Integer.valueOf(2 * i));
+        cursor.next();
       }
+      if (cursor.isValid())
+        fail("avl cursor next() past the last key does not work");
+      
     } catch (Exception e) {
       e.printStackTrace();
       fail("Unexpected exception AVL 000: " + e.getMessage());
@@ -248,27 +509,1224 @@ public class BALSTTest {
   }
   
   /**
-   * Insert 1000 values and make sure get() works properly on all values
+   * Update and remove values through a cursor and make sure the tree reflects the changes.
+   * Then remove the root again and again while a snapshot holds the old tree, and make sure
+   * the cursor lands on the next key and the tree stays valid
    * 
    */
   @Test
-  void testBALST_008_insert_1000_check_get_method() {
+  void testBALST_013_cursor_set_value_and_remove() {
     try {
-      for(int i = 0; i < 1000; i++) {
+      for(int i = 0; i < 25; i++) {
         balst2.insert(i+1, Integer.toString(i+1));
       }
       
+      BALST<Integer, String>.Cursor cursor = balst2.cursor();
+      cursor.seek(10);
+      cursor.setValue("ten");
+      Assert.assertEquals(balst2.get(10), "ten");
+      
+      // remove every odd key while walking forward
+      cursor.first();
+      while (cursor.isValid()) {
+        if (cursor.key() % 2 == 1) {
+          cursor.remove();
+        } else {
+          cursor.next();
+        }
+      }
+      Assert.assertEquals(balst2.numKeys(), 12);
+      if (balst2.contains(13))
+        fail("avl cursor remove() does not work");
+      
+      balst2.insert(13, "13");
+      try {
+        cursor.first();
+        fail("avl cursor does not detect concurrent modification");
+      } catch (java.util.ConcurrentModificationException e) {
+        // expected
+      }
+      
+      BALST<Integer, String>.Snapshot before = balst2.snapshot();
+      cursor = balst2.cursor();
+      while (balst2.numKeys() > 1) {
+        Integer rootKey = balst2.getKeyAtRoot();
+        List<Integer> keys = balst2.getInOrderTraversal();
+        int index = keys.indexOf(rootKey);
+        cursor.seek(rootKey);
+        if (cursor.remove()) {
+          Assert.assertEquals(cursor.key(), keys.get(index + 1));
+        } else {
+          Assert.assertEquals(index, keys.size() - 1);
+        }
+        balst2.validate();
+      }
+      Assert.assertEquals(before.numKeys(), 13);
+      Assert.assertEquals(before.getInOrderTraversal().size(), 13);
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert 1000 values in random order into every balancing engine and make sure get()
+   * and the in order traversal work and the height stays logarithmic
+   * 
+   */
+  @Test
+  void testBALST_014_engines_insert_1000_random_order() {
+    try {
+      List<Integer> keys = new ArrayList<Integer>();
       for(int i = 0; i < 1000; i++) {
-        if(!balst2.get(i+1).equals(Integer.toString(i+1))) {
-          fail("avl get() does not work");
+        keys.add(i);
+      }
+      Collections.shuffle(keys, new Random(400));
+      
+      for (BALSTADT<Integer, String> tree : createEngines()) {
+        String engine = tree.getClass().getName();
+        for (Integer key : keys) {
+          tree.insert(key, Integer.toString(key));
+        }
+        
+        for(int i = 0; i < 1000; i++) {
+          if(!tree.get(i).equals(Integer.toString(i))) {
+            fail(engine + " get() does not work");
+          }
+        }
+        List<Integer> inOrder = tree.getInOrderTraversal();
+        for(int i = 0; i < 1000; i++) {
+          Assert.assertEquals(engine, inOrder.get(i), Integer.valueOf(i));
+        }
+        Assert.assertEquals(engine, tree.numKeys(), 1000);
+        
+        // red-black trees are the least balanced of the deterministic engines at 2 log(n + 1),
+        // the randomized engines only have an expected bound
+        if (isDeterministic(tree) && tree.getHeight() > 2 * 10)
+          fail(engine + " is not balanced, height " + tree.getHeight());
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Insert 1000 values into every balancing engine, remove every other one and make sure
+   * the remaining keys are found and the removed keys are not
+   * 
+   */
+  @Test
+  void testBALST_015_engines_remove_half() {
+    try {
+      for (BALSTADT<Integer, String> tree : createEngines()) {
+        String engine = tree.getClass().getName();
+        for(int i = 0; i < 1000; i++) {
+          tree.insert(i, Integer.toString(i));
+        }
+        for(int i = 0; i < 1000; i += 2) {
+          tree.remove(i);
         }
+        
+        Assert.assertEquals(engine, tree.numKeys(), 500);
+        for(int i = 0; i < 1000; i++) {
+          if (tree.contains(i) != (i % 2 == 1))
+            fail(engine + " remove() does not work for key " + i);
+        }
+        if (isDeterministic(tree) && tree.getHeight() > 2 * 9)
+          fail(engine + " is not balanced after remove, height " + tree.getHeight());
+        
+        try {
+          tree.remove(0);
+          fail(engine + " remove() of missing key does not throw");
+        } catch (KeyNotFoundException e) {
+          // expected
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Run inserts, removes and lookups from 8 threads at once against the lock-free skip list,
+   * recording when each call on a shared key started and returned, and check that the
+   * history of every shared key is linearizable against a sequential set. Also check that
+   * every thread sees its own writes to keys only it uses, and that the successful inserts
+   * and removes of all threads add up to the final contents
+   * 
+   */
+  @Test
+  void testBALST_016_lock_free_skip_list_linearizable() {
+    try {
+      Assert.assertTrue(isLinearizable(List.of(new SetCall(0, SetCall.INSERT, true, 0, 3),
+          new SetCall(0, SetCall.CONTAINS, false, 1, 2))));
+      Assert.assertFalse(isLinearizable(List.of(new SetCall(0, SetCall.INSERT, true, 0, 3),
+          new SetCall(0, SetCall.CONTAINS, false, 4, 5))));
+      Assert.assertFalse(isLinearizable(List.of(new SetCall(0, SetCall.INSERT, true, 0, 3),
+          new SetCall(0, SetCall.INSERT, true, 1, 2))));
+      
+      LockFreeSkipList<Integer, String> map = new LockFreeSkipList<Integer, String>();
+      int threads = 8;
+      int sharedKeys = 64;
+      int[][] net = new int[threads][sharedKeys];
+      List<List<SetCall>> histories = new ArrayList<List<SetCall>>();
+      AtomicReference<String> failure = new AtomicReference<String>();
+      
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int t = 0; t < threads; t++) {
+        final int id = t;
+        List<SetCall> history = new ArrayList<SetCall>();
+        histories.add(history);
+        workers.add(new Thread(() -> {
+          Random random = new Random(id);
+          for (int i = 0; i < 20000 && failure.get() == null; i++) {
+            try {
+              int key = random.nextInt(sharedKeys);
+              int kind = random.nextInt(3);
+              boolean result = true;
+              long invoked = System.nanoTime();
+              try {
+                if (kind == SetCall.INSERT) {
+                  map.insert(key, "shared");
+                  net[id][key]++;
+                } else if (kind == SetCall.REMOVE) {
+                  map.remove(key);
+                  net[id][key]--;
+                } else {
+                  result = map.contains(key);
+                }
+              } catch (DuplicateKeyException | KeyNotFoundException e) {
+                // another thread got there first
+                result = false;
+              }
+              history.add(new SetCall(key, kind, result, invoked, System.nanoTime()));
+              
+              // keys from 1000 up are split between threads, so no one else touches them
+              int own = 1000 + id * 100 + random.nextInt(100);
+              if (map.contains(own)) {
+                map.remove(own);
+                if (map.contains(own))
+                  failure.set("remove not visible to the removing thread");
+              } else {
+                map.insert(own, "own");
+                if (!map.get(own).equals("own"))
+                  failure.set("insert not visible to the inserting thread");
+              }
+            } catch (Exception e) {
+              failure.set("unexpected exception " + e);
+            }
+          }
+        }));
+      }
+      for (Thread worker : workers) {
+        worker.start();
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      if (failure.get() != null)
+        fail(failure.get());
+      
+      List<List<SetCall>> perKey = new ArrayList<List<SetCall>>();
+      for (int key = 0; key < sharedKeys; key++) {
+        perKey.add(new ArrayList<SetCall>());
+      }
+      for (List<SetCall> history : histories) {
+        for (SetCall call : history) {
+          perKey.get(call.key).add(call);
+        }
+      }
+      for (int key = 0; key < sharedKeys; key++) {
+        if (!isLinearizable(perKey.get(key)))
+          fail("history of key " + key + " is not linearizable");
+      }
+      
+      int present = 0;
+      for (int key = 0; key < sharedKeys; key++) {
+        int total = 0;
+        for (int t = 0; t < threads; t++) {
+          total += net[t][key];
+        }
+        if (total != 0 && total != 1)
+          fail("successful inserts and removes do not add up for key " + key);
+        Assert.assertEquals(map.contains(key), total == 1);
+        present += total;
+      }
+      
+      List<Integer> inOrder = map.getInOrderTraversal();
+      for (int i = 1; i < inOrder.size(); i++) {
+        if (inOrder.get(i - 1) >= inOrder.get(i))
+          fail("skip list keys are not in order");
+      }
+      for (Integer key : inOrder) {
+        if (key >= sharedKeys)
+          present++;
+      }
+      Assert.assertEquals(map.numKeys(), present);
+      Assert.assertEquals(inOrder.size(), present);
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Take a snapshot of 100 values, then insert, remove and update values in the tree and make
+   * sure the snapshot still shows the old contents while the tree shows the new ones
+   * 
+   */
+  @Test
+  void testBALST_017_snapshot_is_isolated_from_later_writes() {
+    try {
+      balst2.enableFrontCache(16);
+      for(int i = 0; i < 100; i++) {
+        balst2.insert(i, Integer.toString(i));
+      }
+      balst2.get(50);
+      
+      BALST<Integer, String>.Snapshot snapshot = balst2.snapshot();
+      for(int i = 100; i < 200; i++) {
+        balst2.insert(i, Integer.toString(i));
+      }
+      for(int i = 0; i < 100; i += 2) {
+        balst2.remove(i);
+      }
+      BALST<Integer, String>.Cursor cursor = balst2.cursor();
+      cursor.seek(51);
+      cursor.setValue("fifty one");
+      
+      Assert.assertEquals(snapshot.numKeys(), 100);
+      List<Integer> inOrder = snapshot.getInOrderTraversal();
+      for(int i = 0; i < 100; i++) {
+        Assert.assertEquals(inOrder.get(i), Integer.valueOf(i));
+        Assert.assertEquals(snapshot.get(i), Integer.toString(i));
+      }
+      if (snapshot.contains(150))
+        fail("avl snapshot shows a key inserted after it was taken");
+      
+      Assert.assertEquals(balst2.numKeys(), 150);
+      Assert.assertEquals(balst2.get(51), "fifty one");
+      if (balst2.contains(50))
+        fail("avl get() returns removed key after snapshot");
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert 800 values through the asynchronous facade from 8 threads at once and make sure
+   * every insert is visible once its future completes and that failures are reported
+   * through the futures
+   * 
+   */
+  @Test
+  void testBALST_018_async_facade_batched_writes() {
+    try (AsyncBALST<Integer, String> facade = new AsyncBALST<Integer, String>()) {
+      AtomicReference<String> failure = new AtomicReference<String>();
+      List<Thread> clients = new ArrayList<Thread>();
+      for (int t = 0; t < 8; t++) {
+        final int id = t;
+        clients.add(new Thread(() -> {
+          for(int i = 0; i < 100; i++) {
+            int key = i * 8 + id;
+            facade.insert(key, Integer.toString(key)).join();
+            if (!facade.get(key).join().equals(Integer.toString(key)))
+              failure.set("insert not visible after its future completed");
+          }
+        }));
+      }
+      for (Thread client : clients) {
+        client.start();
+      }
+      for (Thread client : clients) {
+        client.join();
       }
+      if (failure.get() != null)
+        fail(failure.get());
+      
+      Assert.assertEquals(facade.snapshot().numKeys(), 800);
+      Assert.assertEquals(facade.snapshot().getInOrderTraversal().size(), 800);
+      
+      try {
+        facade.insert(5, "5").join();
+        fail("async insert of duplicate key does not fail");
+      } catch (java.util.concurrent.CompletionException e) {
+        if (!(e.getCause() instanceof DuplicateKeyException))
+          fail("async insert of duplicate key fails with " + e.getCause());
+      }
+      
+      facade.remove(5).join();
+      if (facade.contains(5).join())
+        fail("async remove does not work");
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Enable the change feed, insert, update and remove values and make sure the feed returns
+   * the changes since a sequence number in order and reports overwritten changes
+   * 
+   */
+  @Test
+  void testBALST_019_change_feed_changes_since() {
+    try {
+      balst2.enableChangeFeed(8);
+      ChangeFeed<Integer, String> feed = balst2.getChangeFeed();
+      
+      balst2.insert(1, "1");
+      balst2.insert(2, "2");
+      long seen = feed.getLatestSequence();
+      
+      BALST<Integer, String>.Cursor cursor = balst2.cursor();
+      cursor.seek(1);
+      cursor.setValue("one");
+      balst2.remove(2);
+      
+      List<ChangeEvent<Integer, String>> changes = feed.changesSince(seen);
+      Assert.assertEquals(changes.size(), 2);
+      Assert.assertEquals(changes.get(0).getSequence(), 3);
+      Assert.assertEquals(changes.get(0).getType(), ChangeEvent.Type.UPDATE);
+      Assert.assertEquals(changes.get(0).getValue(), "one");
+      Assert.assertEquals(changes.get(1).getType(), ChangeEvent.Type.REMOVE);
+      Assert.assertEquals(changes.get(1).getKey(), Integer.valueOf(2));
+      Assert.assertEquals(changes.get(1).getValue(), "2");
+      Assert.assertEquals(feed.changesSince(feed.getLatestSequence()).size(), 0);
+      
+      // a consumer that falls behind the buffer must reload from a snapshot
+      for(int i = 10; i < 20; i++) {
+        balst2.insert(i, Integer.toString(i));
+      }
+      try {
+        feed.changesSince(seen);
+        fail("change feed does not report overwritten changes");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+      BALST<Integer, String>.Snapshot snapshot = balst2.snapshot();
+      balst2.insert(20, "20");
+      changes = feed.changesSince(snapshot.getSequence());
+      Assert.assertEquals(changes.size(), 1);
+      Assert.assertEquals(changes.get(0).getKey(), Integer.valueOf(20));
+      
     } catch (Exception e) {
       e.printStackTrace();
       fail("Unexpected exception AVL 000: " + e.getMessage());
     }
   }
 
+  /**
+   * Keep a sum of 100 values, remove some and update one, and make sure range aggregates
+   * match a direct sum over the same keys
+   * 
+   */
+  @Test
+  void testBALST_020_aggregate_range_sum() {
+    try {
+      BALST<Integer, Integer> balst = new BALST<Integer, Integer>();
+      Aggregator<Integer, Long> sum = Aggregator.sum();
+      balst.enableAggregate(sum);
+      for(int i = 0; i < 100; i++) {
+        balst.insert(i, i * 10);
+      }
+      
+      Assert.assertEquals(balst.aggregate(0, 99, sum), Long.valueOf(49500));
+      Assert.assertEquals(balst.aggregate(10, 19, sum), Long.valueOf(1450));
+      Assert.assertEquals(balst.aggregate(200, 300, sum), Long.valueOf(0));
+      
+      for(int i = 10; i < 20; i += 2) {
+        balst.remove(i);
+      }
+      BALST<Integer, Integer>.Cursor cursor = balst.cursor();
+      cursor.seek(11);
+      cursor.setValue(0);
+      Assert.assertEquals(balst.aggregate(10, 19, sum), Long.valueOf(750 - 110));
+      
+      try {
+        balst.aggregate(0, 99, Aggregator.<Integer>count());
+        fail("avl aggregate() with an aggregator that is not enabled does not throw");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert 300 random intervals, some of them more than once, check overlapping()
+   * and stab() against a scan of every interval, then remove a third of them and
+   * check again. Also check that copies of an interval are read and removed oldest
+   * first.
+   * 
+   */
+  @Test
+  void testBALST_021_interval_tree_overlapping_and_stab() {
+    try {
+      IntervalTree<Integer, Integer> intervals = new IntervalTree<Integer, Integer>();
+      List<Interval<Integer>> inserted = new ArrayList<Interval<Integer>>();
+      Random random = new Random(21);
+      while(inserted.size() < 300) {
+        int start = random.nextInt(1000);
+        Interval<Integer> interval = new Interval<Integer>(start, start + random.nextInt(40));
+        intervals.insert(interval.getStart(), interval.getEnd(), start);
+        inserted.add(interval);
+      }
+      Collections.sort(inserted);
+      
+      for(int round = 0; round < 2; round++) {
+        for(int lo = -50; lo < 1100; lo += 37) {
+          List<Interval<Integer>> expected = new ArrayList<Interval<Integer>>();
+          List<Interval<Integer>> stabbed = new ArrayList<Interval<Integer>>();
+          for(Interval<Integer> interval : inserted) {
+            if (interval.overlaps(lo, lo + 25)) {
+              expected.add(interval);
+            }
+            if (interval.overlaps(lo, lo)) {
+              stabbed.add(interval);
+            }
+          }
+          
+          List<Interval<Integer>> actual = new ArrayList<Interval<Integer>>();
+          for(Map.Entry<Interval<Integer>, Integer> entry : intervals.overlapping(lo, lo + 25)) {
+            actual.add(entry.getKey());
+            Assert.assertEquals(entry.getValue(), entry.getKey().getStart());
+          }
+          Assert.assertEquals(actual, expected);
+          
+          actual.clear();
+          for(Map.Entry<Interval<Integer>, Integer> entry : intervals.stab(lo)) {
+            actual.add(entry.getKey());
+          }
+          Assert.assertEquals(actual, stabbed);
+        }
+        
+        for(int i = inserted.size() - 1; i >= 0; i -= 3) {
+          Interval<Integer> interval = inserted.remove(i);
+          intervals.remove(interval.getStart(), interval.getEnd());
+        }
+      }
+      Assert.assertEquals(intervals.numKeys(), inserted.size());
+      
+      IntervalTree<Integer, String> copies = new IntervalTree<Integer, String>();
+      copies.insert(5, 10, "first");
+      copies.insert(5, 10, "second");
+      copies.insert(5, 9, "shorter");
+      Assert.assertEquals(copies.stab(7).size(), 3);
+      Assert.assertEquals(copies.get(5, 10), "first");
+      copies.remove(5, 10);
+      Assert.assertEquals(copies.get(5, 10), "second");
+      copies.remove(5, 10);
+      Assert.assertEquals(copies.numKeys(), 1);
+      try {
+        copies.get(5, 10);
+        fail("Removed interval was found");
+      } catch (KeyNotFoundException e) {
+        // expected
+      }
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert string keys under a few prefixes, check prefixRange() returns exactly the
+   * keys with each prefix, and check a secondary index stays in sync through
+   * inserts, removes and cursor updates
+   * 
+   */
+  @Test
+  void testBALST_022_prefix_range_and_secondary_index() {
+    try {
+      BALST<String, Integer> balst = new BALST<String, Integer>();
+      SecondaryIndex<Integer, String, Integer> byTens = balst.addIndex(value -> value / 10);
+      List<String> keys = new ArrayList<String>();
+      for(int i = 0; i < 60; i++) {
+        String key = (i % 3 == 0 ? "user:" : i % 3 == 1 ? "user:1" : "users") + ":" + i;
+        balst.insert(key, i);
+        keys.add(key);
+      }
+      balst.insert("user\uffff", 100);
+      keys.add("user\uffff");
+      Collections.sort(keys);
+      
+      for(String prefix : new String[] {"", "user", "user:", "user:1", "users", "user\uffff", "v"}) {
+        List<String> expected = new ArrayList<String>();
+        for(String key : keys) {
+          if (key.startsWith(prefix)) {
+            expected.add(key);
+          }
+        }
+        List<String> actual = new ArrayList<String>();
+        Iterator<Map.Entry<String, Integer>> range = BALST.prefixRange(balst, prefix);
+        while(range.hasNext()) {
+          actual.add(range.next().getKey());
+        }
+        Assert.assertEquals(actual, expected);
+      }
+      
+      Assert.assertEquals(byTens.keysWith(2).size(), 10);
+      Assert.assertEquals(byTens.keysBetween(1, 3).size(), 20);
+      balst.remove("user::21");
+      BALST<String, Integer>.Cursor cursor = balst.cursor();
+      cursor.seek("users:20");
+      cursor.setValue(35);
+      for(String key : byTens.keysWith(2)) {
+        Assert.assertEquals(balst.get(key) / 10, 2);
+      }
+      Assert.assertEquals(byTens.keysWith(2).size(), 8);
+      Assert.assertTrue(byTens.keysWith(3).contains("users:20"));
+      Assert.assertTrue(byTens.keysWith(7).isEmpty());
+      Assert.assertEquals(byTens.numAttributes(), 7);
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Check memoryFootprint() grows by the node size plus the sizers for every key,
+   * charges more for keys with a time to live, and shrinks again on removal
+   * 
+   */
+  @Test
+  void testBALST_023_memory_footprint() {
+    try {
+      BALST<Integer, String> balst = new BALST<Integer, String>();
+      Assert.assertEquals(balst.memoryFootprint(), 0);
+      for(int i = 0; i < 100; i++) {
+        balst.insert(i, "v" + i);
+      }
+      long nodes = balst.memoryFootprint();
+      Assert.assertTrue(nodes > 0);
+      Assert.assertEquals(nodes % 100, 0);
+      Assert.assertEquals(balst.memoryFootprint(key -> 16, value -> value.length()), nodes + 1600 + 290);
+      
+      for(int i = 100; i < 110; i++) {
+        balst.insert(i, "v" + i, 60000);
+      }
+      long perNode = nodes / 100;
+      Assert.assertTrue(balst.memoryFootprint() > nodes + 10 * perNode);
+      
+      for(int i = 100; i < 110; i++) {
+        balst.remove(i);
+      }
+      Assert.assertEquals(balst.memoryFootprint(), nodes);
+      balst.remove(50);
+      Assert.assertEquals(balst.memoryFootprint(), nodes - perNode);
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Record calls made to an AVL tree, read the trace back, and replay it against
+   * a new tree. The new tree must end up with the same keys, and the calls that
+   * failed while recording must fail again
+   * 
+   */
+  @Test
+  void testBALST_024_record_and_replay_workload() {
+    try {
+      BALST<Integer, Integer> recorded = new BALST<Integer, Integer>();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      int failures = 0;
+      try (WorkloadRecorder<Integer, Integer> recorder =
+          new WorkloadRecorder<Integer, Integer>(recorded, bytes, TraceCodec.integers())) {
+        Random random = new Random(24);
+        for(int i = 0; i < 500; i++) {
+          int key = random.nextInt(200) - 100;
+          try {
+            if (i % 3 == 0) {
+              recorder.remove(key);
+            } else if (i % 50 == 0) {
+              recorder.getInOrderTraversal();
+            } else {
+              recorder.insert(key, key);
+            }
+          } catch (KeyNotFoundException | DuplicateKeyException e) {
+            failures++;
+          }
+        }
+      }
+      
+      WorkloadTrace<Integer> trace =
+          WorkloadTrace.readFrom(new ByteArrayInputStream(bytes.toByteArray()), TraceCodec.integers());
+      Assert.assertEquals(trace.size(), 500);
+      Assert.assertEquals(trace.op(0), WorkloadTrace.Op.REMOVE);
+      Assert.assertEquals(trace.op(100), WorkloadTrace.Op.IN_ORDER);
+      
+      BALST<Integer, Integer> replayed = new BALST<Integer, Integer>();
+      WorkloadReplayer.Report report = WorkloadReplayer.replay(trace, replayed, key -> key, 0);
+      Assert.assertEquals(report.getOps(), 500);
+      Assert.assertEquals(report.getFailures(), failures);
+      Assert.assertEquals(replayed.getInOrderTraversal(), recorded.getInOrderTraversal());
+      Assert.assertTrue(report.getLatencyPercentile(0.5) <= report.getLatencyPercentile(1));
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert 500 random keys and remove half of them with an audit after every
+   * change, then check the shape validate() reports against the tree. Then change
+   * a hashed value in place and make sure audits report the stale hash, and that
+   * an audit needs a listener.
+   * 
+   */
+  @Test
+  void testBALST_025_validate_and_audit_shape() {
+    try {
+      BALST<Integer, Integer> balst = new BALST<Integer, Integer>();
+      List<IllegalStateException> violations = new ArrayList<IllegalStateException>();
+      balst.enableAudit(1, violations::add);
+      balst.enableAggregate(Aggregator.<Integer>sum());
+      
+      List<Integer> keys = new ArrayList<Integer>();
+      for(int i = 0; i < 500; i++) {
+        keys.add(i);
+      }
+      Collections.shuffle(keys, new Random(25));
+      for(int key : keys) {
+        balst.insert(key, key);
+      }
+      balst.snapshot();
+      for(int i = 0; i < 250; i++) {
+        balst.remove(keys.get(i));
+      }
+      Assert.assertTrue(violations.isEmpty());
+      Assert.assertEquals(balst.getPassedAudits(), 750);
+      
+      ShapeReport shape = balst.validate();
+      Assert.assertEquals(shape.getNumKeys(), 250);
+      Assert.assertEquals(shape.getHeight(), balst.getHeight());
+      Assert.assertEquals(shape.getDepthHistogram()[0], 1);
+      int keysInHistogram = 0;
+      for(int count : shape.getDepthHistogram()) {
+        keysInHistogram += count;
+      }
+      Assert.assertEquals(keysInHistogram, 250);
+      Assert.assertTrue(shape.getAveragePathLength() > 6);
+      Assert.assertTrue(shape.getAveragePathLength() < balst.getHeight());
+      Assert.assertEquals(new BALST<Integer, Integer>().validate().getAveragePathLength(), 0.0, 0);
+      
+      BALST<Integer, int[]> stale = new BALST<Integer, int[]>();
+      stale.enableContentHash(value -> value[0]);
+      int[] changed = {1};
+      stale.insert(2, new int[] {2});
+      stale.insert(1, changed);
+      stale.insert(3, new int[] {3});
+      stale.enableAudit(1, violations::add);
+      changed[0] = -1;
+      for(int i = 0; i < 40; i++) {
+        stale.insert(4, new int[] {4});
+        stale.remove(4);
+      }
+      Assert.assertTrue(violations.size() > 0);
+      Assert.assertEquals(stale.getPassedAudits() + violations.size(), 80);
+      try {
+        stale.enableAudit(1, null);
+        fail("Audit without a listener was enabled");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert and remove keys in a tiered store with a small memtable, once with
+   * runs on the heap and once with runs on disk, and check lookups and the in
+   * order traversal against the expected keys before and after compaction
+   * 
+   */
+  @Test
+  void testBALST_026_tiered_store_flush_and_compact() {
+    try {
+      Path directory = Files.createTempDirectory("tiered");
+      for(Path runDirectory : new Path[] {null, directory}) {
+        try (TieredBALST<String, Integer> tiered = new TieredBALST<String, Integer>(
+            SortedRun.stringKeys(), TraceCodec.integers(), 16, 3, runDirectory)) {
+          List<String> expected = new ArrayList<String>();
+          for(int i = 0; i < 200; i++) {
+            tiered.insert(String.format("key:%03d", i), i);
+            expected.add(String.format("key:%03d", i));
+          }
+          for(int i = 0; i < 200; i += 3) {
+            tiered.remove(String.format("key:%03d", i));
+            expected.remove(String.format("key:%03d", i));
+          }
+          Assert.assertTrue(tiered.numRuns() > 0);
+          Assert.assertEquals(tiered.numKeys(), expected.size());
+          Assert.assertEquals(tiered.get("key:001"), Integer.valueOf(1));
+          Assert.assertFalse(tiered.contains("key:003"));
+          Assert.assertFalse(tiered.contains("key:200"));
+          Assert.assertEquals(tiered.getInOrderTraversal(), expected);
+          
+          tiered.flush();
+          tiered.compact();
+          Assert.assertEquals(tiered.numRuns(), 1);
+          Assert.assertEquals(tiered.getInOrderTraversal(), expected);
+          Assert.assertEquals(tiered.get("key:199"), Integer.valueOf(199));
+          try {
+            tiered.get("key:198");
+            fail("Removed key was found after compaction");
+          } catch (KeyNotFoundException e) {
+            // expected
+          }
+          tiered.insert("key:198", -198);
+          Assert.assertEquals(tiered.get("key:198"), Integer.valueOf(-198));
+        }
+      }
+      try (Stream<Path> left = Files.list(directory)) {
+        Assert.assertEquals(left.count(), 0);
+      }
+      Files.delete(directory);
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert keys into a tree with a membership filter sized for fewer keys, so
+   * it has to grow, then remove and expire some and check that lookups agree
+   * with the keys in the tree and that absent keys are mostly filtered
+   * 
+   */
+  @Test
+  void testBALST_027_membership_filter_insert_remove_expire() {
+    try {
+      long[] now = {0};
+      BALST<Integer, Integer> balst = new BALST<Integer, Integer>(() -> now[0]);
+      balst.insert(-1, -1);
+      balst.enableMembershipFilter(10);
+      for(int i = 0; i < 1000; i++) {
+        balst.insert(2 * i, i);
+      }
+      balst.insert(1, 1, 100);
+      for(int i = 0; i < 1000; i += 2) {
+        balst.remove(2 * i);
+      }
+      now[0] = 100;
+      
+      Assert.assertTrue(balst.contains(-1));
+      Assert.assertFalse(balst.contains(1));
+      for(int i = 0; i < 1000; i++) {
+        Assert.assertEquals(balst.contains(2 * i), i % 2 == 1);
+        Assert.assertFalse(balst.contains(2 * i + 3));
+      }
+      Assert.assertEquals(balst.get(2 * 999), Integer.valueOf(999));
+      try {
+        balst.get(2 * 998);
+        fail("Removed key was found");
+      } catch (KeyNotFoundException e) {
+        // expected
+      }
+      
+      long absent = balst.membershipFilterNegatives() + balst.membershipFilterFalsePositives();
+      Assert.assertEquals(absent, 1000 + 500 + 1);
+      Assert.assertTrue(balst.membershipFilterFalsePositiveRate() < 0.05);
+      balst.disableMembershipFilter();
+      Assert.assertEquals(balst.membershipFilterNegatives(), 0);
+      Assert.assertFalse(balst.contains(3));
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Build a tree and a replica from the same keys inserted in different orders,
+   * one hashing as it goes and one enabling the hash afterwards, check their
+   * content hashes agree, then change the replica and check that
+   * diff() finds exactly the changed keys and the range of the added key
+   * 
+   */
+  @Test
+  void testBALST_028_content_hash_and_diff() {
+    try {
+      BALST<Integer, String> balst = new BALST<Integer, String>();
+      BALST<Integer, String> replica = new BALST<Integer, String>();
+      BALST<Integer, String> empty = new BALST<Integer, String>();
+      try {
+        empty.contentHash();
+        fail("avl contentHash() works without enableContentHash()");
+      } catch (IllegalStateException e) {
+        // expected, hashing is opt-in
+      }
+      empty.enableContentHash();
+      replica.enableContentHash();
+      List<Integer> keys = new ArrayList<Integer>();
+      for(int i = 0; i < 300; i++) {
+        keys.add(2 * i);
+        balst.insert(2 * i, "v" + i);
+      }
+      balst.enableContentHash();
+      Collections.shuffle(keys, new Random(28));
+      for(int key : keys) {
+        replica.insert(key, "v" + key / 2);
+      }
+      Assert.assertEquals(balst.contentHash(), replica.contentHash());
+      Assert.assertTrue(balst.contentHash() != empty.contentHash());
+      Assert.assertEquals(balst.hashBetween(null, 100) + balst.hashBetween(100, null)
+          + balst.hashBetween(98, 102), balst.contentHash());
+      Assert.assertEquals(balst.diff(replica::hashBetween).getReplicaQueries(), 1);
+      Assert.assertTrue(balst.diff(replica::hashBetween).isEmpty());
+      
+      replica.remove(40);
+      replica.insert(41, "new");
+      BALST<Integer, String>.Cursor cursor = replica.cursor();
+      cursor.seek(500);
+      cursor.setValue("changed");
+      replica.validate();
+      
+      TreeDiff<Integer> diff = balst.diff(replica::hashBetween);
+      Assert.assertEquals(diff.getDifferingKeys().toString(), "[40, 500]");
+      Assert.assertEquals(diff.getMissingRanges().size(), 1);
+      Assert.assertTrue(diff.getMissingRanges().get(0).getKey() >= 40);
+      Assert.assertTrue(diff.getMissingRanges().get(0).getValue() <= 42);
+      Assert.assertTrue(diff.getReplicaQueries() < 100);
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Make publishing a snapshot fail on the writer thread of the async facade and
+   * check that the write in flight and every later write fail instead of hanging,
+   * that reads still work and that close() returns
+   * 
+   */
+  @Test
+  void testBALST_029_async_facade_writer_failure() {
+    try {
+      AtomicReference<String> poison = new AtomicReference<String>();
+      BALST<Integer, String> tree = new BALST<Integer, String>() {
+        @Override
+        public BALST<Integer, String>.Snapshot snapshot() {
+          if (poison.get() != null) {
+            throw new IllegalStateException(poison.get());
+          }
+          return super.snapshot();
+        }
+      };
+      AsyncBALST<Integer, String> facade = new AsyncBALST<Integer, String>(tree, 16, Thread::new);
+      facade.insert(1, "1").join();
+      
+      poison.set("publish failed");
+      for(int key = 2; key < 4; key++) {
+        try {
+          facade.insert(key, Integer.toString(key)).get(10, java.util.concurrent.TimeUnit.SECONDS);
+          fail("async insert does not fail after the writer failed");
+        } catch (java.util.concurrent.ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+      }
+      Assert.assertEquals(facade.get(1).join(), "1");
+      facade.close();
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Encode sorted integers and strings with the key codecs of sorted runs and
+   * check that the encoded bytes are in the same order as the keys, that a string
+   * shares its bytes with the longer strings it is a prefix of, and that every key
+   * reads back
+   * 
+   */
+  @Test
+  void testBALST_030_run_key_codecs_preserve_key_order() {
+    try {
+      List<Integer> integers = new ArrayList<Integer>();
+      Collections.addAll(integers, Integer.MIN_VALUE, -70000, -256, -1, 0, 1, 255, 256, 70000,
+          Integer.MAX_VALUE);
+      List<String> strings = new ArrayList<String>();
+      Collections.addAll(strings, "", "user", "user:1", "user:10", "user:9", "\u00e9t\u00e9",
+          "\u4e2d\u6587");
+      
+      List<byte[]> encodedIntegers = new ArrayList<byte[]>();
+      for (Integer key : integers) {
+        encodedIntegers.add(encode(SortedRun.integerKeys(), key));
+      }
+      List<byte[]> encodedStrings = new ArrayList<byte[]>();
+      for (String key : strings) {
+        encodedStrings.add(encode(SortedRun.stringKeys(), key));
+      }
+      for (List<byte[]> encoded : List.of(encodedIntegers, encodedStrings)) {
+        for(int i = 1; i < encoded.size(); i++) {
+          Assert.assertTrue(Arrays.compareUnsigned(encoded.get(i - 1), encoded.get(i)) < 0);
+        }
+      }
+      Assert.assertEquals(Arrays.mismatch(encodedStrings.get(2), encodedStrings.get(3)), 6);
+      
+      for(int i = 0; i < integers.size(); i++) {
+        Assert.assertEquals(SortedRun.integerKeys().read(new DataInputStream(
+            new ByteArrayInputStream(encodedIntegers.get(i)))), integers.get(i));
+      }
+      for(int i = 0; i < strings.size(); i++) {
+        Assert.assertEquals(SortedRun.stringKeys().read(new DataInputStream(
+            new ByteArrayInputStream(encodedStrings.get(i)))), strings.get(i));
+      }
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Insert values that live for up to two hours, much longer than one lap of the
+   * expiry wheel, and make sure each is purged right when it expires, by
+   * purgeExpired() and by later writes
+   * 
+   */
+  @Test
+  void testBALST_031_ttl_longer_than_one_wheel_lap() {
+    try {
+      long[] now = {0};
+      BALST<Integer, String> balst = new BALST<Integer, String>(() -> now[0]);
+      
+      for(int i = 1; i <= 120; i++) {
+        balst.insert(i, Integer.toString(i), i * 60000L);
+      }
+      for(int minute = 1; minute <= 120; minute++) {
+        now[0] = minute * 60000L;
+        while (balst.purgeExpired(16) > 0);
+        Assert.assertEquals(balst.numKeys(), 120 - minute);
+      }
+      
+      for(int i = 1; i <= 10; i++) {
+        balst.insert(i, Integer.toString(i), 3600000);
+      }
+      now[0] += 3600000 + 100;
+      balst.insert(0, "0");
+      Assert.assertEquals(balst.numKeys(), 1);
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Take about as many snapshots as node versions can tell apart, then change
+   * nodes the first snapshot shares and make sure it still sees its own contents
+   * 
+   */
+  @Test
+  void testBALST_032_snapshots_survive_version_wrap() {
+    try {
+      for(int snapshots = 65534; snapshots <= 65538; snapshots++) {
+        BALST<Integer, String> balst = new BALST<Integer, String>();
+        for(int i = 0; i < 64; i++) {
+          balst.insert(i, Integer.toString(i));
+        }
+        BALST<Integer, String>.Snapshot first = balst.snapshot();
+        for(int i = 1; i < snapshots; i++) {
+          balst.snapshot();
+        }
+        
+        for(int i = 0; i < 64; i += 2) {
+          balst.remove(i);
+        }
+        balst.validate();
+        
+        Assert.assertEquals(balst.numKeys(), 32);
+        Assert.assertEquals(first.numKeys(), 64);
+        Assert.assertEquals(first.getInOrderTraversal().size(), 64);
+        for(int i = 0; i < 64; i++) {
+          Assert.assertEquals(first.get(i), Integer.toString(i));
+        }
+      }
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Flush runs while background compactions keep restarting, compact and close
+   * the store, and make sure no merge is lost and no run file is left behind
+   * 
+   */
+  @Test
+  void testBALST_033_compact_waits_for_restarted_compactions() {
+    try {
+      Path directory = Files.createTempDirectory("tiered");
+      try (TieredBALST<String, Integer> tiered = new TieredBALST<String, Integer>(
+          SortedRun.stringKeys(), TraceCodec.integers(), 4, 1, directory)) {
+        List<String> expected = new ArrayList<String>();
+        for(int i = 0; i < 400; i++) {
+          tiered.insert(String.format("key:%03d", i), i);
+          expected.add(String.format("key:%03d", i));
+          if (i % 40 == 39) {
+            tiered.compact();
+            Assert.assertEquals(tiered.numRuns(), 1);
+          }
+        }
+        Assert.assertEquals(tiered.getInOrderTraversal(), expected);
+        try (Stream<Path> files = Files.list(directory)) {
+          Assert.assertEquals(files.count(), 1);
+        }
+        for(int i = 0; i < 40; i++) {
+          tiered.insert(String.format("key:%03d", 400 + i), i);
+        }
+      }
+      try (Stream<Path> left = Files.list(directory)) {
+        Assert.assertEquals(left.count(), 0);
+      }
+      Files.delete(directory);
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Unexpected exception AVL 000: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns true if the calls on one key of a set can each take effect at some instant
+   * between their start and return, in an order in which every result matches a
+   * sequential set. Wing and Gong's search over the calls that may go next, with Lowe's
+   * cache of the calls taken so far and the state they lead to, so no such combination
+   * is searched twice. Checking keys one by one is enough, since linearizability is local.
+   */
+  protected boolean isLinearizable(List<SetCall> calls) {
+    int n = calls.size();
+    
+    // start events 0 to n - 1 and return events n to 2n - 1 in time order, linked into a
+    // list with head 2n so that calls taken can be lifted out and put back
+    List<Integer> events = new ArrayList<Integer>();
+    for (int event = 0; event < 2 * n; event++) {
+      events.add(event);
+    }
+    events.sort((a, b) -> {
+      long timeA = a < n ? calls.get(a).invoked : calls.get(a - n).responded;
+      long timeB = b < n ? calls.get(b).invoked : calls.get(b - n).responded;
+      return timeA != timeB ? Long.compare(timeA, timeB) : Integer.compare(a, b);
+    });
+    int head = 2 * n;
+    int[] next = new int[2 * n + 1];
+    int[] prev = new int[2 * n + 1];
+    int last = head;
+    for (int event : events) {
+      next[last] = event;
+      prev[event] = last;
+      last = event;
+    }
+    next[last] = head;
+    prev[head] = last;
+    
+    BitSet taken = new BitSet(n + 1);
+    Set<BitSet> seen = new HashSet<BitSet>();
+    Deque<int[]> stack = new ArrayDeque<int[]>(); // call and state before it
+    boolean present = false;
+    int event = next[head];
+    while (next[head] != head) {
+      if (event < n) {
+        SetCall call = calls.get(event);
+        boolean expected = call.kind == SetCall.INSERT ? !present : present;
+        boolean after = call.kind == SetCall.CONTAINS || !expected ? present
+            : call.kind == SetCall.INSERT;
+        if (expected == call.result) {
+          BitSet state = (BitSet) taken.clone();
+          state.set(event);
+          state.set(n, after);
+          if (seen.add(state)) {
+            stack.push(new int[] {event, present ? 1 : 0});
+            taken.set(event);
+            present = after;
+            for (int lifted : new int[] {event, n + event}) {
+              next[prev[lifted]] = next[lifted];
+              prev[next[lifted]] = prev[lifted];
+            }
+            event = next[head];
+            continue;
+          }
+        }
+        event = next[event];
+      } else {
+        // a call returned before any order could take it, undo the last call taken
+        if (stack.isEmpty()) {
+          return false;
+        }
+        int[] top = stack.pop();
+        event = top[0];
+        present = top[1] == 1;
+        taken.clear(event);
+        for (int lifted : new int[] {n + event, event}) {
+          next[prev[lifted]] = lifted;
+          prev[next[lifted]] = lifted;
+        }
+        event = next[event];
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Call on one key of a set, with the result it returned and when it started and returned
+   */
+  protected static class SetCall {
+    static final int INSERT = 0;
+    static final int REMOVE = 1;
+    static final int CONTAINS = 2;
+    
+    final int key;
+    final int kind;
+    final boolean result; // true if an insert or remove took effect, or contains found the key
+    final long invoked;
+    final long responded;
+    
+    SetCall(int key, int kind, boolean result, long invoked, long responded) {
+      this.key = key;
+      this.kind = kind;
+      this.result = result;
+      this.invoked = invoked;
+      this.responded = responded;
+    }
+  }
+
+  /**
+   * Returns the bytes a codec writes for a key
+   */
+  protected <T> byte[] encode(TraceCodec<T> codec, T key) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    codec.write(out, key);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
   // Add tests to make sure that rebalancing occurs even if the
   // tree is larger. Does it maintain it's balance?
   // Does the height of the tree reflect it's actual height
@@ -0,0 +1,107 @@
+/**
+ * Bloom filter over keys. mightContain() never returns false for a key that
+ * was added, and returns true for a key that was not added with a probability
+ * that depends on the number of bits per key: about 1% at 10 bits per key.
+ *
+ * Keys are hashed with hashCode(), mixed so that weak hash codes still spread
+ * over the whole bit array. Positions come from double hashing, which is as
+ * accurate as independent hash functions in practice.
+ */
+class BloomFilter {
+
+  private final long[] bits;
+
+  private final int numBits;
+
+  private final int numHashes;
+
+  /**
+   * Bloom filter constructor.
+   *
+   * @param int expectedKeys - number of keys that will be added
+   * @param int bitsPerKey   - bits of memory per key, 10 gives about 1% false positives
+   */
+  BloomFilter(int expectedKeys, int bitsPerKey) {
+    if (bitsPerKey <= 0) {
+      throw new IllegalArgumentException("bitsPerKey must be positive");
+    }
+    long wanted = Math.max(64, (long) Math.max(1, expectedKeys) * bitsPerKey);
+    this.numBits = (int) Math.min(Integer.MAX_VALUE - 63, wanted);
+    this.bits = new long[(numBits + 63) / 64];
+    this.numHashes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+  }
+
+  /**
+   * Adds a key
+   *
+   * @param Object key - key to add, never null
+   */
+  void add(Object key) {
+    long hash = hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = Math.floorMod(h1 + i * h2, numBits);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Returns false if the key was definitely not added, true if it may have been
+   *
+   * @param Object key - key to check, never null
+   *
+   * @return boolean - true if the key may have been added
+   */
+  boolean mightContain(Object key) {
+    long hash = hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = Math.floorMod(h1 + i * h2, numBits);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns heap used by the bit array
+   *
+   * @return long - size in bytes
+   */
+  long sizeInBytes() {
+    return (long) bits.length * Long.BYTES;
+  }
+
+  /**
+   * Returns a well mixed 64 bit hash of the key, using the finalizer of MurmurHash3
+   *
+   * @param Object key - key to hash
+   *
+   * @return long - hash
+   */
+  static long hash(Object key) {
+    return mix(key.hashCode() * 0x9E3779B97F4A7C15L);
+  }
+
+  /**
+   * Returns the finalizer of MurmurHash3 applied to a 64 bit value, so that
+   * every bit of the value affects every bit of the result
+   *
+   * @param long value - value to mix
+   *
+   * @return long - mixed value
+   */
+  static long mix(long value) {
+    long hash = value;
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * One change made to a BALST, as recorded in its change feed.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class ChangeEvent<K, V> {
+
+  /**
+   * Kind of change
+   */
+  public enum Type {
+    INSERT, // key was inserted, value is the new value
+    UPDATE, // value of key was replaced, value is the new value
+    REMOVE, // key was removed, value is the removed value
+    EXPIRE // key was removed because it expired, value is the removed value
+  }
+
+  private final long sequence;
+
+  private final Type type;
+
+  private final K key;
+
+  private final V value;
+
+  /**
+   * Change event constructor.
+   *
+   * @param long sequence - position of the change in the feed
+   * @param Type type     - kind of change
+   * @param K key         - changed key
+   * @param V value       - new value, or removed value for removals
+   */
+  public ChangeEvent(long sequence, Type type, K key, V value) {
+    this.sequence = sequence;
+    this.type = type;
+    this.key = key;
+    this.value = value;
+  }
+
+  /**
+   * Returns position of the change in the feed. Sequence numbers start at 1
+   * and have no gaps.
+   *
+   * @return long - sequence number
+   */
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  /**
+   * Returns kind of change
+   *
+   * @return Type - kind of change
+   */
+  public Type getType() {
+    return this.type;
+  }
+
+  /**
+   * Returns changed key
+   *
+   * @return K - changed key
+   */
+  public K getKey() {
+    return this.key;
+  }
+
+  /**
+   * Returns new value, or removed value for removals
+   *
+   * @return V - value
+   */
+  public V getValue() {
+    return this.value;
+  }
+
+  @Override
+  public String toString() {
+    return sequence + " " + type + " " + key + "=" + value;
+  }
+
+}
@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded feed of the most recent changes made to a BALST. Changes are kept in
+ * a ring buffer indexed by sequence number, so asking for the changes since a
+ * sequence number costs time proportional to the number of changes returned.
+ *
+ * Consumers poll with the last sequence number they processed. The buffer never
+ * blocks the tree: once full, the oldest changes are overwritten, and a consumer
+ * that falls that far behind gets an IllegalStateException and must reload from
+ * a snapshot before polling from the snapshot's sequence number again.
+ *
+ * Methods are synchronized so consumers may poll from other threads.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class ChangeFeed<K, V> {
+
+  private final ChangeEvent<K, V>[] buffer;
+
+  private long latestSequence; // sequence number of the newest change, 0 if none
+
+  /**
+   * Change feed constructor.
+   *
+   * @param int capacity - number of changes kept
+   */
+  public ChangeFeed(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    @SuppressWarnings("unchecked")
+    ChangeEvent<K, V>[] buffer = (ChangeEvent<K, V>[]) new ChangeEvent<?, ?>[capacity];
+    this.buffer = buffer;
+    this.latestSequence = 0;
+  }
+
+  /**
+   * Records a change and returns its sequence number
+   *
+   * @param Type type - kind of change
+   * @param K key     - changed key
+   * @param V value   - new value, or removed value for removals
+   *
+   * @return long - sequence number of the change
+   */
+  synchronized long append(ChangeEvent.Type type, K key, V value) {
+    latestSequence++;
+    buffer[(int) (latestSequence % buffer.length)] =
+        new ChangeEvent<K, V>(latestSequence, type, key, value);
+    return latestSequence;
+  }
+
+  /**
+   * Returns the changes made after the provided sequence number, oldest first
+   *
+   * @param long sequence - last sequence number the consumer processed, 0 for all
+   *
+   * @return List<ChangeEvent<K, V>> - changes with a larger sequence number
+   *
+   * @throws IllegalStateException - if some of those changes were already overwritten
+   */
+  public synchronized List<ChangeEvent<K, V>> changesSince(long sequence) {
+    if (sequence < getOldestSequence() - 1) {
+      throw new IllegalStateException(
+          "changes after " + sequence + " were overwritten, oldest kept is " + getOldestSequence());
+    }
+
+    List<ChangeEvent<K, V>> changes = new ArrayList<ChangeEvent<K, V>>();
+    for (long next = Math.max(sequence, 0) + 1; next <= latestSequence; next++) {
+      changes.add(buffer[(int) (next % buffer.length)]);
+    }
+    return changes;
+  }
+
+  /**
+   * Returns sequence number of the newest change
+   *
+   * @return long - newest sequence number, 0 if there were no changes
+   */
+  public synchronized long getLatestSequence() {
+    return this.latestSequence;
+  }
+
+  /**
+   * Returns sequence number of the oldest change still kept
+   *
+   * @return long - oldest sequence number kept
+   */
+  public synchronized long getOldestSequence() {
+    return Math.max(1, latestSequence - buffer.length + 1);
+  }
+
+}
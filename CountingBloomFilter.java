@@ -0,0 +1,192 @@
+/**
+ * Bloom filter that supports removal. Every position holds a 4 bit counter
+ * instead of a bit, so removing a key decrements the counters its add
+ * incremented. A counter that reaches 15 stays there for good, since it can no
+ * longer tell how many keys share it, which keeps mightContain() from ever
+ * returning false for a key that was added and not removed.
+ *
+ * Keys are hashed like in BloomFilter. The filter also counts the lookups it
+ * answered and the ones it let through for keys that turned out to be absent,
+ * which gives its observed false positive rate.
+ */
+class CountingBloomFilter {
+
+  private static final int COUNTER_BITS = 4;
+
+  private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+
+  private static final long MAX_COUNT = (1L << COUNTER_BITS) - 1;
+
+  private final long[] counters;
+
+  private final int numCounters;
+
+  private final int numHashes;
+
+  private final int expectedKeys;
+
+  private long negatives;
+
+  private long falsePositives;
+
+  /**
+   * Counting Bloom filter constructor.
+   *
+   * @param int expectedKeys   - number of keys the filter is sized for
+   * @param int countersPerKey - counters per key, 10 gives about 1% false positives
+   */
+  CountingBloomFilter(int expectedKeys, int countersPerKey) {
+    if (expectedKeys <= 0 || countersPerKey <= 0) {
+      throw new IllegalArgumentException("expectedKeys and countersPerKey must be positive");
+    }
+    long wanted = Math.max(COUNTERS_PER_WORD, (long) expectedKeys * countersPerKey);
+    this.numCounters = (int) Math.min(Integer.MAX_VALUE - COUNTERS_PER_WORD, wanted);
+    this.counters = new long[(numCounters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD];
+    this.numHashes = Math.max(1, (int) Math.round(countersPerKey * Math.log(2)));
+    this.expectedKeys = expectedKeys;
+  }
+
+  /**
+   * Adds a key. Adding the same key twice needs two removals to undo.
+   *
+   * @param Object key - key to add, never null
+   */
+  void add(Object key) {
+    long hash = BloomFilter.hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int counter = Math.floorMod(h1 + i * h2, numCounters);
+      if (count(counter) < MAX_COUNT) {
+        counters[counter / COUNTERS_PER_WORD] += 1L << shift(counter);
+      }
+    }
+  }
+
+  /**
+   * Removes a key that was added before
+   *
+   * @param Object key - key to remove, never null
+   */
+  void remove(Object key) {
+    long hash = BloomFilter.hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      int counter = Math.floorMod(h1 + i * h2, numCounters);
+      long count = count(counter);
+      // saturated counters may hold more keys than they can count
+      if (count > 0 && count < MAX_COUNT) {
+        counters[counter / COUNTERS_PER_WORD] -= 1L << shift(counter);
+      }
+    }
+  }
+
+  /**
+   * Returns false if the key is definitely not in the filter, true if it may be.
+   * Counts a false answer as a negative.
+   *
+   * @param Object key - key to check, never null
+   *
+   * @return boolean - true if the key may be in the filter
+   */
+  boolean mightContain(Object key) {
+    long hash = BloomFilter.hash(key);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      if (count(Math.floorMod(h1 + i * h2, numCounters)) == 0) {
+        negatives++;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records that a key mightContain() let through was not there after all
+   */
+  void recordFalsePositive() {
+    falsePositives++;
+  }
+
+  /**
+   * Carries the lookup statistics of a filter this one replaces over to it
+   *
+   * @param CountingBloomFilter previous - filter being replaced
+   */
+  void inheritStats(CountingBloomFilter previous) {
+    this.negatives += previous.negatives;
+    this.falsePositives += previous.falsePositives;
+  }
+
+  /**
+   * Returns number of lookups answered as definite misses
+   *
+   * @return long - number of negatives
+   */
+  long negatives() {
+    return this.negatives;
+  }
+
+  /**
+   * Returns number of lookups let through for keys that were absent
+   *
+   * @return long - number of false positives
+   */
+  long falsePositives() {
+    return this.falsePositives;
+  }
+
+  /**
+   * Returns fraction of lookups for absent keys that the filter let through, 0
+   * if there were none
+   *
+   * @return double - observed false positive rate
+   */
+  double falsePositiveRate() {
+    long absent = negatives + falsePositives;
+    return absent == 0 ? 0.0 : (double) falsePositives / absent;
+  }
+
+  /**
+   * Returns number of keys the filter was sized for
+   *
+   * @return int - expected number of keys
+   */
+  int expectedKeys() {
+    return this.expectedKeys;
+  }
+
+  /**
+   * Returns heap used by the counters
+   *
+   * @return long - size in bytes
+   */
+  long sizeInBytes() {
+    return (long) counters.length * Long.BYTES;
+  }
+
+  /**
+   * Returns the value of a counter
+   *
+   * @param int counter - index of the counter
+   *
+   * @return long - count between 0 and 15
+   */
+  private long count(int counter) {
+    return (counters[counter / COUNTERS_PER_WORD] >>> shift(counter)) & MAX_COUNT;
+  }
+
+  /**
+   * Returns the position of a counter within its word
+   *
+   * @param int counter - index of the counter
+   *
+   * @return int - shift in bits
+   */
+  private int shift(int counter) {
+    return (counter % COUNTERS_PER_WORD) * COUNTER_BITS;
+  }
+
+}
@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Hashed timer wheel used by BALST to index entry expiry times. Each slot holds
+ * the entries that expire during one tick of the current lap of the wheel.
+ * Entries further out than one lap wait in an overflow queue ordered by expiry
+ * time and move into their slot once the wheel gets within a lap of them, so a
+ * sweep never looks at an entry that is not due yet, except in the tick that is
+ * still running.
+ *
+ * The wheel only stores keys and their expiry times. Entries are never removed
+ * when a key is removed or reinserted, so callers must check every polled entry
+ * against the tree before acting on it.
+ *
+ * @param <K> is the generic type of key
+ */
+class ExpiryWheel<K> {
+
+  private final long tickMillis;
+
+  private final List<LinkedList<Entry<K>>> slots;
+
+  private final PriorityQueue<Entry<K>> overflow; // entries more than one lap out
+
+  private long currentTick; // next tick to sweep
+
+  private int size;
+
+  private int slotted; // entries in slots rather than in the overflow queue
+
+  /**
+   * Timer wheel constructor.
+   *
+   * @param long tickMillis - width of one slot in milliseconds
+   * @param int numSlots    - number of slots in one lap of the wheel
+   * @param long now        - current time in milliseconds
+   */
+  ExpiryWheel(long tickMillis, int numSlots, long now) {
+    this.tickMillis = tickMillis;
+    this.slots = new ArrayList<LinkedList<Entry<K>>>(numSlots);
+    for (int i = 0; i < numSlots; i++) {
+      slots.add(new LinkedList<Entry<K>>());
+    }
+    this.overflow = new PriorityQueue<Entry<K>>(Comparator.comparingLong(entry -> entry.expiresAt));
+    this.currentTick = now / tickMillis;
+    this.size = 0;
+  }
+
+  /**
+   * Adds a key to the wheel in the slot for its expiry time, or to the overflow
+   * queue if that is more than one lap out. Keys that are already due go into
+   * the slot that will be swept next.
+   *
+   * @param K key         - key that expires
+   * @param long expiresAt - expiry time in milliseconds
+   */
+  void schedule(K key, long expiresAt) {
+    Entry<K> entry = new Entry<K>(key, expiresAt);
+    long tick = Math.max(expiresAt / tickMillis, currentTick);
+    if (tick - currentTick < slots.size()) {
+      slot(tick).add(entry);
+      slotted++;
+    } else {
+      overflow.add(entry);
+    }
+    size++;
+  }
+
+  /**
+   * Returns true if a tick has ended since the last sweep while the wheel holds
+   * entries, so poll() may find due entries without rescanning the running tick.
+   * Writes check this before sweeping, which keeps the sweep off the write path
+   * for all but one write per tick.
+   *
+   * @param long now - current time in milliseconds
+   *
+   * @return boolean - true if poll() should be called
+   */
+  boolean isDue(long now) {
+    return size > 0 && now / tickMillis > currentTick;
+  }
+
+  /**
+   * Removes and returns at most max entries that are due at the provided time.
+   * Sweeping resumes where the previous call stopped, so a backlog of due
+   * entries is drained over several calls instead of all at once. Every entry
+   * in the slot of a tick that has ended is due, only the slot of the running
+   * tick needs its entries checked one by one.
+   *
+   * @param long now - current time in milliseconds
+   * @param int max  - maximum number of entries to return
+   *
+   * @return List<Entry<K>> - due entries, possibly stale
+   */
+  List<Entry<K>> poll(long now, int max) {
+    List<Entry<K>> due = new ArrayList<Entry<K>>();
+    long nowTick = now / tickMillis;
+
+    while (size > 0 && due.size() < max) {
+      // nothing is due this lap, so skip ahead to the first overflow entry
+      if (slotted == 0 && currentTick < nowTick) {
+        currentTick = Math.min(nowTick, overflow.peek().expiresAt / tickMillis);
+        cascade();
+      }
+
+      LinkedList<Entry<K>> slot = slot(currentTick);
+      if (currentTick >= nowTick) {
+        // the current tick can still receive entries, so never sweep past it
+        Iterator<Entry<K>> it = slot.iterator();
+        while (it.hasNext() && due.size() < max) {
+          Entry<K> entry = it.next();
+          if (entry.expiresAt <= now) {
+            it.remove();
+            due.add(entry);
+            slotted--;
+            size--;
+          }
+        }
+        break;
+      }
+
+      while (!slot.isEmpty() && due.size() < max) {
+        due.add(slot.removeFirst());
+        slotted--;
+        size--;
+      }
+      if (!slot.isEmpty()) {
+        break;
+      }
+      currentTick++;
+      cascade();
+    }
+
+    if (size == 0) {
+      currentTick = Math.max(currentTick, nowTick);
+    }
+    return due;
+  }
+
+  /**
+   * Moves overflow entries that are now within one lap of the current tick
+   * into their slots
+   */
+  private void cascade() {
+    while (!overflow.isEmpty()
+        && overflow.peek().expiresAt / tickMillis - currentTick < slots.size()) {
+      Entry<K> entry = overflow.poll();
+      slot(entry.expiresAt / tickMillis).add(entry);
+      slotted++;
+    }
+  }
+
+  /**
+   * Returns number of entries in the wheel, including stale ones
+   *
+   * @return int - number of entries
+   */
+  int size() {
+    return this.size;
+  }
+
+  /**
+   * Returns true if the wheel holds no entries
+   *
+   * @return boolean - true if empty, false if not
+   */
+  boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  /**
+   * Returns the slot for the provided tick
+   *
+   * @param long tick - tick to look up
+   *
+   * @return LinkedList<Entry<K>> - slot for the tick
+   */
+  private LinkedList<Entry<K>> slot(long tick) {
+    return slots.get((int) (tick % slots.size()));
+  }
+
+  /**
+   * Key and the expiry time it was scheduled with
+   */
+  static class Entry<K> {
+    final K key;
+    final long expiresAt;
+
+    Entry(K key, long expiresAt) {
+      this.key = key;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Small direct-mapped cache of recently looked up keys. Each key hashes to
+ * exactly one slot and a new entry simply replaces whatever was there, so
+ * lookups and updates are a single array access.
+ *
+ * The cache does not know about the tree it sits in front of. The owner is
+ * responsible for invalidating keys whose cached entry is no longer valid.
+ *
+ * @param <K> is the generic type of key
+ * @param <T> is the generic type of cached entry
+ */
+class FrontCache<K, T> {
+
+  private final Object[] keys;
+
+  private final Object[] entries;
+
+  private final int mask;
+
+  private long hits;
+
+  private long misses;
+
+  /**
+   * Front cache constructor. Capacity is rounded up to a power of two.
+   *
+   * @param int capacity - number of slots
+   */
+  FrontCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.keys = new Object[size];
+    this.entries = new Object[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Returns the cached entry for the provided key, or null if it is not cached.
+   * Counts the lookup as a hit or a miss.
+   *
+   * @param K key - key to look up
+   *
+   * @return T - cached entry or null
+   */
+  @SuppressWarnings("unchecked")
+  T get(K key) {
+    int slot = slot(key);
+    if (key.equals(keys[slot])) {
+      hits++;
+      return (T) entries[slot];
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Caches the entry for the provided key, replacing the slot's previous entry
+   *
+   * @param K key   - key to cache
+   * @param T entry - entry to cache
+   */
+  void put(K key, T entry) {
+    int slot = slot(key);
+    keys[slot] = key;
+    entries[slot] = entry;
+  }
+
+  /**
+   * Removes the provided key from the cache if it is cached
+   *
+   * @param K key - key to invalidate
+   */
+  void invalidate(K key) {
+    int slot = slot(key);
+    if (key.equals(keys[slot])) {
+      keys[slot] = null;
+      entries[slot] = null;
+    }
+  }
+
+  /**
+   * Returns number of lookups that found the key cached
+   *
+   * @return long - number of hits
+   */
+  long hits() {
+    return this.hits;
+  }
+
+  /**
+   * Returns number of lookups that did not find the key cached
+   *
+   * @return long - number of misses
+   */
+  long misses() {
+    return this.misses;
+  }
+
+  /**
+   * Returns fraction of lookups that were hits, 0 if there were no lookups
+   *
+   * @return double - hit ratio
+   */
+  double hitRatio() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0.0 : (double) hits / lookups;
+  }
+
+  /**
+   * Returns the slot for the provided key
+   *
+   * @param K key - key to look up
+   *
+   * @return int - slot index
+   */
+  private int slot(Object key) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Closed interval [start, end]. Intervals are ordered by start and then by end,
+ * so they can be used as BALST keys.
+ *
+ * @param <T> is the generic type of endpoint
+ */
+public class Interval<T extends Comparable<T>> implements Comparable<Interval<T>> {
+
+  private final T start;
+
+  private final T end;
+
+  /**
+   * Interval constructor.
+   *
+   * @param T start - smallest point in the interval
+   * @param T end   - largest point in the interval
+   *
+   * @throws IllegalArgumentException - if end is before start
+   */
+  public Interval(T start, T end) {
+    if (end.compareTo(start) < 0) {
+      throw new IllegalArgumentException("interval end " + end + " is before start " + start);
+    }
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Returns smallest point in the interval
+   *
+   * @return T - start
+   */
+  public T getStart() {
+    return this.start;
+  }
+
+  /**
+   * Returns largest point in the interval
+   *
+   * @return T - end
+   */
+  public T getEnd() {
+    return this.end;
+  }
+
+  /**
+   * Returns true if this interval shares at least one point with [lo, hi]
+   *
+   * @param T lo - start of other interval
+   * @param T hi - end of other interval
+   *
+   * @return boolean - true if the intervals overlap
+   */
+  public boolean overlaps(T lo, T hi) {
+    return start.compareTo(hi) <= 0 && end.compareTo(lo) >= 0;
+  }
+
+  @Override
+  public int compareTo(Interval<T> other) {
+    int compare = start.compareTo(other.start);
+    return compare != 0 ? compare : end.compareTo(other.end);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof Interval)) {
+      return false;
+    }
+    Interval<?> interval = (Interval<?>) other;
+    return start.equals(interval.start) && end.equals(interval.end);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * start.hashCode() + end.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "[" + start + ", " + end + "]";
+  }
+
+}
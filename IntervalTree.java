@@ -0,0 +1,234 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Interval tree built on BALST. Intervals are the keys, ordered by start, and
+ * every subtree keeps the largest end point of its keys as its aggregate, so
+ * values are stored as they are. BALST keeps that aggregate correct through
+ * inserts, removes and rotations, so overlap queries can skip every subtree
+ * whose intervals all end before the query starts.
+ *
+ * The same interval may be inserted more than once. Each insert is kept with a
+ * sequence number that orders equal intervals by when they were inserted, so
+ * get() and remove() of an interval held several times act on the oldest.
+ *
+ * @param <T> is the generic type of endpoint
+ * @param <V> is the generic type of value
+ */
+public class IntervalTree<T extends Comparable<T>, V> {
+
+  private final BALST<IntervalKey<T>, V> tree;
+
+  private final Aggregator<IntervalKey<T>, T> maxEnd;
+
+  private long nextSequence; // sequence number of the next insert
+
+  /**
+   * Interval tree constructor.
+   */
+  public IntervalTree() {
+    this.tree = new BALST<IntervalKey<T>, V>();
+    this.maxEnd = new Aggregator<IntervalKey<T>, T>() {
+      public T identity() {
+        return null;
+      }
+
+      public T lift(IntervalKey<T> key) {
+        return key.interval.getEnd();
+      }
+
+      public T combine(T left, T right) {
+        if (left == null) {
+          return right;
+        }
+        if (right == null) {
+          return left;
+        }
+        return left.compareTo(right) >= 0 ? left : right;
+      }
+    };
+    this.tree.enableKeyAggregate(maxEnd);
+  }
+
+  /**
+   * Inserts the interval [start, end] with the provided value. An interval that
+   * is already in the tree is added again, after the copies inserted before.
+   *
+   * @param T start - start of interval
+   * @param T end   - end of interval
+   * @param V value - value for the interval
+   *
+   * @throws IllegalNullKeyException  - if start or end is null
+   * @throws IllegalArgumentException - if end is before start
+   */
+  public void insert(T start, T end, V value) throws IllegalNullKeyException {
+    try {
+      tree.insert(new IntervalKey<T>(toInterval(start, end), nextSequence++), value);
+    } catch (DuplicateKeyException e) {
+      // every insert gets a new sequence number
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Removes the interval [start, end], the one inserted first if the tree holds
+   * it more than once
+   *
+   * @param T start - start of interval
+   * @param T end   - end of interval
+   *
+   * @throws IllegalNullKeyException - if start or end is null
+   * @throws KeyNotFoundException    - if the interval is not in the tree
+   */
+  public void remove(T start, T end) throws IllegalNullKeyException, KeyNotFoundException {
+    oldest(start, end).remove();
+  }
+
+  /**
+   * Returns the value of the interval [start, end], the one inserted first if
+   * the tree holds it more than once
+   *
+   * @param T start - start of interval
+   * @param T end   - end of interval
+   *
+   * @return V - value for the interval
+   *
+   * @throws IllegalNullKeyException - if start or end is null
+   * @throws KeyNotFoundException    - if the interval is not in the tree
+   */
+  public V get(T start, T end) throws IllegalNullKeyException, KeyNotFoundException {
+    return oldest(start, end).value();
+  }
+
+  /**
+   * Returns every interval that shares at least one point with [lo, hi], in
+   * order of start. A single in-order walk skips every subtree whose intervals
+   * all end before lo and stops at the first interval starting after hi, so it
+   * runs in O(log n + k) for k results on typical data.
+   *
+   * @param T lo - start of query interval
+   * @param T hi - end of query interval
+   *
+   * @return List<Map.Entry<Interval<T>, V>> - overlapping intervals and their values
+   *
+   * @throws IllegalNullKeyException - if lo or hi is null
+   */
+  public List<Map.Entry<Interval<T>, V>> overlapping(T lo, T hi) throws IllegalNullKeyException {
+    if (lo == null || hi == null) {
+      throw new IllegalNullKeyException();
+    }
+    List<Map.Entry<Interval<T>, V>> result = new ArrayList<Map.Entry<Interval<T>, V>>();
+    if (hi.compareTo(lo) < 0) {
+      return result;
+    }
+
+    // intervals that start after hi cannot overlap, and neither can any subtree
+    // whose intervals all end before lo
+    tree.search(maxEnd, end -> end != null && end.compareTo(lo) >= 0,
+        key -> key.interval.getStart().compareTo(hi) > 0,
+        (key, value) -> result.add(
+            new AbstractMap.SimpleImmutableEntry<Interval<T>, V>(key.interval, value)));
+    return result;
+  }
+
+  /**
+   * Returns every interval that contains the provided point, in order of start
+   *
+   * @param T point - point to stab with
+   *
+   * @return List<Map.Entry<Interval<T>, V>> - intervals containing the point and their values
+   *
+   * @throws IllegalNullKeyException - if point is null
+   */
+  public List<Map.Entry<Interval<T>, V>> stab(T point) throws IllegalNullKeyException {
+    return overlapping(point, point);
+  }
+
+  /**
+   * Return number of intervals in the tree
+   *
+   * @return int - number of intervals
+   */
+  public int numKeys() {
+    return tree.numKeys();
+  }
+
+  /**
+   * Returns an interval after checking its endpoints
+   *
+   * @param T start - start of interval
+   * @param T end   - end of interval
+   *
+   * @return Interval<T> - [start, end]
+   *
+   * @throws IllegalNullKeyException - if start or end is null
+   */
+  private Interval<T> toInterval(T start, T end) throws IllegalNullKeyException {
+    if (start == null || end == null) {
+      throw new IllegalNullKeyException();
+    }
+    return new Interval<T>(start, end);
+  }
+
+  /**
+   * Returns a cursor at the oldest copy of the interval [start, end]
+   *
+   * @param T start - start of interval
+   * @param T end   - end of interval
+   *
+   * @return BALST<IntervalKey<T>, V>.Cursor - cursor at the interval
+   *
+   * @throws IllegalNullKeyException - if start or end is null
+   * @throws KeyNotFoundException    - if the interval is not in the tree
+   */
+  private BALST<IntervalKey<T>, V>.Cursor oldest(T start, T end)
+      throws IllegalNullKeyException, KeyNotFoundException {
+    Interval<T> interval = toInterval(start, end);
+    BALST<IntervalKey<T>, V>.Cursor cursor = tree.cursor();
+    if (!cursor.seek(new IntervalKey<T>(interval, Long.MIN_VALUE))
+        || !cursor.key().interval.equals(interval)) {
+      throw new KeyNotFoundException();
+    }
+    return cursor;
+  }
+
+  /**
+   * Interval and the sequence number of its insert, ordered by interval and
+   * then by sequence number
+   *
+   * @param <T> is the generic type of endpoint
+   */
+  private static class IntervalKey<T extends Comparable<T>> implements Comparable<IntervalKey<T>> {
+    private final Interval<T> interval;
+    private final long sequence;
+
+    IntervalKey(Interval<T> interval, long sequence) {
+      this.interval = interval;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(IntervalKey<T> other) {
+      int compare = interval.compareTo(other.interval);
+      return compare != 0 ? compare : Long.compare(sequence, other.sequence);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof IntervalKey)) {
+        return false;
+      }
+      IntervalKey<?> that = (IntervalKey<?>) other;
+      return sequence == that.sequence && interval.equals(that.interval);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(interval, sequence);
+    }
+  }
+
+}
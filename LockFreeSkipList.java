@@ -0,0 +1,450 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free ordered map with the BALSTADT operations, for write heavy workloads
+ * with many threads. Nodes are linked into a skip list whose next references
+ * carry a mark bit. A remove first marks a node's references, which logically
+ * deletes it, and any thread that later passes the node unlinks it with a
+ * compare-and-set. No operation ever blocks another. insert(), remove() and
+ * contains() are linearizable, and get() and contains() never write.
+ *
+ * Levels are chosen at random, so the expected search path is logarithmic
+ * regardless of insertion order. A skip list has no root or child links, so the
+ * methods that describe tree shape throw UnsupportedOperationException.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class LockFreeSkipList<K extends Comparable<K>, V> implements BALSTADT<K, V> {
+
+  private static final int MAX_LEVEL = 32;
+
+  private final Node<K, V> head;
+
+  private final Node<K, V> tail;
+
+  private final LongAdder numKeys;
+
+  /**
+   * Skip list constructor. Initialize values.
+   */
+  public LockFreeSkipList() {
+    this.head = new Node<K, V>(null, null, MAX_LEVEL - 1);
+    this.tail = new Node<K, V>(null, null, MAX_LEVEL - 1);
+    for (int level = 0; level < MAX_LEVEL; level++) {
+      head.next[level] = new AtomicMarkableReference<Node<K, V>>(tail, false);
+      tail.next[level] = new AtomicMarkableReference<Node<K, V>>(null, false);
+    }
+    this.numKeys = new LongAdder();
+  }
+
+  /**
+   * Not supported, a skip list has no root.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public K getKeyAtRoot() {
+    throw new UnsupportedOperationException("a skip list has no root");
+  }
+
+  /**
+   * Not supported, a skip list has no child links.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    throw new UnsupportedOperationException("a skip list has no child links");
+  }
+
+  /**
+   * Not supported, a skip list has no child links.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    throw new UnsupportedOperationException("a skip list has no child links");
+  }
+
+  /**
+   * Returns number of levels in use, which bounds the number of levels a search
+   * descends through.
+   *
+   * @return int - number of non-empty levels, 0 if empty
+   */
+  @Override
+  public int getHeight() {
+    for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+      if (head.next[level].getReference() != tail) {
+        return level + 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns list containing all keys in order. Under concurrent updates the list
+   * is weakly consistent: it contains every key present for the whole traversal
+   * and may or may not contain keys inserted or removed during it.
+   *
+   * @return List<K> - containing all keys in order
+   */
+  @Override
+  public List<K> getInOrderTraversal() {
+    List<K> list = new ArrayList<K>();
+    boolean[] marked = {false};
+    Node<K, V> node = head.next[0].getReference();
+    while (node != tail) {
+      Node<K, V> next = node.next[0].get(marked);
+      if (!marked[0]) {
+        list.add(node.key);
+      }
+      node = next;
+    }
+    return list;
+  }
+
+  /**
+   * Not supported, a skip list has no tree shape.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public List<K> getPreOrderTraversal() {
+    throw new UnsupportedOperationException("a skip list has no tree shape");
+  }
+
+  /**
+   * Not supported, a skip list has no tree shape.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public List<K> getPostOrderTraversal() {
+    throw new UnsupportedOperationException("a skip list has no tree shape");
+  }
+
+  /**
+   * Not supported, a skip list has no tree shape.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public List<K> getLevelOrderTraversal() {
+    throw new UnsupportedOperationException("a skip list has no tree shape");
+  }
+
+  /**
+   * Inserts the key/value pair. Linearizes at the compare-and-set that links the
+   * new node into the bottom level.
+   *
+   * @param key   - key to be added
+   * @param value - value to be added to associated key
+   *
+   * @throws IllegalNullKeyException - if key is null
+   * @throws DuplicateKeyException   - if key already exists
+   */
+  @Override
+  public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+
+    int topLevel = randomLevel();
+    Node<K, V>[] preds = newLevelArray();
+    Node<K, V>[] succs = newLevelArray();
+
+    while (true) {
+      if (find(key, preds, succs)) {
+        throw new DuplicateKeyException();
+      }
+
+      Node<K, V> node = new Node<K, V>(key, value, topLevel);
+      for (int level = 0; level <= topLevel; level++) {
+        node.next[level] = new AtomicMarkableReference<Node<K, V>>(succs[level], false);
+      }
+
+      // once linked into the bottom level the key is in the map
+      if (!preds[0].next[0].compareAndSet(succs[0], node, false, false)) {
+        continue;
+      }
+      numKeys.increment();
+
+      // link the upper levels, which only speed up searches
+      for (int level = 1; level <= topLevel; level++) {
+        while (true) {
+          Node<K, V> succ = succs[level];
+          Node<K, V> current = node.next[level].getReference();
+
+          // stop building once a concurrent remove has started marking the node
+          if (current != succ && !node.next[level].compareAndSet(current, succ, false, false)) {
+            return;
+          }
+          if (node.next[level].isMarked()) {
+            return;
+          }
+          if (preds[level].next[level].compareAndSet(succ, node, false, false)) {
+            break;
+          }
+          if (!find(key, preds, succs) || succs[0] != node) {
+            return;
+          }
+        }
+      }
+      return;
+    }
+  }
+
+  /**
+   * Removes the key. Linearizes at the compare-and-set that marks the node's
+   * bottom level reference.
+   *
+   * @param key the key to be removed
+   *
+   * @return boolean - true if key is removed
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in the map
+   */
+  @Override
+  public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+
+    Node<K, V>[] preds = newLevelArray();
+    Node<K, V>[] succs = newLevelArray();
+    if (!find(key, preds, succs)) {
+      throw new KeyNotFoundException();
+    }
+    Node<K, V> node = succs[0];
+    boolean[] marked = {false};
+
+    // mark the upper levels first so no new links are built on top of the node
+    for (int level = node.topLevel; level >= 1; level--) {
+      Node<K, V> succ = node.next[level].get(marked);
+      while (!marked[0]) {
+        node.next[level].compareAndSet(succ, succ, false, true);
+        succ = node.next[level].get(marked);
+      }
+    }
+
+    // whoever marks the bottom level removes the key
+    Node<K, V> succ = node.next[0].get(marked);
+    while (true) {
+      boolean markedByUs = node.next[0].compareAndSet(succ, succ, false, true);
+      succ = node.next[0].get(marked);
+      if (markedByUs) {
+        numKeys.decrement();
+        find(key, preds, succs); // unlink the node
+        return true;
+      } else if (marked[0]) {
+        throw new KeyNotFoundException();
+      }
+    }
+  }
+
+  /**
+   * Returns the value of the key.
+   *
+   * @param K key - key to search for
+   *
+   * @return V - value of provided key
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in the map
+   */
+  @Override
+  public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+    Node<K, V> node = search(key);
+    if (node == null) {
+      throw new KeyNotFoundException();
+    }
+    return node.value;
+  }
+
+  /**
+   * Returns true if the key is in the map.
+   *
+   * @param K key - key to search for
+   *
+   * @return boolean - true if key is in the map, false if not
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   */
+  @Override
+  public boolean contains(K key) throws IllegalNullKeyException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+    return search(key) != null;
+  }
+
+  /**
+   * Return number of keys in the map. Exact when there are no concurrent updates.
+   *
+   * @return int - number of keys
+   */
+  @Override
+  public int numKeys() {
+    return numKeys.intValue();
+  }
+
+  /**
+   * Prints the keys on each level, top level first
+   */
+  @Override
+  public void print() {
+    boolean[] marked = {false};
+    for (int level = getHeight() - 1; level >= 0; level--) {
+      StringBuilder line = new StringBuilder();
+      Node<K, V> node = head.next[level].getReference();
+      while (node != tail) {
+        Node<K, V> next = node.next[level].get(marked);
+        if (!marked[0]) {
+          line.append(node.key).append(' ');
+        }
+        node = next;
+      }
+      System.out.println(line.toString().trim());
+    }
+  }
+
+  /**
+   * Finds the predecessor and successor of the key on every level, unlinking
+   * marked nodes it passes. Starts over if another thread changes a link first.
+   *
+   * @param K key        - key to search for
+   * @param Node[] preds - filled with the last node before key on each level
+   * @param Node[] succs - filled with the first node at or after key on each level
+   *
+   * @return boolean - true if key is in the map
+   */
+  private boolean find(K key, Node<K, V>[] preds, Node<K, V>[] succs) {
+    boolean[] marked = {false};
+    retry:
+    while (true) {
+      Node<K, V> pred = head;
+      Node<K, V> current = null;
+      for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+        current = pred.next[level].getReference();
+        while (true) {
+          Node<K, V> succ = current.next[level].get(marked);
+          while (marked[0]) {
+            if (!pred.next[level].compareAndSet(current, succ, false, false)) {
+              continue retry;
+            }
+            current = succ;
+            succ = current.next[level].get(marked);
+          }
+          if (isBefore(current, key)) {
+            pred = current;
+            current = succ;
+          } else {
+            break;
+          }
+        }
+        preds[level] = pred;
+        succs[level] = current;
+      }
+      return current != tail && current.key.compareTo(key) == 0;
+    }
+  }
+
+  /**
+   * Finds the unmarked node with the key without changing any links
+   *
+   * @param K key - key to search for
+   *
+   * @return Node - node with the key, or null if key is not in the map
+   */
+  private Node<K, V> search(K key) {
+    boolean[] marked = {false};
+    Node<K, V> pred = head;
+    Node<K, V> current = null;
+    for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+      current = pred.next[level].getReference();
+      while (true) {
+        Node<K, V> succ = current.next[level].get(marked);
+        while (marked[0]) {
+          current = succ;
+          succ = current.next[level].get(marked);
+        }
+        if (isBefore(current, key)) {
+          pred = current;
+          current = succ;
+        } else {
+          break;
+        }
+      }
+    }
+    if (current != tail && current.key.compareTo(key) == 0) {
+      return current;
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the node comes before the key. The tail comes after every key.
+   *
+   * @param Node node - node to check
+   * @param K key     - key to compare with
+   *
+   * @return boolean - true if node's key is less than key
+   */
+  private boolean isBefore(Node<K, V> node, K key) {
+    return node != tail && node.key.compareTo(key) < 0;
+  }
+
+  /**
+   * Returns a random top level, where each level is half as likely as the one below
+   *
+   * @return int - top level between 0 and MAX_LEVEL - 1
+   */
+  private static int randomLevel() {
+    return Integer.numberOfTrailingZeros(ThreadLocalRandom.current().nextInt() | (1 << (MAX_LEVEL - 1)));
+  }
+
+  /**
+   * Returns an array with a slot for every level, for the predecessors or
+   * successors of a key
+   *
+   * @return Node<K, V>[] - array of MAX_LEVEL nulls
+   */
+  private static <K, V> Node<K, V>[] newLevelArray() {
+    @SuppressWarnings("unchecked")
+    Node<K, V>[] nodes = (Node<K, V>[]) new Node<?, ?>[MAX_LEVEL];
+    return nodes;
+  }
+
+  /**
+   * Skip list node. The mark bit on a next reference means the node is removed.
+   */
+  private static class Node<K, V> {
+    private final K key; // key, null for head and tail
+    private final V value; // data
+
+    private final AtomicMarkableReference<Node<K, V>>[] next; // next node on each level
+    private final int topLevel; // highest level the node is on
+
+    private Node(K key, V value, int topLevel) {
+      this.key = key;
+      this.value = value;
+      this.topLevel = topLevel;
+      @SuppressWarnings("unchecked")
+      AtomicMarkableReference<Node<K, V>>[] next =
+          (AtomicMarkableReference<Node<K, V>>[]) new AtomicMarkableReference<?>[topLevel + 1];
+      this.next = next;
+    }
+  }
+
+}
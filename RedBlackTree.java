@@ -0,0 +1,204 @@
+/**
+ * Red-black tree. Rebalancing after an update does at most two rotations for an
+ * insert and three for a remove, and otherwise only recolors nodes.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class RedBlackTree<K extends Comparable<K>, V> extends AbstractBST<K, V> {
+
+  private static final int RED = 0;
+
+  private static final int BLACK = 1;
+
+  /**
+   * Red-black tree constructor.
+   */
+  public RedBlackTree() {
+    super();
+  }
+
+  /**
+   * Inserts a node with the assigned key/value pair and restores the red-black
+   * properties.
+   *
+   * @param key   - key to be added to tree
+   * @param value - value to be added to associated key in tree
+   *
+   * @throws IllegalNullKeyException - if key is null
+   * @throws DuplicateKeyException   - if key already exists in tree
+   */
+  @Override
+  public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+    Node<K, V> node = insertLeaf(key, value);
+    node.balance = RED;
+    fixAfterInsert(node);
+  }
+
+  /**
+   * Removes the node with the provided key and restores the red-black properties.
+   *
+   * @param key the key of the node to be deleted
+   *
+   * @return boolean - true if node is removed from tree
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in tree
+   */
+  @Override
+  public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    Node<K, V> node = getExistingNode(key);
+
+    // a node with two children takes its successor's entry and the successor is removed instead
+    if (node.left != null && node.right != null) {
+      Node<K, V> successor = getInOrderSuccessor(node);
+      node.key = successor.key;
+      node.value = successor.value;
+      node = successor;
+    }
+
+    Node<K, V> replacement = node.left != null ? node.left : node.right;
+    if (replacement != null) {
+      replace(node, replacement);
+      if (node.balance == BLACK) {
+        fixAfterRemove(replacement);
+      }
+    } else if (node.parent == null) {
+      root = null;
+    } else {
+      // fix up with the leaf still in place so it can stand in for its null replacement
+      if (node.balance == BLACK) {
+        fixAfterRemove(node);
+      }
+      replace(node, null);
+    }
+
+    numKeys--;
+    return true;
+  }
+
+  /**
+   * Restores the red-black properties after inserting a red node
+   *
+   * @param Node node - inserted node
+   */
+  private void fixAfterInsert(Node<K, V> node) {
+    while (node != root && colorOf(node.parent) == RED) {
+      Node<K, V> parent = node.parent;
+      Node<K, V> grandParent = parent.parent;
+
+      if (parent == grandParent.left) {
+        Node<K, V> uncle = grandParent.right;
+        if (colorOf(uncle) == RED) {
+          parent.balance = BLACK;
+          uncle.balance = BLACK;
+          grandParent.balance = RED;
+          node = grandParent;
+        } else {
+          if (node == parent.right) {
+            node = parent;
+            rotateLeft(node);
+            parent = node.parent;
+          }
+          parent.balance = BLACK;
+          grandParent.balance = RED;
+          rotateRight(grandParent);
+        }
+      } else {
+        Node<K, V> uncle = grandParent.left;
+        if (colorOf(uncle) == RED) {
+          parent.balance = BLACK;
+          uncle.balance = BLACK;
+          grandParent.balance = RED;
+          node = grandParent;
+        } else {
+          if (node == parent.left) {
+            node = parent;
+            rotateRight(node);
+            parent = node.parent;
+          }
+          parent.balance = BLACK;
+          grandParent.balance = RED;
+          rotateLeft(grandParent);
+        }
+      }
+    }
+    root.balance = BLACK;
+  }
+
+  /**
+   * Restores the red-black properties after removing a black node
+   *
+   * @param Node node - node carrying the extra black
+   */
+  private void fixAfterRemove(Node<K, V> node) {
+    while (node != root && colorOf(node) == BLACK) {
+      Node<K, V> parent = node.parent;
+
+      if (node == parent.left) {
+        Node<K, V> sibling = parent.right;
+        if (colorOf(sibling) == RED) {
+          sibling.balance = BLACK;
+          parent.balance = RED;
+          rotateLeft(parent);
+          sibling = parent.right;
+        }
+
+        if (colorOf(sibling.left) == BLACK && colorOf(sibling.right) == BLACK) {
+          sibling.balance = RED;
+          node = parent;
+        } else {
+          if (colorOf(sibling.right) == BLACK) {
+            sibling.left.balance = BLACK;
+            sibling.balance = RED;
+            rotateRight(sibling);
+            sibling = parent.right;
+          }
+          sibling.balance = parent.balance;
+          parent.balance = BLACK;
+          sibling.right.balance = BLACK;
+          rotateLeft(parent);
+          node = root;
+        }
+      } else {
+        Node<K, V> sibling = parent.left;
+        if (colorOf(sibling) == RED) {
+          sibling.balance = BLACK;
+          parent.balance = RED;
+          rotateRight(parent);
+          sibling = parent.left;
+        }
+
+        if (colorOf(sibling.left) == BLACK && colorOf(sibling.right) == BLACK) {
+          sibling.balance = RED;
+          node = parent;
+        } else {
+          if (colorOf(sibling.left) == BLACK) {
+            sibling.right.balance = BLACK;
+            sibling.balance = RED;
+            rotateLeft(sibling);
+            sibling = parent.left;
+          }
+          sibling.balance = parent.balance;
+          parent.balance = BLACK;
+          sibling.left.balance = BLACK;
+          rotateRight(parent);
+          node = root;
+        }
+      }
+    }
+    node.balance = BLACK;
+  }
+
+  /**
+   * Returns color of the provided node, null nodes are black
+   *
+   * @param Node node - node to check
+   *
+   * @return int - RED or BLACK
+   */
+  private int colorOf(Node<K, V> node) {
+    return node == null ? BLACK : node.balance;
+  }
+
+}
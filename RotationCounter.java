@@ -0,0 +1,15 @@
+/**
+ * Implemented by trees that count their rotations, so balancing engines can be
+ * compared by how much restructuring a workload causes.
+ */
+public interface RotationCounter {
+
+  /**
+   * Returns number of single rotations done since the tree was created. A double
+   * rotation counts as two.
+   *
+   * @return long - number of rotations
+   */
+  long getRotationCount();
+
+}
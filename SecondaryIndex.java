@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Secondary index over a BALST, mapping an attribute derived from each value to
+ * the keys holding it. Created with BALST.addIndex(), after which the tree keeps
+ * it in sync on every insert, remove, expiry and cursor update. Values whose
+ * attribute is null are not indexed.
+ *
+ * Every indexed key is kept as one attribute and key pair in a single BALST
+ * ordered by attribute and then by key, so the keys of one attribute form a key
+ * range. Finding them costs O(log n + k) for k keys instead of a scan of the
+ * whole tree, and indexing a key costs one insert of a small pair. Keys that have
+ * expired but not yet been purged from the tree may still be listed.
+ *
+ * @param <A> is the generic type of attribute
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class SecondaryIndex<A extends Comparable<A>, K extends Comparable<K>, V> {
+
+  private final Function<? super V, ? extends A> attribute;
+
+  private final BALST<IndexKey<A, K>, Boolean> entries;
+
+  /**
+   * Secondary index constructor.
+   *
+   * @param Function attribute - derives the indexed attribute from a value
+   */
+  SecondaryIndex(Function<? super V, ? extends A> attribute) {
+    this.attribute = attribute;
+    this.entries = new BALST<IndexKey<A, K>, Boolean>();
+  }
+
+  /**
+   * Returns the keys whose value has the provided attribute, in key order
+   *
+   * @param A value - attribute to look up
+   *
+   * @return List<K> - matching keys, empty if there are none
+   *
+   * @throws IllegalNullKeyException - if value is null
+   */
+  public List<K> keysWith(A value) throws IllegalNullKeyException {
+    if (value == null) {
+      throw new IllegalNullKeyException();
+    }
+    return keysIn(IndexKey.before(value), IndexKey.after(value));
+  }
+
+  /**
+   * Returns the keys whose value has an attribute in [lo, hi), ordered by
+   * attribute and then by key
+   *
+   * @param A lo - smallest attribute included
+   * @param A hi - smallest attribute excluded, null for no upper bound
+   *
+   * @return List<K> - matching keys, empty if there are none
+   *
+   * @throws IllegalNullKeyException - if lo is null
+   */
+  public List<K> keysBetween(A lo, A hi) throws IllegalNullKeyException {
+    if (lo == null) {
+      throw new IllegalNullKeyException();
+    }
+    return keysIn(IndexKey.before(lo), hi == null ? null : IndexKey.before(hi));
+  }
+
+  /**
+   * Return number of distinct attributes indexed. Skips from each attribute
+   * straight past its last key, so this costs O(d log n) for d attributes.
+   *
+   * @return int - number of attributes
+   */
+  public int numAttributes() {
+    int count = 0;
+    BALST<IndexKey<A, K>, Boolean>.Cursor cursor = entries.cursor();
+    try {
+      for (boolean found = cursor.first(); found;
+          found = cursor.seek(IndexKey.after(cursor.key().attribute))) {
+        count++;
+      }
+    } catch (IllegalNullKeyException e) {
+      // bounds are never null
+      throw new IllegalStateException(e);
+    }
+    return count;
+  }
+
+  /**
+   * Indexes a key under the attribute of its value
+   *
+   * @param K key   - key added to the tree
+   * @param V value - its value
+   */
+  void add(K key, V value) {
+    A indexed = attribute.apply(value);
+    if (indexed == null) {
+      return;
+    }
+    try {
+      entries.insert(new IndexKey<A, K>(indexed, key, 0), Boolean.TRUE);
+    } catch (IllegalNullKeyException | DuplicateKeyException e) {
+      // the tree only adds keys it does not hold, and never null keys
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Removes a key from under the attribute of its value
+   *
+   * @param K key   - key removed from the tree
+   * @param V value - the value it had
+   */
+  void remove(K key, V value) {
+    A indexed = attribute.apply(value);
+    if (indexed == null) {
+      return;
+    }
+    try {
+      entries.remove(new IndexKey<A, K>(indexed, key, 0));
+    } catch (IllegalNullKeyException | KeyNotFoundException e) {
+      // the tree only removes keys it indexed, under the value it indexed them with
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the keys of the pairs in [from, to)
+   *
+   * @param IndexKey from - smallest pair included
+   * @param IndexKey to   - smallest pair excluded, null for no upper bound
+   *
+   * @return List<K> - keys of the pairs in range
+   *
+   * @throws IllegalNullKeyException - if from is null
+   */
+  private List<K> keysIn(IndexKey<A, K> from, IndexKey<A, K> to) throws IllegalNullKeyException {
+    List<K> keys = new ArrayList<K>();
+    Iterator<Map.Entry<IndexKey<A, K>, Boolean>> range = entries.range(from, to);
+    while (range.hasNext()) {
+      keys.add(range.next().getKey().key);
+    }
+    return keys;
+  }
+
+  /**
+   * Attribute and key pair the index is ordered by. Bounds carry no key and sort
+   * before or after every key of their attribute.
+   *
+   * @param <A> is the generic type of attribute
+   * @param <K> is the generic type of key
+   */
+  private static class IndexKey<A extends Comparable<A>, K extends Comparable<K>>
+      implements Comparable<IndexKey<A, K>> {
+    private final A attribute;
+    private final K key; // null for a bound
+    private final int bound; // -1 before every key of the attribute, 1 after, 0 for a key
+
+    IndexKey(A attribute, K key, int bound) {
+      this.attribute = attribute;
+      this.key = key;
+      this.bound = bound;
+    }
+
+    /**
+     * Returns a bound that sorts before every key of the attribute
+     *
+     * @param A attribute - attribute to bound
+     *
+     * @return IndexKey<A, K> - lower bound
+     */
+    static <A extends Comparable<A>, K extends Comparable<K>> IndexKey<A, K> before(A attribute) {
+      return new IndexKey<A, K>(attribute, null, -1);
+    }
+
+    /**
+     * Returns a bound that sorts after every key of the attribute
+     *
+     * @param A attribute - attribute to bound
+     *
+     * @return IndexKey<A, K> - upper bound
+     */
+    static <A extends Comparable<A>, K extends Comparable<K>> IndexKey<A, K> after(A attribute) {
+      return new IndexKey<A, K>(attribute, null, 1);
+    }
+
+    @Override
+    public int compareTo(IndexKey<A, K> other) {
+      int compare = attribute.compareTo(other.attribute);
+      if (compare != 0) {
+        return compare;
+      }
+      if (bound != 0 || other.bound != 0) {
+        return Integer.compare(bound, other.bound);
+      }
+      return key.compareTo(other.key);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof IndexKey)) {
+        return false;
+      }
+      IndexKey<?, ?> that = (IndexKey<?, ?>) other;
+      return bound == that.bound && attribute.equals(that.attribute) && Objects.equals(key, that.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * attribute.hashCode() + (key == null ? bound : key.hashCode());
+    }
+  }
+
+}
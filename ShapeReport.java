@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+/**
+ * Shape of a search tree as measured by BALST.validate(): how many keys sit at
+ * each depth, and how many nodes a successful search visits on average. A
+ * growing average path length shows a balance regression before it shows up
+ * as latency.
+ */
+public class ShapeReport {
+
+  private final int numKeys;
+
+  private final int[] depthHistogram; // number of keys at each depth, the root is at depth 0
+
+  private final long totalPathLength; // sum over keys of the nodes visited to find them
+
+  /**
+   * Shape report constructor.
+   *
+   * @param int[] depthHistogram - number of keys at each depth, owned by the report
+   */
+  ShapeReport(int[] depthHistogram) {
+    this.depthHistogram = depthHistogram;
+    int keys = 0;
+    long pathLength = 0;
+    for (int depth = 0; depth < depthHistogram.length; depth++) {
+      keys += depthHistogram[depth];
+      pathLength += (long) depthHistogram[depth] * (depth + 1);
+    }
+    this.numKeys = keys;
+    this.totalPathLength = pathLength;
+  }
+
+  /**
+   * Return number of keys in the tree
+   *
+   * @return int - number of keys
+   */
+  public int getNumKeys() {
+    return this.numKeys;
+  }
+
+  /**
+   * Returns height of the tree
+   *
+   * @return int - number of levels, 0 if empty
+   */
+  public int getHeight() {
+    return depthHistogram.length;
+  }
+
+  /**
+   * Returns number of keys at each depth. Index 0 is the root.
+   *
+   * @return int[] - copy of the histogram, as long as the tree is high
+   */
+  public int[] getDepthHistogram() {
+    return Arrays.copyOf(depthHistogram, depthHistogram.length);
+  }
+
+  /**
+   * Returns the average number of nodes visited by a search for a key in the
+   * tree. A perfectly balanced tree of n keys comes close to log2(n + 1) - 1.
+   *
+   * @return double - average path length, 0 if empty
+   */
+  public double getAveragePathLength() {
+    return numKeys == 0 ? 0 : (double) totalPathLength / numKeys;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d keys, height %d, average path length %.2f, depths %s", numKeys,
+        getHeight(), getAveragePathLength(), Arrays.toString(depthHistogram));
+  }
+
+}
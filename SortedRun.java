@@ -0,0 +1,667 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable sorted run of entries, the cold tier of a TieredBALST. Entries are
+ * stored in blocks of about BLOCK_BYTES. Within a block every key is written as
+ * the number of leading bytes it shares with the previous key plus the rest,
+ * so keys with common prefixes take little space. The key codecs given here
+ * write keys so that their bytes compare in key order, which lets neighbouring
+ * keys share long prefixes. A block index holds the first
+ * key of every block, and a Bloom filter lets lookups for missing keys skip the
+ * run without reading a block. The data lives in a byte array on the heap or in
+ * a file on local disk, the index and filter are always on the heap.
+ *
+ * A run may hold tombstones, which mark keys removed after an older run was
+ * written.
+ *
+ * @param <K> is the generic type of key
+ */
+class SortedRun<K extends Comparable<K>> implements Closeable {
+
+  /**
+   * Value returned for a key whose newest entry is a tombstone. Compared by
+   * identity, encoded values are never this array.
+   */
+  static final byte[] TOMBSTONE = new byte[0];
+
+  private static final int BLOCK_BYTES = 512;
+
+  private static final int BLOOM_BITS_PER_KEY = 10;
+
+  private final TraceCodec<K> keyCodec;
+
+  private final List<K> firstKeys; // first key of every block
+
+  private final int[] blockOffsets; // start of every block, then the end of the data
+
+  private final BloomFilter bloom;
+
+  private final int numEntries;
+
+  private final byte[] data; // null if the run is on disk
+
+  private final Path file; // null if the run is on the heap
+
+  private final FileChannel channel;
+
+  /**
+   * Sorted run constructor, use a Builder
+   */
+  private SortedRun(TraceCodec<K> keyCodec, List<K> firstKeys, int[] blockOffsets,
+      BloomFilter bloom, int numEntries, byte[] data, Path file) throws IOException {
+    this.keyCodec = keyCodec;
+    this.firstKeys = firstKeys;
+    this.blockOffsets = blockOffsets;
+    this.bloom = bloom;
+    this.numEntries = numEntries;
+    this.data = file == null ? data : null;
+    this.file = file;
+    if (file != null) {
+      Files.write(file, data);
+      this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    } else {
+      this.channel = null;
+    }
+  }
+
+  /**
+   * Returns a key codec that writes integers as four big-endian bytes with the
+   * sign bit flipped, so the bytes of smaller integers compare lower and close
+   * integers share their leading bytes
+   *
+   * @return TraceCodec<Integer> - integer key codec
+   */
+  static TraceCodec<Integer> integerKeys() {
+    return new TraceCodec<Integer>() {
+      public void write(DataOutput out, Integer key) throws IOException {
+        out.writeInt(key ^ Integer.MIN_VALUE);
+      }
+
+      public Integer read(DataInput in) throws IOException {
+        return in.readInt() ^ Integer.MIN_VALUE;
+      }
+    };
+  }
+
+  /**
+   * Returns a key codec that writes strings as modified UTF-8 ended by a zero
+   * byte instead of led by their length, so a string shares its bytes with every
+   * string it is a prefix of. Modified UTF-8 never contains a zero byte, and its
+   * bytes compare like String.compareTo() for strings without \u0000.
+   *
+   * @return TraceCodec<String> - string key codec
+   */
+  static TraceCodec<String> stringKeys() {
+    return new TraceCodec<String>() {
+      public void write(DataOutput out, String key) throws IOException {
+        for (int i = 0; i < key.length(); i++) {
+          char c = key.charAt(i);
+          if (c != 0 && c < 0x80) {
+            out.write(c);
+          } else if (c < 0x800) {
+            out.write(0xC0 | (c >> 6));
+            out.write(0x80 | (c & 0x3F));
+          } else {
+            out.write(0xE0 | (c >> 12));
+            out.write(0x80 | ((c >> 6) & 0x3F));
+            out.write(0x80 | (c & 0x3F));
+          }
+        }
+        out.write(0);
+      }
+
+      public String read(DataInput in) throws IOException {
+        StringBuilder key = new StringBuilder();
+        int b;
+        while ((b = in.readUnsignedByte()) != 0) {
+          if (b < 0x80) {
+            key.append((char) b);
+          } else if (b < 0xE0) {
+            key.append((char) (((b & 0x1F) << 6) | (in.readUnsignedByte() & 0x3F)));
+          } else {
+            int middle = in.readUnsignedByte() & 0x3F;
+            key.append((char) (((b & 0x0F) << 12) | (middle << 6) | (in.readUnsignedByte() & 0x3F)));
+          }
+        }
+        return key.toString();
+      }
+    };
+  }
+
+  /**
+   * Returns the encoded value of the newest entry for the key
+   *
+   * @param K key - key to look up
+   *
+   * @return byte[] - encoded value, TOMBSTONE if the key was removed, null if
+   *                  the run has no entry for the key
+   */
+  byte[] find(K key) {
+    if (!bloom.mightContain(key)) {
+      return null;
+    }
+
+    // last block whose first key is not greater than the key
+    int low = 0;
+    int high = firstKeys.size() - 1;
+    int block = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (firstKeys.get(middle).compareTo(key) <= 0) {
+        block = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    if (block < 0) {
+      return null;
+    }
+
+    BlockReader reader = new BlockReader(block);
+    while (reader.next()) {
+      int compare = reader.key().compareTo(key);
+      if (compare == 0) {
+        return reader.value();
+      }
+      if (compare > 0) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a reader over every entry in key order
+   *
+   * @return Reader - reader positioned before the first entry
+   */
+  Reader reader() {
+    return new Reader();
+  }
+
+  /**
+   * Return number of entries, tombstones included
+   *
+   * @return int - number of entries
+   */
+  int numEntries() {
+    return this.numEntries;
+  }
+
+  /**
+   * Returns heap used by the run, not counting the keys in the block index
+   *
+   * @return long - size in bytes
+   */
+  long sizeInBytes() {
+    return (data == null ? 0 : data.length) + bloom.sizeInBytes()
+        + (long) blockOffsets.length * Integer.BYTES;
+  }
+
+  /**
+   * Returns bytes of encoded entries, on the heap or on disk
+   *
+   * @return long - size in bytes
+   */
+  long dataBytes() {
+    return blockOffsets[blockOffsets.length - 1];
+  }
+
+  /**
+   * Closes and deletes the file of a run on disk. Does nothing for a run on
+   * the heap.
+   *
+   * @throws IOException - if closing or deleting fails
+   */
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Writes a non-negative variable length integer, seven bits per byte
+   *
+   * @param DataOutput out - run being written
+   * @param int value      - value to write, never negative
+   *
+   * @throws IOException - if writing fails
+   */
+  private static void writeVarInt(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  /**
+   * Reads a variable length integer written by writeVarInt()
+   *
+   * @param DataInput in - block being read
+   *
+   * @return int - value read
+   *
+   * @throws IOException - if reading fails
+   */
+  private static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("variable length integer is too long");
+  }
+
+  /**
+   * Returns the bytes of a block
+   *
+   * @param int block - index of the block
+   *
+   * @return DataInputStream - stream over the block
+   *
+   * @throws UncheckedIOException - if reading from disk fails
+   */
+  private DataInputStream openBlock(int block) {
+    int start = blockOffsets[block];
+    int length = blockOffsets[block + 1] - start;
+    if (data != null) {
+      return new DataInputStream(new ByteSource(data, start, length));
+    }
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, start + buffer.position()) < 0) {
+          throw new IOException("run file " + file + " is truncated");
+        }
+      }
+      return new DataInputStream(new ByteSource(buffer.array(), 0, length));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Input stream over part of a byte array. Unlike ByteArrayInputStream it is
+   * not synchronized, which matters when every entry of a block is decoded a
+   * few bytes at a time, and it can be pointed at new bytes so one stream
+   * decodes every key.
+   */
+  private static class ByteSource extends InputStream {
+    private byte[] bytes;
+    private int position;
+    private int end;
+
+    private ByteSource(byte[] bytes, int offset, int length) {
+      reset(bytes, offset, length);
+    }
+
+    private void reset(byte[] bytes, int offset, int length) {
+      this.bytes = bytes;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() {
+      return position < end ? bytes[position++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      int count = Math.min(length, end - position);
+      System.arraycopy(bytes, position, b, offset, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      int count = (int) Math.max(0, Math.min(n, end - position));
+      position += count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return end - position;
+    }
+  }
+
+  /**
+   * Decodes the entries of one block in order
+   */
+  private class BlockReader {
+    private final DataInputStream in;
+    private final ByteSource keySource = new ByteSource(new byte[0], 0, 0);
+    private final DataInputStream keyIn = new DataInputStream(keySource);
+    private byte[] keyBytes = new byte[0];
+    private int keyLength;
+    private K key;
+    private int valueLength; // encoded length plus one, 0 for a tombstone
+    private byte[] value; // null until value() reads it
+
+    private BlockReader(int block) {
+      this.in = openBlock(block);
+    }
+
+    /**
+     * Decodes the next entry
+     *
+     * @return boolean - true if there was one, false at the end of the block
+     */
+    private boolean next() {
+      try {
+        // skip the value of the previous entry if nobody asked for it
+        if (value == null && valueLength > 1) {
+          in.skipBytes(valueLength - 1);
+        }
+        if (in.available() == 0) {
+          return false;
+        }
+        int shared = readVarInt(in);
+        int suffix = readVarInt(in);
+        if (keyBytes.length < shared + suffix) {
+          keyBytes = Arrays.copyOf(keyBytes, Math.max(shared + suffix, keyBytes.length * 2));
+        }
+        in.readFully(keyBytes, shared, suffix);
+        keyLength = shared + suffix;
+        keySource.reset(keyBytes, 0, keyLength);
+        key = keyCodec.read(keyIn);
+
+        valueLength = readVarInt(in);
+        value = valueLength == 0 ? TOMBSTONE : null;
+        return true;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private K key() {
+      return this.key;
+    }
+
+    private byte[] value() {
+      if (value == null) {
+        value = new byte[valueLength - 1];
+        try {
+          in.readFully(value);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      return this.value;
+    }
+  }
+
+  /**
+   * Reads every entry of the run in key order, one block at a time
+   */
+  class Reader {
+    private int block = -1;
+    private BlockReader current;
+
+    private Reader() {
+    }
+
+    /**
+     * Moves to the next entry
+     *
+     * @return boolean - true if there was one, false at the end of the run
+     */
+    boolean next() {
+      while (current == null || !current.next()) {
+        if (++block >= firstKeys.size()) {
+          current = null;
+          return false;
+        }
+        current = new BlockReader(block);
+      }
+      return true;
+    }
+
+    /**
+     * Returns key of the current entry
+     *
+     * @return K - key
+     */
+    K key() {
+      return current.key();
+    }
+
+    /**
+     * Returns encoded value of the current entry
+     *
+     * @return byte[] - encoded value, or TOMBSTONE
+     */
+    byte[] value() {
+      return current.value();
+    }
+  }
+
+  /**
+   * Merges runs into one in key order, keeping only the newest entry for each
+   * key. Tombstones may only be dropped when the merged runs include the
+   * oldest run, since nothing older is left for them to hide.
+   *
+   * @param List runs              - runs to merge, newest first
+   * @param boolean dropTombstones - true to leave tombstones out
+   * @param TraceCodec keyCodec    - encodes keys
+   * @param Path file              - file for the merged run, null to keep it on the heap
+   *
+   * @return SortedRun<K> - merged run
+   *
+   * @throws IOException - if writing the merged run fails
+   */
+  static <K extends Comparable<K>> SortedRun<K> merge(List<SortedRun<K>> runs,
+      boolean dropTombstones, TraceCodec<K> keyCodec, Path file) throws IOException {
+    int expected = 0;
+    for (SortedRun<K> run : runs) {
+      expected += run.numEntries();
+    }
+    Builder<K> builder = new Builder<K>(keyCodec, expected);
+    Merger<K> merger = new Merger<K>(runs);
+    while (merger.next()) {
+      if (!dropTombstones || merger.value() != TOMBSTONE) {
+        builder.add(merger.key(), merger.value());
+      }
+    }
+    return builder.build(file);
+  }
+
+  /**
+   * Reads several runs as one, in key order, returning only the entry from the
+   * newest run when several runs hold the same key
+   *
+   * @param <K> is the generic type of key
+   */
+  static class Merger<K extends Comparable<K>> {
+    private final PriorityQueue<Source<K>> queue;
+    private K key;
+    private byte[] value;
+
+    /**
+     * Merger constructor.
+     *
+     * @param List runs - runs to merge, newest first
+     */
+    Merger(List<SortedRun<K>> runs) {
+      this.queue = new PriorityQueue<Source<K>>(Math.max(1, runs.size()), (a, b) -> {
+        int compare = a.reader.key().compareTo(b.reader.key());
+        return compare != 0 ? compare : Integer.compare(a.age, b.age);
+      });
+      for (int age = 0; age < runs.size(); age++) {
+        Source<K> source = new Source<K>(runs.get(age).reader(), age);
+        if (source.reader.next()) {
+          queue.add(source);
+        }
+      }
+    }
+
+    /**
+     * Moves to the next key
+     *
+     * @return boolean - true if there was one, false once every run is read
+     */
+    boolean next() {
+      Source<K> newest = queue.poll();
+      if (newest == null) {
+        return false;
+      }
+      key = newest.reader.key();
+      value = newest.reader.value();
+      advance(newest);
+
+      // older entries for the same key are hidden by the newest one
+      while (!queue.isEmpty() && queue.peek().reader.key().compareTo(key) == 0) {
+        advance(queue.poll());
+      }
+      return true;
+    }
+
+    K key() {
+      return this.key;
+    }
+
+    byte[] value() {
+      return this.value;
+    }
+
+    private void advance(Source<K> source) {
+      if (source.reader.next()) {
+        queue.add(source);
+      }
+    }
+  }
+
+  /**
+   * Reader of one run being merged, with the position of the run from newest
+   */
+  private static class Source<K extends Comparable<K>> {
+    private final SortedRun<K>.Reader reader;
+    private final int age;
+
+    private Source(SortedRun<K>.Reader reader, int age) {
+      this.reader = reader;
+      this.age = age;
+    }
+  }
+
+  /**
+   * Writes entries, added in strictly increasing key order, into a new run
+   *
+   * @param <K> is the generic type of key
+   */
+  static class Builder<K extends Comparable<K>> {
+    private final TraceCodec<K> keyCodec;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+    private final DataOutputStream keyOut = new DataOutputStream(keyBytes);
+    private final List<K> firstKeys = new ArrayList<K>();
+    private final List<Integer> blockOffsets = new ArrayList<Integer>();
+    private final BloomFilter bloom;
+    private byte[] previousKey = new byte[0];
+    private int numEntries;
+
+    /**
+     * Builder constructor.
+     *
+     * @param TraceCodec keyCodec - encodes keys
+     * @param int expectedEntries - number of entries that will be added, sizes the Bloom filter
+     */
+    Builder(TraceCodec<K> keyCodec, int expectedEntries) {
+      this.keyCodec = keyCodec;
+      this.bloom = new BloomFilter(expectedEntries, BLOOM_BITS_PER_KEY);
+    }
+
+    /**
+     * Appends an entry
+     *
+     * @param K key        - key, greater than every key added before
+     * @param byte[] value - encoded value, or TOMBSTONE
+     *
+     * @throws IOException - if encoding the key fails
+     */
+    void add(K key, byte[] value) throws IOException {
+      keyBytes.reset();
+      keyCodec.write(keyOut, key);
+      byte[] encoded = keyBytes.toByteArray();
+
+      // start a new block once the current one is full, blocks do not share prefixes
+      int shared = 0;
+      if (firstKeys.isEmpty()
+          || out.size() - blockOffsets.get(blockOffsets.size() - 1) >= BLOCK_BYTES) {
+        firstKeys.add(key);
+        blockOffsets.add(out.size());
+      } else {
+        int limit = Math.min(previousKey.length, encoded.length);
+        while (shared < limit && previousKey[shared] == encoded[shared]) {
+          shared++;
+        }
+      }
+
+      writeVarInt(out, shared);
+      writeVarInt(out, encoded.length - shared);
+      out.write(encoded, shared, encoded.length - shared);
+      if (value == TOMBSTONE) {
+        writeVarInt(out, 0);
+      } else {
+        writeVarInt(out, value.length + 1);
+        out.write(value);
+      }
+      bloom.add(key);
+      previousKey = encoded;
+      numEntries++;
+    }
+
+    /**
+     * Returns the run holding every entry added
+     *
+     * @param Path file - file to write the run to, null to keep it on the heap
+     *
+     * @return SortedRun<K> - new run
+     *
+     * @throws IOException - if writing the file fails
+     */
+    SortedRun<K> build(Path file) throws IOException {
+      int[] offsets = new int[blockOffsets.size() + 1];
+      for (int i = 0; i < blockOffsets.size(); i++) {
+        offsets[i] = blockOffsets.get(i);
+      }
+      offsets[blockOffsets.size()] = out.size();
+      return new SortedRun<K>(keyCodec, new ArrayList<K>(firstKeys), offsets, bloom, numEntries,
+          bytes.toByteArray(), file);
+    }
+  }
+
+}
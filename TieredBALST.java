@@ -0,0 +1,598 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Ordered map with the BALSTADT operations for data sets that are mostly cold.
+ * New entries go into an AVL memtable. Once the memtable holds memtableLimit
+ * entries it is flushed into an immutable SortedRun, which stores entries in
+ * prefix compressed blocks with a block index and a Bloom filter, on the heap
+ * or on local disk. A cold entry then costs a few bytes of encoded data
+ * instead of a tree node and the key and value objects.
+ *
+ * Lookups check the memtable first and then the runs from newest to oldest.
+ * The Bloom filters let a lookup skip every run that does not hold the key, so
+ * a lookup reads at most one block per run that may hold it. Removals of keys
+ * that are in a run leave a tombstone in the memtable. Once there are more than
+ * maxRuns runs, they are merged into one on a background thread, dropping
+ * tombstones and older versions of keys. The merged run is swapped in by the
+ * next call on the owning thread, so runs are only ever replaced by that thread.
+ *
+ * Keys and values are encoded with codecs. Runs are smallest with a key codec
+ * whose bytes compare in key order, such as SortedRun.integerKeys() or
+ * SortedRun.stringKeys(), since neighbouring keys then share prefixes. Like
+ * BALST the store must be used from one thread at a time. Methods that describe
+ * tree shape throw UnsupportedOperationException, since the entries do not form
+ * one tree.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class TieredBALST<K extends Comparable<K>, V> implements BALSTADT<K, V>, AutoCloseable {
+
+  private static final int DEFAULT_MEMTABLE_LIMIT = 1024;
+
+  private static final int DEFAULT_MAX_RUNS = 4;
+
+  private static final Object TOMBSTONE = new Object(); // memtable value of a removed key
+
+  private final TraceCodec<K> keyCodec;
+
+  private final TraceCodec<V> valueCodec;
+
+  private final int memtableLimit;
+
+  private final int maxRuns;
+
+  private final Path directory; // null to keep runs on the heap
+
+  private final ExecutorService compactor;
+
+  private BALST<K, Object> memtable; // values are V or TOMBSTONE
+
+  private List<SortedRun<K>> runs; // newest first, replaced and never changed in place
+
+  private Future<SortedRun<K>> compaction; // null unless a compaction is running
+
+  private int compacting; // number of oldest runs the running compaction merges
+
+  private int numKeys;
+
+  private long nextRunId;
+
+  /**
+   * Tiered store constructor keeping runs on the heap, with default limits.
+   *
+   * @param TraceCodec keyCodec   - encodes keys
+   * @param TraceCodec valueCodec - encodes values
+   */
+  public TieredBALST(TraceCodec<K> keyCodec, TraceCodec<V> valueCodec) {
+    this(keyCodec, valueCodec, DEFAULT_MEMTABLE_LIMIT, DEFAULT_MAX_RUNS, null);
+  }
+
+  /**
+   * Tiered store constructor.
+   *
+   * @param TraceCodec keyCodec   - encodes keys
+   * @param TraceCodec valueCodec - encodes values
+   * @param int memtableLimit     - number of memtable entries that triggers a flush
+   * @param int maxRuns           - number of runs above which runs are compacted
+   * @param Path directory        - existing directory for run files, null to keep runs on the heap
+   */
+  public TieredBALST(TraceCodec<K> keyCodec, TraceCodec<V> valueCodec, int memtableLimit,
+      int maxRuns, Path directory) {
+    if (memtableLimit <= 0 || maxRuns <= 0) {
+      throw new IllegalArgumentException("memtableLimit and maxRuns must be positive");
+    }
+    this.keyCodec = keyCodec;
+    this.valueCodec = valueCodec;
+    this.memtableLimit = memtableLimit;
+    this.maxRuns = maxRuns;
+    this.directory = directory;
+    this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "TieredBALST-compactor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.memtable = new BALST<K, Object>();
+    this.runs = new ArrayList<SortedRun<K>>();
+  }
+
+  /**
+   * Not supported, entries do not form one tree.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public K getKeyAtRoot() {
+    throw new UnsupportedOperationException("a tiered store has no tree shape");
+  }
+
+  /**
+   * Not supported, entries do not form one tree.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    throw new UnsupportedOperationException("a tiered store has no tree shape");
+  }
+
+  /**
+   * Not supported, entries do not form one tree.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    throw new UnsupportedOperationException("a tiered store has no tree shape");
+  }
+
+  /**
+   * Returns the height of the memtable
+   *
+   * @return int - height of the memtable
+   */
+  @Override
+  public int getHeight() {
+    return memtable.getHeight();
+  }
+
+  /**
+   * Returns every key in order, merging the memtable and the runs
+   *
+   * @return List<K> - keys in order
+   */
+  @Override
+  public List<K> getInOrderTraversal() {
+    installCompaction();
+    List<K> keys = new ArrayList<K>();
+    SortedRun.Merger<K> merger = new SortedRun.Merger<K>(runs);
+    boolean inRuns = merger.next();
+
+    BALST<K, Object>.Cursor cursor = memtable.cursor();
+    boolean inMemtable = cursor.first();
+    while (inRuns || inMemtable) {
+      int compare = !inRuns ? -1 : !inMemtable ? 1 : cursor.key().compareTo(merger.key());
+      if (compare <= 0) {
+        // the memtable is newer than every run
+        if (cursor.value() != TOMBSTONE) {
+          keys.add(cursor.key());
+        }
+        if (compare == 0) {
+          inRuns = merger.next();
+        }
+        inMemtable = cursor.next();
+      } else {
+        if (merger.value() != SortedRun.TOMBSTONE) {
+          keys.add(merger.key());
+        }
+        inRuns = merger.next();
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Not supported, entries do not form one tree.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public List<K> getPreOrderTraversal() {
+    throw new UnsupportedOperationException("a tiered store has no tree shape");
+  }
+
+  /**
+   * Not supported, entries do not form one tree.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public List<K> getPostOrderTraversal() {
+    throw new UnsupportedOperationException("a tiered store has no tree shape");
+  }
+
+  /**
+   * Not supported, entries do not form one tree.
+   *
+   * @throws UnsupportedOperationException - always
+   */
+  @Override
+  public List<K> getLevelOrderTraversal() {
+    throw new UnsupportedOperationException("a tiered store has no tree shape");
+  }
+
+  /**
+   * Inserts the key/value pair into the memtable, flushing it if it is full
+   *
+   * @param key   - key to be added
+   * @param value - value to be added to associated key
+   *
+   * @throws IllegalNullKeyException - if key is null
+   * @throws DuplicateKeyException   - if key already exists
+   */
+  @Override
+  public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+    installCompaction();
+    BALST<K, Object>.Cursor cursor = seekMemtable(key);
+    if (cursor != null) {
+      if (cursor.value() != TOMBSTONE) {
+        throw new DuplicateKeyException();
+      }
+      cursor.setValue(value);
+    } else {
+      if (findInRuns(key) != null) {
+        throw new DuplicateKeyException();
+      }
+      memtable.insert(key, value);
+    }
+    numKeys++;
+    flushIfFull();
+  }
+
+  /**
+   * Removes the key, leaving a tombstone in the memtable if a run holds it
+   *
+   * @param key - key to remove
+   *
+   * @return boolean - true if removed
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in the store
+   */
+  @Override
+  public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+    installCompaction();
+    BALST<K, Object>.Cursor cursor = seekMemtable(key);
+    if (cursor != null) {
+      if (cursor.value() == TOMBSTONE) {
+        throw new KeyNotFoundException();
+      }
+      // a run may still hold an older value that the tombstone has to hide
+      if (findInRuns(key) != null) {
+        cursor.setValue(TOMBSTONE);
+      } else {
+        cursor.remove();
+      }
+    } else {
+      if (findInRuns(key) == null) {
+        throw new KeyNotFoundException();
+      }
+      try {
+        memtable.insert(key, TOMBSTONE);
+      } catch (DuplicateKeyException e) {
+        // seekMemtable() just did not find the key
+        throw new IllegalStateException(e);
+      }
+    }
+    numKeys--;
+    flushIfFull();
+    return true;
+  }
+
+  /**
+   * Returns the value associated with the key
+   *
+   * @param key - key to look up
+   *
+   * @return V - value associated with key
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in the store
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+    installCompaction();
+    BALST<K, Object>.Cursor cursor = seekMemtable(key);
+    if (cursor != null) {
+      if (cursor.value() == TOMBSTONE) {
+        throw new KeyNotFoundException();
+      }
+      return (V) cursor.value();
+    }
+    byte[] encoded = findInRuns(key);
+    if (encoded == null) {
+      throw new KeyNotFoundException();
+    }
+    return decode(encoded);
+  }
+
+  /**
+   * Returns true if the key is in the store
+   *
+   * @param key - key to look up
+   *
+   * @return boolean - true if found, false if not
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   */
+  @Override
+  public boolean contains(K key) throws IllegalNullKeyException {
+    if (key == null) {
+      throw new IllegalNullKeyException();
+    }
+    installCompaction();
+    BALST<K, Object>.Cursor cursor = seekMemtable(key);
+    if (cursor != null) {
+      return cursor.value() != TOMBSTONE;
+    }
+    return findInRuns(key) != null;
+  }
+
+  /**
+   * Return number of keys in the store
+   *
+   * @return int - number of keys
+   */
+  @Override
+  public int numKeys() {
+    return this.numKeys;
+  }
+
+  /**
+   * Prints the keys in order, one per line
+   */
+  @Override
+  public void print() {
+    for (K key : getInOrderTraversal()) {
+      System.out.println(key);
+    }
+  }
+
+  /**
+   * Return number of sorted runs
+   *
+   * @return int - number of runs
+   */
+  public int numRuns() {
+    installCompaction();
+    return runs.size();
+  }
+
+  /**
+   * Returns heap used by the runs: encoded entries kept on the heap, Bloom
+   * filters and block offsets. The memtable and the keys in the block indexes
+   * are not counted.
+   *
+   * @return long - size in bytes
+   */
+  public long runFootprint() {
+    installCompaction();
+    long bytes = 0;
+    for (SortedRun<K> run : runs) {
+      bytes += run.sizeInBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * Flushes the memtable into a new run, even if it is not full
+   *
+   * @throws UncheckedIOException - if writing the run fails
+   */
+  public void flush() {
+    installCompaction();
+    if (memtable.numKeys() == 0) {
+      return;
+    }
+
+    SortedRun.Builder<K> builder = new SortedRun.Builder<K>(keyCodec, memtable.numKeys());
+    BALST<K, Object>.Cursor cursor = memtable.cursor();
+    try {
+      for (boolean more = cursor.first(); more; more = cursor.next()) {
+        builder.add(cursor.key(), cursor.value() == TOMBSTONE ? SortedRun.TOMBSTONE
+            : encode(cursor.value()));
+      }
+      List<SortedRun<K>> flushed = new ArrayList<SortedRun<K>>(runs.size() + 1);
+      flushed.add(builder.build(nextRunFile()));
+      flushed.addAll(runs);
+      runs = flushed;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    memtable = new BALST<K, Object>();
+
+    if (runs.size() > maxRuns && compaction == null) {
+      startCompaction();
+    }
+  }
+
+  /**
+   * Merges every run into one on the calling thread, waiting for background
+   * compactions first
+   *
+   * @throws UncheckedIOException - if writing the merged run fails
+   */
+  public void compact() {
+    awaitCompaction();
+    if (runs.size() > 1) {
+      startCompaction();
+      awaitCompaction();
+    }
+  }
+
+  /**
+   * Waits until no compaction is running, then stops the compaction thread and
+   * closes every run, deleting run files. The store must not be used afterwards.
+   *
+   * @throws IOException - if closing a run fails
+   */
+  @Override
+  public void close() throws IOException {
+    awaitCompaction();
+    compactor.shutdown();
+    for (SortedRun<K> run : runs) {
+      run.close();
+    }
+    runs = new ArrayList<SortedRun<K>>();
+  }
+
+  /**
+   * Finds the key in the memtable with a single search. Most lookups miss the
+   * memtable, so this uses a cursor rather than a get() that throws on a miss.
+   *
+   * @param K key - key to look up, never null
+   *
+   * @return BALST<K, Object>.Cursor - cursor at the key, or null if the memtable does not hold it
+   *
+   * @throws IllegalNullKeyException - never, the key is checked by the caller
+   */
+  private BALST<K, Object>.Cursor seekMemtable(K key) throws IllegalNullKeyException {
+    BALST<K, Object>.Cursor cursor = memtable.cursor();
+    return cursor.seek(key) && cursor.key().compareTo(key) == 0 ? cursor : null;
+  }
+
+  /**
+   * Flushes the memtable if it holds memtableLimit entries
+   */
+  private void flushIfFull() {
+    if (memtable.numKeys() >= memtableLimit) {
+      flush();
+    }
+  }
+
+  /**
+   * Returns the encoded value of the newest entry for the key in the runs
+   *
+   * @param K key - key to look up
+   *
+   * @return byte[] - encoded value, null if no run holds it or the newest entry is a tombstone
+   */
+  private byte[] findInRuns(K key) {
+    for (SortedRun<K> run : runs) {
+      byte[] encoded = run.find(key);
+      if (encoded != null) {
+        return encoded == SortedRun.TOMBSTONE ? null : encoded;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Starts merging every current run on the compaction thread. Runs flushed
+   * while it works are newer and stay in front of the merged run.
+   */
+  private void startCompaction() {
+    List<SortedRun<K>> merging = runs;
+    Path file = nextRunFile();
+    compacting = merging.size();
+    compaction = compactor.submit(() -> SortedRun.merge(merging, true, keyCodec, file));
+  }
+
+  /**
+   * Waits for the running compaction and installs its result, until none is
+   * running. Installing a result starts the next compaction if there are still
+   * too many runs.
+   */
+  private void awaitCompaction() {
+    while (compaction != null) {
+      try {
+        compaction.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted while waiting for compaction", e);
+      } catch (ExecutionException e) {
+        // installCompaction() reports the failure
+      }
+      installCompaction();
+    }
+  }
+
+  /**
+   * Replaces the merged runs with the result of a finished compaction, and
+   * closes them
+   *
+   * @throws UncheckedIOException - if the compaction failed
+   */
+  private void installCompaction() {
+    if (compaction == null || !compaction.isDone()) {
+      return;
+    }
+    SortedRun<K> merged;
+    try {
+      merged = compaction.get();
+    } catch (InterruptedException | ExecutionException e) {
+      compaction = null;
+      throw new UncheckedIOException(new IOException("compaction failed", e));
+    }
+    compaction = null;
+
+    List<SortedRun<K>> installed = new ArrayList<SortedRun<K>>(runs.subList(0, runs.size()
+        - compacting));
+    List<SortedRun<K>> replaced = runs.subList(runs.size() - compacting, runs.size());
+    installed.add(merged);
+    try {
+      for (SortedRun<K> run : replaced) {
+        run.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      runs = installed;
+    }
+
+    if (runs.size() > maxRuns) {
+      startCompaction();
+    }
+  }
+
+  /**
+   * Returns the file for a new run
+   *
+   * @return Path - file in the run directory, null if runs are kept on the heap
+   */
+  private Path nextRunFile() {
+    return directory == null ? null : directory.resolve("run-" + (nextRunId++) + ".sst");
+  }
+
+  /**
+   * Encodes a value with the value codec
+   *
+   * @param Object value - value from the memtable
+   *
+   * @return byte[] - encoded value
+   */
+  @SuppressWarnings("unchecked")
+  private byte[] encode(Object value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    valueCodec.write(new DataOutputStream(bytes), (V) value);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes a value with the value codec
+   *
+   * @param byte[] encoded - encoded value
+   *
+   * @return V - value
+   */
+  private V decode(byte[] encoded) {
+    try {
+      return valueCodec.read(new DataInputStream(new ByteArrayInputStream(encoded)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes keys to and reads keys from a workload trace.
+ *
+ * @param <K> is the generic type of key
+ */
+public interface TraceCodec<K> {
+
+  /**
+   * Writes a key
+   *
+   * @param DataOutput out - trace being written
+   * @param K key          - key to write, never null
+   *
+   * @throws IOException - if writing fails
+   */
+  void write(DataOutput out, K key) throws IOException;
+
+  /**
+   * Reads a key written by write()
+   *
+   * @param DataInput in - trace being read
+   *
+   * @return K - key read
+   *
+   * @throws IOException - if reading fails
+   */
+  K read(DataInput in) throws IOException;
+
+  /**
+   * Returns a codec that writes integers as zig-zag variable length integers,
+   * so keys near zero take one or two bytes
+   *
+   * @return TraceCodec<Integer> - integer codec
+   */
+  static TraceCodec<Integer> integers() {
+    return new TraceCodec<Integer>() {
+      public void write(DataOutput out, Integer key) throws IOException {
+        WorkloadTrace.writeVarLong(out, ((key << 1) ^ (key >> 31)) & 0xFFFFFFFFL);
+      }
+
+      public Integer read(DataInput in) throws IOException {
+        int zigZag = (int) WorkloadTrace.readVarLong(in);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+      }
+    };
+  }
+
+  /**
+   * Returns a codec that writes strings as modified UTF-8
+   *
+   * @return TraceCodec<String> - string codec
+   */
+  static TraceCodec<String> strings() {
+    return new TraceCodec<String>() {
+      public void write(DataOutput out, String key) throws IOException {
+        out.writeUTF(key);
+      }
+
+      public String read(DataInput in) throws IOException {
+        return in.readUTF();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,94 @@
+import java.util.Random;
+
+/**
+ * Randomized treap. Keys are in binary search tree order and random priorities
+ * are in heap order, which keeps the expected height logarithmic. An update does
+ * fewer than two rotations on average.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class Treap<K extends Comparable<K>, V> extends AbstractBST<K, V> {
+
+  private final Random random;
+
+  /**
+   * Treap constructor.
+   */
+  public Treap() {
+    this(new Random());
+  }
+
+  /**
+   * Treap constructor with a seed, for repeatable tree shapes.
+   *
+   * @param long seed - seed for node priorities
+   */
+  public Treap(long seed) {
+    this(new Random(seed));
+  }
+
+  /**
+   * Treap constructor using the provided source of priorities.
+   *
+   * @param Random random - source of node priorities
+   */
+  private Treap(Random random) {
+    super();
+    this.random = random;
+  }
+
+  /**
+   * Inserts a node with the assigned key/value pair as a leaf and rotates it up
+   * until its parent has a higher priority.
+   *
+   * @param key   - key to be added to tree
+   * @param value - value to be added to associated key in tree
+   *
+   * @throws IllegalNullKeyException - if key is null
+   * @throws DuplicateKeyException   - if key already exists in tree
+   */
+  @Override
+  public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+    Node<K, V> node = insertLeaf(key, value);
+    node.balance = random.nextInt();
+
+    while (node.parent != null && node.parent.balance < node.balance) {
+      if (node == node.parent.left) {
+        rotateRight(node.parent);
+      } else {
+        rotateLeft(node.parent);
+      }
+    }
+  }
+
+  /**
+   * Rotates the node with the provided key down until it has at most one child
+   * and then unlinks it.
+   *
+   * @param key the key of the node to be deleted
+   *
+   * @return boolean - true if node is removed from tree
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in tree
+   */
+  @Override
+  public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    Node<K, V> node = getExistingNode(key);
+
+    // rotate the child with the higher priority above the node
+    while (node.left != null && node.right != null) {
+      if (node.left.balance > node.right.balance) {
+        rotateRight(node);
+      } else {
+        rotateLeft(node);
+      }
+    }
+
+    replace(node, node.left != null ? node.left : node.right);
+    numKeys--;
+    return true;
+  }
+
+}
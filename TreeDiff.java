@@ -0,0 +1,95 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Differences between a BALST and a replica as found by BALST.diff(). Keys of
+ * the tree whose entry is missing or different in the replica are listed one by
+ * one. Keys of the replica that the tree lacks are only known to lie in ranges
+ * between neighbouring keys of the tree, so those are listed as ranges; fetch
+ * them from the replica to repair the tree.
+ *
+ * @param <K> is the generic type of key
+ */
+public class TreeDiff<K> {
+
+  private final List<K> differingKeys = new ArrayList<K>();
+
+  private final List<Map.Entry<K, K>> missingRanges = new ArrayList<Map.Entry<K, K>>();
+
+  private int replicaQueries;
+
+  /**
+   * Returns keys of the tree whose entry the replica lacks or holds with a
+   * different value, in key order
+   *
+   * @return List<K> - differing keys
+   */
+  public List<K> getDifferingKeys() {
+    return Collections.unmodifiableList(differingKeys);
+  }
+
+  /**
+   * Returns ranges that hold no key of the tree but at least one key of the
+   * replica, in key order. Both bounds of a range are excluded, and a null bound
+   * means the range is unbounded on that side.
+   *
+   * @return List<Map.Entry<K, K>> - ranges as lower bound to upper bound
+   */
+  public List<Map.Entry<K, K>> getMissingRanges() {
+    return Collections.unmodifiableList(missingRanges);
+  }
+
+  /**
+   * Returns number of range hashes asked from the replica to find the
+   * differences
+   *
+   * @return int - number of replica queries
+   */
+  public int getReplicaQueries() {
+    return this.replicaQueries;
+  }
+
+  /**
+   * Returns true if no difference was found
+   *
+   * @return boolean - true if the tree and the replica hold the same entries
+   */
+  public boolean isEmpty() {
+    return differingKeys.isEmpty() && missingRanges.isEmpty();
+  }
+
+  /**
+   * Adds a key of the tree that differs in the replica
+   *
+   * @param K key - differing key
+   */
+  void addDifferingKey(K key) {
+    differingKeys.add(key);
+  }
+
+  /**
+   * Adds a range of replica keys missing from the tree
+   *
+   * @param K lo - excluded lower bound, null for none
+   * @param K hi - excluded upper bound, null for none
+   */
+  void addMissingRange(K lo, K hi) {
+    missingRanges.add(new AbstractMap.SimpleImmutableEntry<K, K>(lo, hi));
+  }
+
+  /**
+   * Counts a range hash asked from the replica
+   */
+  void countReplicaQuery() {
+    replicaQueries++;
+  }
+
+  @Override
+  public String toString() {
+    return "differing keys " + differingKeys + ", missing ranges " + missingRanges;
+  }
+
+}
@@ -0,0 +1,183 @@
+/**
+ * Weak AVL tree. Every node stores a rank, and the rank difference between a
+ * node and each of its children is 1 or 2. Missing children have rank -1 and
+ * leaves have rank 0. With inserts only it is an AVL tree, but removals never
+ * do more than two rotations and most updates only change ranks.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class WAVLTree<K extends Comparable<K>, V> extends AbstractBST<K, V> {
+
+  /**
+   * WAVL tree constructor.
+   */
+  public WAVLTree() {
+    super();
+  }
+
+  /**
+   * Inserts a node with the assigned key/value pair and restores the rank rule.
+   *
+   * @param key   - key to be added to tree
+   * @param value - value to be added to associated key in tree
+   *
+   * @throws IllegalNullKeyException - if key is null
+   * @throws DuplicateKeyException   - if key already exists in tree
+   */
+  @Override
+  public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+    Node<K, V> node = insertLeaf(key, value);
+    node.balance = 0;
+
+    // walk up while the node has the same rank as its parent
+    while (node.parent != null && node.parent.balance == node.balance) {
+      Node<K, V> parent = node.parent;
+      boolean isLeft = node == parent.left;
+      Node<K, V> sibling = isLeft ? parent.right : parent.left;
+
+      // parent is a 0,1 node so promoting it moves the problem up
+      if (parent.balance - rankOf(sibling) == 1) {
+        parent.balance++;
+        node = parent;
+        continue;
+      }
+
+      // parent is a 0,2 node so rotate and stop
+      Node<K, V> inner = isLeft ? node.right : node.left;
+      if (node.balance - rankOf(inner) == 2) {
+        if (isLeft) {
+          rotateRight(parent);
+        } else {
+          rotateLeft(parent);
+        }
+        parent.balance--;
+      } else {
+        if (isLeft) {
+          rotateLeft(node);
+          rotateRight(parent);
+        } else {
+          rotateRight(node);
+          rotateLeft(parent);
+        }
+        inner.balance++;
+        node.balance--;
+        parent.balance--;
+      }
+      break;
+    }
+  }
+
+  /**
+   * Removes the node with the provided key and restores the rank rule.
+   *
+   * @param key the key of the node to be deleted
+   *
+   * @return boolean - true if node is removed from tree
+   *
+   * @throws IllegalNullKeyException - if provided key is null
+   * @throws KeyNotFoundException    - if key is not in tree
+   */
+  @Override
+  public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    Node<K, V> node = getExistingNode(key);
+
+    // a node with two children takes its successor's entry and the successor is removed instead
+    if (node.left != null && node.right != null) {
+      Node<K, V> successor = getInOrderSuccessor(node);
+      node.key = successor.key;
+      node.value = successor.value;
+      node = successor;
+    }
+
+    Node<K, V> parent = node.parent;
+    Node<K, V> child = node.left != null ? node.left : node.right;
+    boolean isLeft = parent != null && node == parent.left;
+    replace(node, child);
+    numKeys--;
+
+    if (parent != null) {
+      rebalanceAfterRemove(parent, isLeft);
+    }
+    return true;
+  }
+
+  /**
+   * Restores the rank rule after the child on one side of parent lost rank
+   *
+   * @param Node parent      - parent of the removed node
+   * @param boolean isLeft   - true if the removed node was the left child
+   */
+  private void rebalanceAfterRemove(Node<K, V> parent, boolean isLeft) {
+    // a leaf must have rank 0, so a 2,2 leaf is demoted first
+    if (parent.left == null && parent.right == null && parent.balance == 1) {
+      parent.balance = 0;
+      if (parent.parent == null) {
+        return;
+      }
+      isLeft = parent == parent.parent.left;
+      parent = parent.parent;
+    }
+
+    // walk up while a child is a 3-child
+    while (parent.balance - rankOf(isLeft ? parent.left : parent.right) == 3) {
+      Node<K, V> sibling = isLeft ? parent.right : parent.left;
+
+      // sibling is a 2-child, or a 1-child that is a 2,2 node, so demoting moves the problem up
+      boolean siblingIsTwoChild = parent.balance - rankOf(sibling) == 2;
+      if (siblingIsTwoChild || (sibling.balance - rankOf(sibling.left) == 2
+          && sibling.balance - rankOf(sibling.right) == 2)) {
+        parent.balance--;
+        if (!siblingIsTwoChild) {
+          sibling.balance--;
+        }
+        if (parent.parent == null) {
+          return;
+        }
+        isLeft = parent == parent.parent.left;
+        parent = parent.parent;
+        continue;
+      }
+
+      // sibling is a 1-child with a 1-child, so rotate and stop
+      Node<K, V> outer = isLeft ? sibling.right : sibling.left;
+      if (sibling.balance - rankOf(outer) == 1) {
+        if (isLeft) {
+          rotateLeft(parent);
+        } else {
+          rotateRight(parent);
+        }
+        sibling.balance++;
+        parent.balance--;
+        if (parent.left == null && parent.right == null) {
+          parent.balance--;
+        }
+      } else {
+        Node<K, V> inner = isLeft ? sibling.left : sibling.right;
+        if (isLeft) {
+          rotateRight(sibling);
+          rotateLeft(parent);
+        } else {
+          rotateLeft(sibling);
+          rotateRight(parent);
+        }
+        inner.balance += 2;
+        sibling.balance--;
+        parent.balance -= 2;
+      }
+      return;
+    }
+  }
+
+  /**
+   * Returns rank of the provided node, null nodes have rank -1
+   *
+   * @param Node node - node to check
+   *
+   * @return int - rank
+   */
+  private int rankOf(Node<K, V> node) {
+    return node == null ? -1 : node.balance;
+  }
+
+}
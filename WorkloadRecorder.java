@@ -0,0 +1,157 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * BALSTADT that forwards every call to another BALSTADT and appends the calls
+ * that read or change entries to a workload trace as they happen. Wrap the tree
+ * used in production with it to capture a trace that WorkloadReplayer can
+ * replay later. Calls are recorded whether or not they throw, so the replay
+ * repeats misses and duplicate inserts too.
+ *
+ * Recording is synchronized, so the recorder may wrap a tree shared between
+ * threads. Calls from different threads are then recorded in the order they
+ * reach the recorder, which may differ slightly from the order the tree applies
+ * them in.
+ *
+ * @param <K> is the generic type of key
+ * @param <V> is the generic type of value
+ */
+public class WorkloadRecorder<K extends Comparable<K>, V> implements BALSTADT<K, V>, AutoCloseable {
+
+  private final BALSTADT<K, V> tree;
+
+  private final DataOutputStream out;
+
+  private final TraceCodec<? super K> codec;
+
+  /**
+   * Recorder constructor. Writes the trace header right away.
+   *
+   * @param BALSTADT tree    - tree to forward calls to
+   * @param OutputStream out - stream the trace is written to, closed by close()
+   * @param TraceCodec codec - writes keys
+   *
+   * @throws IOException - if writing the header fails
+   */
+  public WorkloadRecorder(BALSTADT<K, V> tree, OutputStream out, TraceCodec<? super K> codec)
+      throws IOException {
+    this.tree = tree;
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.codec = codec;
+    WorkloadTrace.writeHeader(this.out);
+  }
+
+  @Override
+  public K getKeyAtRoot() {
+    return tree.getKeyAtRoot();
+  }
+
+  @Override
+  public K getKeyOfLeftChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    return tree.getKeyOfLeftChildOf(key);
+  }
+
+  @Override
+  public K getKeyOfRightChildOf(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    return tree.getKeyOfRightChildOf(key);
+  }
+
+  @Override
+  public int getHeight() {
+    return tree.getHeight();
+  }
+
+  @Override
+  public List<K> getInOrderTraversal() {
+    record(WorkloadTrace.Op.IN_ORDER, null);
+    return tree.getInOrderTraversal();
+  }
+
+  @Override
+  public List<K> getPreOrderTraversal() {
+    record(WorkloadTrace.Op.PRE_ORDER, null);
+    return tree.getPreOrderTraversal();
+  }
+
+  @Override
+  public List<K> getPostOrderTraversal() {
+    record(WorkloadTrace.Op.POST_ORDER, null);
+    return tree.getPostOrderTraversal();
+  }
+
+  @Override
+  public List<K> getLevelOrderTraversal() {
+    record(WorkloadTrace.Op.LEVEL_ORDER, null);
+    return tree.getLevelOrderTraversal();
+  }
+
+  @Override
+  public void insert(K key, V value) throws IllegalNullKeyException, DuplicateKeyException {
+    record(WorkloadTrace.Op.INSERT, key);
+    tree.insert(key, value);
+  }
+
+  @Override
+  public boolean remove(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    record(WorkloadTrace.Op.REMOVE, key);
+    return tree.remove(key);
+  }
+
+  @Override
+  public V get(K key) throws IllegalNullKeyException, KeyNotFoundException {
+    record(WorkloadTrace.Op.GET, key);
+    return tree.get(key);
+  }
+
+  @Override
+  public boolean contains(K key) throws IllegalNullKeyException {
+    record(WorkloadTrace.Op.CONTAINS, key);
+    return tree.contains(key);
+  }
+
+  @Override
+  public int numKeys() {
+    return tree.numKeys();
+  }
+
+  @Override
+  public void print() {
+    tree.print();
+  }
+
+  /**
+   * Writes out buffered calls and closes the trace stream. The wrapped tree is
+   * left as is.
+   *
+   * @throws IOException - if writing or closing fails
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Appends a call to the trace. Calls with a null key only throw, so they are
+   * not recorded.
+   *
+   * @param Op op - call
+   * @param K key - key of the call, null if it takes none
+   *
+   * @throws UncheckedIOException - if writing fails
+   */
+  private synchronized void record(WorkloadTrace.Op op, K key) {
+    if (op.hasKey() && key == null) {
+      return;
+    }
+    try {
+      WorkloadTrace.writeCall(out, op, key, codec);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+}
@@ -0,0 +1,246 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Replays a workload trace against any BALSTADT, either as fast as possible or
+ * at a fixed rate, and reports throughput, latency percentiles and garbage
+ * collection activity during the replay.
+ *
+ * At a fixed rate every call has a scheduled start time, and its latency is
+ * measured from that time rather than from when it actually started. A stall
+ * therefore shows up in the latency of every call queued behind it, as it would
+ * for real clients, instead of being hidden by the replay slowing down.
+ */
+public class WorkloadReplayer {
+
+  private WorkloadReplayer() {
+  }
+
+  /**
+   * Replays every call in the trace against the tree on the calling thread.
+   * Calls that throw KeyNotFoundException, DuplicateKeyException or
+   * UnsupportedOperationException are counted as failed and the replay goes on.
+   *
+   * @param WorkloadTrace trace - calls to replay
+   * @param BALSTADT tree       - tree to replay against
+   * @param Function valueFor   - value inserted for a key
+   * @param long opsPerSecond   - rate to replay at, 0 for as fast as possible
+   *
+   * @return Report - measurements of the replay
+   */
+  public static <K extends Comparable<K>, V> Report replay(WorkloadTrace<K> trace,
+      BALSTADT<K, V> tree, Function<? super K, ? extends V> valueFor, long opsPerSecond) {
+    if (opsPerSecond < 0) {
+      throw new IllegalArgumentException("opsPerSecond must not be negative");
+    }
+    long interval = opsPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / opsPerSecond;
+    long[] latencies = new long[trace.size()];
+    int failures = 0;
+
+    long gcCountBefore = gcCount();
+    long gcMillisBefore = gcMillis();
+    long start = System.nanoTime();
+    for (int i = 0; i < trace.size(); i++) {
+      long begin;
+      if (interval == 0) {
+        begin = System.nanoTime();
+      } else {
+        begin = start + i * interval;
+        waitUntil(begin);
+      }
+      if (!apply(tree, trace.op(i), trace.key(i), valueFor)) {
+        failures++;
+      }
+      latencies[i] = System.nanoTime() - begin;
+    }
+    long elapsed = System.nanoTime() - start;
+
+    Arrays.sort(latencies);
+    return new Report(latencies, failures, elapsed, gcCount() - gcCountBefore,
+        gcMillis() - gcMillisBefore);
+  }
+
+  /**
+   * Makes one call
+   *
+   * @param BALSTADT tree     - tree to call
+   * @param Op op             - call to make
+   * @param K key             - key of the call
+   * @param Function valueFor - value inserted for a key
+   *
+   * @return boolean - true if the call succeeded, false if it threw
+   */
+  private static <K extends Comparable<K>, V> boolean apply(BALSTADT<K, V> tree,
+      WorkloadTrace.Op op, K key, Function<? super K, ? extends V> valueFor) {
+    try {
+      switch (op) {
+        case INSERT:
+          tree.insert(key, valueFor.apply(key));
+          break;
+        case GET:
+          tree.get(key);
+          break;
+        case CONTAINS:
+          tree.contains(key);
+          break;
+        case REMOVE:
+          tree.remove(key);
+          break;
+        case IN_ORDER:
+          tree.getInOrderTraversal();
+          break;
+        case PRE_ORDER:
+          tree.getPreOrderTraversal();
+          break;
+        case POST_ORDER:
+          tree.getPostOrderTraversal();
+          break;
+        case LEVEL_ORDER:
+          tree.getLevelOrderTraversal();
+          break;
+      }
+      return true;
+    } catch (KeyNotFoundException | DuplicateKeyException | UnsupportedOperationException e) {
+      return false;
+    } catch (IllegalNullKeyException e) {
+      // traces never hold null keys
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Waits until System.nanoTime() reaches the provided time. Parks while far
+   * away and spins for the last stretch, since parking overshoots.
+   *
+   * @param long deadline - time to wait for in nanoseconds
+   */
+  private static void waitUntil(long deadline) {
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      if (remaining > TimeUnit.MICROSECONDS.toNanos(100)) {
+        LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  /**
+   * Returns number of garbage collections so far, over all collectors
+   *
+   * @return long - number of collections
+   */
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, collector.getCollectionCount());
+    }
+    return count;
+  }
+
+  /**
+   * Returns time spent in garbage collection so far, over all collectors
+   *
+   * @return long - collection time in milliseconds
+   */
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, collector.getCollectionTime());
+    }
+    return millis;
+  }
+
+  /**
+   * Measurements of one replay
+   */
+  public static class Report {
+    private final long[] latencies; // sorted, in nanoseconds
+    private final int failures;
+    private final long elapsedNanos;
+    private final long gcCount;
+    private final long gcMillis;
+
+    private Report(long[] latencies, int failures, long elapsedNanos, long gcCount,
+        long gcMillis) {
+      this.latencies = latencies;
+      this.failures = failures;
+      this.elapsedNanos = elapsedNanos;
+      this.gcCount = gcCount;
+      this.gcMillis = gcMillis;
+    }
+
+    /**
+     * Return number of calls replayed
+     *
+     * @return int - number of calls
+     */
+    public int getOps() {
+      return latencies.length;
+    }
+
+    /**
+     * Return number of calls that threw
+     *
+     * @return int - number of failed calls
+     */
+    public int getFailures() {
+      return this.failures;
+    }
+
+    /**
+     * Returns calls completed per second
+     *
+     * @return double - throughput
+     */
+    public double getThroughput() {
+      return latencies.length * 1e9 / Math.max(1, elapsedNanos);
+    }
+
+    /**
+     * Returns the latency that the provided fraction of calls did not exceed
+     *
+     * @param double fraction - between 0 and 1, for example 0.99 for the 99th percentile
+     *
+     * @return long - latency in nanoseconds, 0 if no calls were replayed
+     */
+    public long getLatencyPercentile(double fraction) {
+      if (latencies.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(fraction * latencies.length) - 1;
+      return latencies[Math.min(latencies.length - 1, Math.max(0, index))];
+    }
+
+    /**
+     * Return number of garbage collections during the replay
+     *
+     * @return long - number of collections
+     */
+    public long getGcCount() {
+      return this.gcCount;
+    }
+
+    /**
+     * Return time spent in garbage collection during the replay
+     *
+     * @return long - collection time in milliseconds
+     */
+    public long getGcMillis() {
+      return this.gcMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d ops (%d failed), %.0f ops/sec, p50 %.1f us, p99 %.1f us, "
+          + "p99.9 %.1f us, max %.1f us, %d gc taking %d ms", getOps(), failures, getThroughput(),
+          getLatencyPercentile(0.5) / 1e3, getLatencyPercentile(0.99) / 1e3,
+          getLatencyPercentile(0.999) / 1e3, getLatencyPercentile(1) / 1e3, gcCount, gcMillis);
+    }
+  }
+
+}
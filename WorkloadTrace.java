@@ -0,0 +1,277 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Sequence of BALSTADT calls that can be saved to a compact binary file and
+ * replayed with WorkloadReplayer. Traces come from a WorkloadRecorder wrapped
+ * around a tree in production, or from generate() for synthetic load.
+ *
+ * The file starts with a magic number and a format version. Every call after
+ * that is one opcode byte, followed by the key for calls that take one. Values
+ * are not recorded, the replayer derives them from keys.
+ *
+ * @param <K> is the generic type of key
+ */
+public class WorkloadTrace<K> {
+
+  /**
+   * Recorded call
+   */
+  public enum Op {
+    INSERT, // insert(key, value)
+    GET, // get(key)
+    CONTAINS, // contains(key)
+    REMOVE, // remove(key)
+    IN_ORDER, // getInOrderTraversal()
+    PRE_ORDER, // getPreOrderTraversal()
+    POST_ORDER, // getPostOrderTraversal()
+    LEVEL_ORDER; // getLevelOrderTraversal()
+
+    /**
+     * Returns true if the call takes a key
+     *
+     * @return boolean - true for INSERT, GET, CONTAINS and REMOVE
+     */
+    public boolean hasKey() {
+      return ordinal() <= REMOVE.ordinal();
+    }
+  }
+
+  private static final int MAGIC = 0x42414c54; // "BALT"
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final Op[] OPS = Op.values();
+
+  private final ArrayList<Op> ops;
+
+  private final ArrayList<K> keys; // null for calls without a key
+
+  /**
+   * Empty trace constructor.
+   */
+  public WorkloadTrace() {
+    this.ops = new ArrayList<Op>();
+    this.keys = new ArrayList<K>();
+  }
+
+  /**
+   * Appends a call
+   *
+   * @param Op op - call to append
+   * @param K key - key of the call, null if it takes none
+   *
+   * @throws IllegalArgumentException - if key is null for a call that takes one
+   */
+  public void add(Op op, K key) {
+    if (op.hasKey() && key == null) {
+      throw new IllegalArgumentException(op + " needs a key");
+    }
+    ops.add(op);
+    keys.add(op.hasKey() ? key : null);
+  }
+
+  /**
+   * Return number of calls in the trace
+   *
+   * @return int - number of calls
+   */
+  public int size() {
+    return ops.size();
+  }
+
+  /**
+   * Returns the call at the provided position
+   *
+   * @param int index - position in the trace
+   *
+   * @return Op - call
+   */
+  public Op op(int index) {
+    return ops.get(index);
+  }
+
+  /**
+   * Returns the key of the call at the provided position
+   *
+   * @param int index - position in the trace
+   *
+   * @return K - key, null if the call takes none
+   */
+  public K key(int index) {
+    return keys.get(index);
+  }
+
+  /**
+   * Writes the trace in the binary format. The stream is flushed, not closed.
+   *
+   * @param OutputStream out - stream to write to
+   * @param TraceCodec codec - writes keys
+   *
+   * @throws IOException - if writing fails
+   */
+  public void writeTo(OutputStream out, TraceCodec<? super K> codec) throws IOException {
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+    writeHeader(data);
+    for (int i = 0; i < ops.size(); i++) {
+      writeCall(data, ops.get(i), keys.get(i), codec);
+    }
+    data.flush();
+  }
+
+  /**
+   * Reads a trace written by writeTo() or a WorkloadRecorder
+   *
+   * @param InputStream in   - stream to read to its end
+   * @param TraceCodec codec - reads keys
+   *
+   * @return WorkloadTrace<K> - trace read
+   *
+   * @throws IOException - if reading fails or the stream is not a trace
+   */
+  public static <K> WorkloadTrace<K> readFrom(InputStream in, TraceCodec<K> codec)
+      throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC) {
+      throw new IOException("not a workload trace");
+    }
+    int version = data.readUnsignedByte();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("unsupported trace format version " + version);
+    }
+
+    WorkloadTrace<K> trace = new WorkloadTrace<K>();
+    int opcode;
+    while ((opcode = data.read()) != -1) {
+      if (opcode >= OPS.length) {
+        throw new IOException("unknown opcode " + opcode);
+      }
+      Op op = OPS[opcode];
+      try {
+        trace.add(op, op.hasKey() ? codec.read(data) : null);
+      } catch (EOFException e) {
+        throw new IOException("trace ends in the middle of a call", e);
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Returns a synthetic trace over integer keys drawn uniformly from [0, keyRange).
+   * Calls that are not inserts, removes or traversals are split evenly between
+   * get() and contains(). Traversals are all in order. The same arguments always
+   * give the same trace.
+   *
+   * @param int numOps           - number of calls
+   * @param int keyRange         - number of distinct keys
+   * @param int insertPercent    - percentage of inserts
+   * @param int removePercent    - percentage of removes
+   * @param int traversalPercent - percentage of in order traversals
+   * @param long seed            - random seed
+   *
+   * @return WorkloadTrace<Integer> - generated trace
+   *
+   * @throws IllegalArgumentException - if the percentages add up to more than 100
+   */
+  public static WorkloadTrace<Integer> generate(int numOps, int keyRange, int insertPercent,
+      int removePercent, int traversalPercent, long seed) {
+    if (insertPercent < 0 || removePercent < 0 || traversalPercent < 0
+        || insertPercent + removePercent + traversalPercent > 100) {
+      throw new IllegalArgumentException("percentages must be positive and add up to at most 100");
+    }
+    Random random = new Random(seed);
+    WorkloadTrace<Integer> trace = new WorkloadTrace<Integer>();
+    for (int i = 0; i < numOps; i++) {
+      int roll = random.nextInt(100);
+      int key = random.nextInt(keyRange);
+      if (roll < insertPercent) {
+        trace.add(Op.INSERT, key);
+      } else if (roll < insertPercent + removePercent) {
+        trace.add(Op.REMOVE, key);
+      } else if (roll < insertPercent + removePercent + traversalPercent) {
+        trace.add(Op.IN_ORDER, null);
+      } else {
+        trace.add(random.nextBoolean() ? Op.GET : Op.CONTAINS, key);
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Writes the magic number and format version
+   *
+   * @param DataOutput out - trace being written
+   *
+   * @throws IOException - if writing fails
+   */
+  static void writeHeader(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeByte(FORMAT_VERSION);
+  }
+
+  /**
+   * Writes one call
+   *
+   * @param DataOutput out   - trace being written
+   * @param Op op            - call
+   * @param K key            - key of the call, ignored if it takes none
+   * @param TraceCodec codec - writes keys
+   *
+   * @throws IOException - if writing fails
+   */
+  static <K> void writeCall(DataOutput out, Op op, K key, TraceCodec<? super K> codec)
+      throws IOException {
+    out.writeByte(op.ordinal());
+    if (op.hasKey()) {
+      codec.write(out, key);
+    }
+  }
+
+  /**
+   * Writes an unsigned variable length integer, seven bits per byte
+   *
+   * @param DataOutput out - trace being written
+   * @param long value     - value to write, treated as unsigned
+   *
+   * @throws IOException - if writing fails
+   */
+  static void writeVarLong(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /**
+   * Reads an unsigned variable length integer written by writeVarLong()
+   *
+   * @param DataInput in - trace being read
+   *
+   * @return long - value read
+   *
+   * @throws IOException - if reading fails
+   */
+  static long readVarLong(DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("variable length integer is too long");
+  }
+
+}